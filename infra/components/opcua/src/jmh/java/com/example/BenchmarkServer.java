@@ -0,0 +1,53 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.json.JSONObject;
+
+// In-process server for the benchmarks: the simulation server with constant
+// Double variables Sim.Tag<i>, reachable on 127.0.0.1 without security.
+// Nothing leaves the machine, so results only depend on this code and the
+// Milo stack.
+public class BenchmarkServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 12686;
+
+    private final SimulationServer server;
+
+    public BenchmarkServer(int port, int tags) throws Exception {
+        server = new SimulationServer(new JSONObject()
+                .put("port", port)
+                .put("tags", tags)
+                .put("updateIntervalMs", 0)
+                .put("types", new JSONObject().put("Double", 1))).startup();
+    }
+
+    public String getEndpointUrl() {
+        return server.getEndpointUrl();
+    }
+
+    public OpcUaClient connect() throws Exception {
+        OpcUaClient client = OpcUaClient.create(server.getEndpointUrl(),
+                endpoints -> endpoints.stream()
+                        .filter(e -> SecurityPolicy.None.getUri().equals(e.getSecurityPolicyUri()))
+                        .findFirst(),
+                builder -> builder.build());
+        client.connect().get();
+        return client;
+    }
+
+    // catalog of all server variables, in the default group
+    public TagCatalog catalog() {
+        return server.getCatalog(new JSONObject().put("samplingInterval", 0.0));
+    }
+
+    @Override
+    public void close() throws ExecutionException, InterruptedException {
+        server.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Many concurrent blocking OPC UA writes (one Write request per tag, the
+// caller waits with get()), on a pool of platform threads against one virtual
+// thread per write. virtual needs a Java 21 runtime:
+// mvn -P jmh,java21 test-compile exec:exec -Djmh.args="BlockingWrite"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class BlockingWriteBenchmark {
+    // pool size of the platform mode, a typical hand sized pool
+    private static final int PLATFORM_THREADS = 16;
+
+    @Param({ "platform", "virtual" })
+    String threads;
+
+    // writes in flight per operation
+    @Param({ "64", "1024" })
+    int concurrency;
+
+    private BenchmarkServer server;
+    private OpcUaClient client;
+    private List<NodeId> nodeIds;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() throws Exception {
+        boolean virtual = "virtual".equals(threads);
+        if (virtual && !BlockingThreads.isSupported()) {
+            throw new IllegalStateException("virtual threads need Java 21, running on "
+                    + System.getProperty("java.version"));
+        }
+        BlockingThreads.configure(new JSONObject().put("virtual", virtual));
+
+        server = new BenchmarkServer(BenchmarkServer.DEFAULT_PORT, concurrency);
+        client = server.connect();
+        nodeIds = server.catalog().getNodeIds();
+        executor = BlockingThreads.newExecutor("benchmark-writer", PLATFORM_THREADS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        client.disconnect().get();
+        server.close();
+    }
+
+    @Benchmark
+    public int blockingWrites() throws Exception {
+        List<Future<StatusCode>> writes = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            NodeId nodeId = nodeIds.get(i);
+            DataValue value = new DataValue(new Variant((double) i));
+            writes.add(executor.submit(() -> client.writeValue(nodeId, value).get()));
+        }
+        int good = 0;
+        for (Future<StatusCode> write : writes) {
+            if (write.get().isGood()) {
+                good++;
+            }
+        }
+        return good;
+    }
+}
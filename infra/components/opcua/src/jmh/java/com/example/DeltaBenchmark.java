@@ -0,0 +1,83 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Shadow delta handling: parsing the delta document into WriteValues, and the
+// complete write against the in-process server.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class DeltaBenchmark {
+
+    // desired values in one delta
+    @Param({ "10", "500" })
+    int desired;
+
+    private BenchmarkServer server;
+    private OpcUaClient client;
+    private CommandWriter writer;
+    private String delta;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new BenchmarkServer(BenchmarkServer.DEFAULT_PORT, desired);
+        client = server.connect();
+        TagCatalog catalog = server.catalog();
+        OperationLimits limits = OperationLimits.read(client);
+        writer = new CommandWriter(client, catalog, limits);
+        writer.loadDataTypes(new BulkReader(client, limits, 4)).get();
+
+        // same layout as $aws/things/<thing>/shadow/name/opc/update/delta
+        JSONObject opcua = new JSONObject();
+        for (TagDefinition tag : catalog.getTags()) {
+            opcua.put(tag.getName(), tag.getIndex() * 1.5);
+        }
+        delta = new JSONObject()
+                .put("version", 42)
+                .put("timestamp", System.currentTimeMillis() / 1000)
+                .put("state", new JSONObject().put("opcua", opcua))
+                .put("metadata", new JSONObject())
+                .toString();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.disconnect().get();
+        server.close();
+    }
+
+    @Benchmark
+    public List<WriteValue> parseDelta() {
+        return writer.toWriteValues(delta);
+    }
+
+    @Benchmark
+    public List<StatusCode> writeDelta() throws Exception {
+        return writer.writeDelta(delta).get();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Subscription value to IPC: Opcua.onSubscriptionValue (change filter, shadow
+// batcher or telemetry buffer) and a full shadow update of all tags (bounded
+// documents sent one after the other through Opcua.sendShadowDocument)
+// against the stub IPC client.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class PipelineBenchmark {
+
+    @Param({ "100", "10000" })
+    int tags;
+
+    // telemetry mode of the default group
+    @Param({ "shadow", "stream" })
+    String mode;
+
+    private Path spoolDirectory;
+    private StoreAndForward storeAndForward;
+    private Opcua opcua;
+    private List<TagDefinition> definitions;
+    // every round over all tags flips the value, so each notification is a change
+    private DataValue[] values;
+    private Map<TagDefinition, Object> document;
+    private ShadowDocumentWriter writer;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        IpcUtils.useClient(new StubIpcClient());
+        AsyncIpcUtils.configure(new JSONObject());
+
+        spoolDirectory = Files.createTempDirectory("opcua-bench-spool");
+        JSONObject root = new JSONObject()
+                .put("telemetry", new JSONObject().put("groups",
+                        new JSONObject().put(TagDefinition.DEFAULT_GROUP, new JSONObject().put("mode", mode))))
+                .put("spool", new JSONObject().put("directory", spoolDirectory.toString()));
+        GatewayConfig config = new GatewayConfig(root);
+        storeAndForward = new StoreAndForward(config.section("spool"));
+        opcua = new Opcua(config, storeAndForward);
+
+        definitions = new ArrayList<>(tags);
+        for (int i = 0; i < tags; i++) {
+            String name = "Line1.Turbine" + i + ".Speed";
+            definitions.add(new TagDefinition(i, name, new NodeId(1, name), 1000.0, 10, DeadbandType.None, 0.0,
+                    TagDefinition.DEFAULT_GROUP, Double.NaN, Double.NaN));
+        }
+        TagCatalog catalog = new TagCatalog(definitions);
+        opcua.startPipeline(catalog);
+        writer = new ShadowDocumentWriter(catalog);
+
+        values = new DataValue[] { new DataValue(new Variant(1200.5)), new DataValue(new Variant(1201.5)) };
+        document = new LinkedHashMap<>();
+        for (TagDefinition tag : definitions) {
+            document.put(tag, 1200.0 + tag.getIndex() * 0.37);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        opcua.stopPipeline();
+        storeAndForward.close();
+        try (Stream<Path> files = Files.walk(spoolDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void onSubscriptionValue() {
+        int i = next++ & Integer.MAX_VALUE;
+        opcua.onSubscriptionValue(definitions.get(i % tags), values[(i / tags) & 1]);
+    }
+
+    @Benchmark
+    public Object shadowUpdate() {
+        Object response = null;
+        for (ShadowDocumentWriter.Document part : writer.write(document, 500, 7680)) {
+            response = opcua.sendShadowDocument(part.payload).join();
+        }
+        return response;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Reading every catalog tag once: one Read request per node (what the old
+// readOPCNode did) against the pipelined BulkReader.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ReadBenchmark {
+
+    @Param({ "100", "5000" })
+    int nodes;
+
+    private BenchmarkServer server;
+    private OpcUaClient client;
+    private BulkReader bulkReader;
+    private List<NodeId> nodeIds;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new BenchmarkServer(BenchmarkServer.DEFAULT_PORT, nodes);
+        client = server.connect();
+        bulkReader = new BulkReader(client, OperationLimits.read(client), 4);
+        nodeIds = server.catalog().getNodeIds();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.disconnect().get();
+        server.close();
+    }
+
+    @Benchmark
+    public void readNodeByNode(Blackhole blackhole) throws Exception {
+        for (NodeId nodeId : nodeIds) {
+            blackhole.consume(client.readValue(0.0, TimestampsToReturn.Both, nodeId).get());
+        }
+    }
+
+    @Benchmark
+    public Map<NodeId, DataValue> bulkRead() throws Exception {
+        return bulkReader.readValues(nodeIds).get();
+    }
+}
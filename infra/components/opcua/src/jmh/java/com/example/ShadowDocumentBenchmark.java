@@ -0,0 +1,94 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Shadow "reported" document built with org.json (the previous
+// updateOpcShadow) against ShadowDocumentWriter. Run with -prof gc to
+// compare gc.alloc.rate.norm (bytes allocated per document).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShadowDocumentBenchmark {
+
+    // values per shadow update, a small window and a full maxUpdates batch
+    @Param({ "10", "500" })
+    int tags;
+
+    private ShadowDocumentWriter writer;
+    private Map<TagDefinition, Object> values;
+
+    @Setup
+    public void setup() {
+        List<TagDefinition> definitions = new ArrayList<>(tags);
+        for (int i = 0; i < tags; i++) {
+            String name = "Line1.Turbine" + i + ".Speed";
+            definitions.add(new TagDefinition(i, name, new NodeId(1, name), 1000.0, 10, DeadbandType.None, 0.0,
+                    TagDefinition.DEFAULT_GROUP, Double.NaN, Double.NaN));
+        }
+        TagCatalog catalog = new TagCatalog(definitions);
+        writer = new ShadowDocumentWriter(catalog);
+
+        // the mix a turbine line reports: speeds, counters and states
+        values = new LinkedHashMap<>();
+        for (TagDefinition tag : catalog.getTags()) {
+            switch (tag.getIndex() % 3) {
+                case 0:
+                    values.put(tag, 1200.0 + tag.getIndex() * 0.37);
+                    break;
+                case 1:
+                    values.put(tag, tag.getIndex() * 1000);
+                    break;
+                default:
+                    values.put(tag, tag.getIndex() % 2 == 0);
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] jsonObject() {
+        JSONObject dataObject = new JSONObject();
+        for (Map.Entry<TagDefinition, Object> entry : values.entrySet()) {
+            dataObject.put(entry.getKey().getName(), entry.getValue());
+        }
+        JSONObject stateObject = new JSONObject();
+        JSONObject reportedObject = new JSONObject();
+        JSONObject opcuaObject = new JSONObject();
+        opcuaObject.put("opcua", dataObject);
+        reportedObject.put("reported", opcuaObject);
+        stateObject.put("state", reportedObject);
+        return stateObject.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] shadowDocumentWriter() {
+        return writer.write(values);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClientV2;
+import software.amazon.awssdk.aws.greengrass.model.GetThingShadowRequest;
+import software.amazon.awssdk.aws.greengrass.model.GetThingShadowResponse;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreResponse;
+import software.amazon.awssdk.aws.greengrass.model.PublishToTopicRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToTopicResponse;
+import software.amazon.awssdk.aws.greengrass.model.UpdateThingShadowRequest;
+import software.amazon.awssdk.aws.greengrass.model.UpdateThingShadowResponse;
+
+// Greengrass IPC client without a Nucleus: the asynchronous calls used by
+// AsyncIpcUtils complete immediately, so benchmarks measure this component
+// and not the IPC socket. Installed with IpcUtils.useClient.
+public class StubIpcClient extends GreengrassCoreIPCClientV2 {
+    private final AtomicLong shadowUpdates = new AtomicLong();
+    private final AtomicLong publishes = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+
+    public StubIpcClient() {
+        super(null, null, Runnable::run);
+    }
+
+    @Override
+    public CompletableFuture<UpdateThingShadowResponse> updateThingShadowAsync(UpdateThingShadowRequest request) {
+        shadowUpdates.incrementAndGet();
+        payloadBytes.addAndGet(request.getPayload().length);
+        return CompletableFuture.completedFuture(new UpdateThingShadowResponse().withPayload(request.getPayload()));
+    }
+
+    @Override
+    public CompletableFuture<GetThingShadowResponse> getThingShadowAsync(GetThingShadowRequest request) {
+        return CompletableFuture.completedFuture(new GetThingShadowResponse().withPayload(new byte[0]));
+    }
+
+    @Override
+    public CompletableFuture<PublishToIoTCoreResponse> publishToIoTCoreAsync(PublishToIoTCoreRequest request) {
+        publishes.incrementAndGet();
+        payloadBytes.addAndGet(request.getPayload().length);
+        return CompletableFuture.completedFuture(new PublishToIoTCoreResponse());
+    }
+
+    @Override
+    public CompletableFuture<PublishToTopicResponse> publishToTopicAsync(PublishToTopicRequest request) {
+        publishes.incrementAndGet();
+        return CompletableFuture.completedFuture(new PublishToTopicResponse());
+    }
+
+    public long getShadowUpdateCount() {
+        return shadowUpdates.get();
+    }
+
+    public long getPublishCount() {
+        return publishes.get();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Inserts into the tag history and queries of one tag's last hour, raw and
+// as one minute buckets. Run with -prof gc, record should allocate nothing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class TimeSeriesStoreBenchmark {
+
+    @Param({ "1000", "10000" })
+    int tags;
+
+    private TimeSeriesStore store;
+    private List<TagDefinition> definitions;
+    private DataValue[] values;
+    private JSONObject rawQuery;
+    private JSONObject bucketQuery;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        definitions = new ArrayList<>(tags);
+        for (int i = 0; i < tags; i++) {
+            String name = "Line1.Turbine" + i + ".Speed";
+            definitions.add(new TagDefinition(i, name, new NodeId(1, name), 1000.0, 10, DeadbandType.None, 0.0,
+                    TagDefinition.DEFAULT_GROUP, Double.NaN, Double.NaN));
+        }
+        JSONObject config = new JSONObject()
+                .put("directory", Files.createTempDirectory("history").toString())
+                .put("recordsPerTag", 3600)
+                .put("maxPoints", 3600);
+        store = new TimeSeriesStore(config, new TagCatalog(definitions), null);
+
+        // one hour of one value per second for the queried tag
+        long start = System.currentTimeMillis() - 3600 * 1000;
+        for (int i = 0; i < 3600; i++) {
+            store.record(definitions.get(0), new DataValue(new Variant(1200.0 + i % 60), StatusCode.GOOD,
+                    new DateTime(new java.util.Date(start + i * 1000L))));
+        }
+        values = new DataValue[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new DataValue(new Variant(1200.0 + i * 0.37), StatusCode.GOOD, new DateTime());
+        }
+        String tag = definitions.get(0).getName();
+        rawQuery = new JSONObject().put("tag", tag).put("lastMs", 3600 * 1000);
+        bucketQuery = new JSONObject().put("tag", tag).put("lastMs", 3600 * 1000).put("intervalMs", 60000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public void record() {
+        int i = next++;
+        // tag 0 keeps its hour for the queries
+        store.record(definitions.get(1 + i % (tags - 1)), values[i & (values.length - 1)]);
+    }
+
+    @Benchmark
+    public JSONObject queryRaw() {
+        return store.query(rawQuery);
+    }
+
+    @Benchmark
+    public JSONObject queryBuckets() {
+        return store.query(bucketQuery);
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.Stack;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseDirection;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseResultMask;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.BrowseResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.BuildInfo;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReferenceDescription;
+import org.eclipse.milo.opcua.stack.core.types.structured.ViewDescription;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.toList;
+
+// Discovers the objects and variables below a root node. Browse requests
+// carry up to MaxNodesPerBrowse nodes each, continuation points are followed
+// with BrowseNext, and up to maxConcurrentRequests requests are in flight.
+// DataType and AccessLevel of the variables are then read with batched reads.
+// A failed Browse or BrowseNext is retried with backoff, its continuation
+// points released; a batch that keeps failing is left out and the crawl
+// finishes with the nodes found so far.
+// The result is kept in a JSON cache file together with the server's
+// namespace array and build info, later starts against the same server use
+// the file instead of browsing. An incomplete crawl isn't cached. Configured
+// by the "browse" section:
+// {"enabled": false, "root": "i=85", "cacheFile": "browse-cache.json",
+//  "maxConcurrentRequests": 4, "maxReferencesPerNode": 0, "maxNodes": 100000,
+//  "retries": 3, "retryDelayMs": 500}
+public class AddressSpaceCrawler {
+    private static final Logger logger = LoggerFactory.getLogger(AddressSpaceCrawler.class);
+
+    private static final int CACHE_VERSION = 1;
+    private static final ViewDescription DEFAULT_VIEW = new ViewDescription(NodeId.NULL_VALUE, DateTime.MIN_VALUE,
+            uint(0));
+    private static final int CURRENT_READ = 0x01;
+
+    public static class BrowsedNode {
+        private final NodeId nodeId;
+        // browse names from the root, separated by '/'
+        private final String path;
+        private final NodeClass nodeClass;
+        // variables only
+        private NodeId dataType;
+        private int accessLevel;
+
+        BrowsedNode(NodeId nodeId, String path, NodeClass nodeClass) {
+            this.nodeId = nodeId;
+            this.path = path;
+            this.nodeClass = nodeClass;
+        }
+
+        public NodeId getNodeId() {
+            return nodeId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public NodeClass getNodeClass() {
+            return nodeClass;
+        }
+
+        public NodeId getDataType() {
+            return dataType;
+        }
+
+        public int getAccessLevel() {
+            return accessLevel;
+        }
+    }
+
+    private final OpcUaClient client;
+    private final BulkReader bulkReader;
+    private final int chunkSize;
+    private final int maxConcurrentRequests;
+    private final int maxNodes;
+    // 0 lets the server decide when to return a continuation point
+    private final int maxReferencesPerNode;
+    private final NodeId root;
+    private final Path cacheFile;
+    private final int retries;
+    private final long retryDelayMs;
+
+    public AddressSpaceCrawler(OpcUaClient client, OperationLimits limits, BulkReader bulkReader, JSONObject config,
+            String defaultCacheFile) {
+        this.client = client;
+        this.bulkReader = bulkReader;
+        this.chunkSize = limits.getMaxNodesPerBrowse();
+        this.maxConcurrentRequests = Math.max(1, config.optInt("maxConcurrentRequests", 4));
+        this.maxNodes = config.optInt("maxNodes", 100000);
+        this.maxReferencesPerNode = Math.max(0, config.optInt("maxReferencesPerNode", 0));
+        this.root = NodeId.parse(config.optString("root", Identifiers.ObjectsFolder.toParseableString()));
+        this.cacheFile = Paths.get(config.optString("cacheFile", defaultCacheFile));
+        this.retries = Math.max(0, config.optInt("retries", 3));
+        this.retryDelayMs = Math.max(1, config.optLong("retryDelayMs", 500));
+    }
+
+    // the cached tree if it was written for the same server, otherwise a new
+    // crawl that replaces the cache
+    public CompletableFuture<List<BrowsedNode>> load(String[] namespaces, BuildInfo buildInfo) {
+        JSONObject key = cacheKey(namespaces, buildInfo);
+        List<BrowsedNode> cached = readCache(key);
+        if (cached != null) {
+            logger.info("Using {} browsed nodes from {}", cached.size(), cacheFile);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        long start = System.nanoTime();
+        Crawl crawl = new Crawl();
+        return crawl.start()
+                .thenCompose(nodes -> readAttributes(nodes).thenApply(v -> nodes))
+                .thenApply(nodes -> {
+                    logger.info("Browsed {} nodes below {} in {}ms", nodes.size(), root,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if (crawl.isIncomplete()) {
+                        logger.warn("Browse is incomplete, not caching it so the next start browses again");
+                    } else {
+                        writeCache(key, nodes);
+                    }
+                    return nodes;
+                });
+    }
+
+    // readable variables as catalog tags named by their path, missing settings
+    // come from the defaults
+    public static TagCatalog toCatalog(List<BrowsedNode> nodes, JSONObject defaults) {
+        if (defaults == null) {
+            defaults = new JSONObject();
+        }
+        List<TagDefinition> tags = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (BrowsedNode node : nodes) {
+            if (node.nodeClass != NodeClass.Variable || (node.accessLevel & CURRENT_READ) == 0) {
+                continue;
+            }
+            // sibling nodes of different namespaces may share a browse name
+            String name = names.add(node.path) ? node.path : node.path + "#" + node.nodeId.toParseableString();
+            JSONObject tag = new JSONObject().put("name", name).put("nodeId", node.nodeId.toParseableString());
+            tags.add(TagDefinition.fromJson(tags.size(), tag, defaults));
+        }
+        TagCatalog catalog = new TagCatalog(tags);
+        applyDataTypes(catalog, nodes);
+        return catalog;
+    }
+
+    // DataTypes of the browsed variables for the catalog tags among them, so
+    // they don't have to be read again; returns the number of tags typed
+    public static int applyDataTypes(TagCatalog catalog, List<BrowsedNode> nodes) {
+        int typed = 0;
+        for (BrowsedNode node : nodes) {
+            if (node.nodeClass == NodeClass.Variable && catalog.setDataType(node.nodeId, node.getDataType())) {
+                typed++;
+            }
+        }
+        return typed;
+    }
+
+    // breadth first, the next Browse request is sent as soon as one completes
+    private class Crawl {
+        private final CompletableFuture<List<BrowsedNode>> future = new CompletableFuture<>();
+        // all fields below are guarded by this
+        private final List<BrowsedNode> nodes = new ArrayList<>();
+        private final Deque<BrowsedNode> queue = new ArrayDeque<>();
+        private final Set<NodeId> visited = new HashSet<>();
+        private int inFlight;
+        private boolean truncated;
+        // a batch was given up after its retries
+        private boolean incomplete;
+
+        CompletableFuture<List<BrowsedNode>> start() {
+            visited.add(root);
+            queue.add(new BrowsedNode(root, "", NodeClass.Object));
+            pump();
+            return future;
+        }
+
+        private void pump() {
+            List<List<BrowsedNode>> batches = new ArrayList<>();
+            synchronized (this) {
+                if (future.isDone()) {
+                    return;
+                }
+                while (inFlight < maxConcurrentRequests && !queue.isEmpty()) {
+                    List<BrowsedNode> batch = new ArrayList<>(Math.min(chunkSize, queue.size()));
+                    while (batch.size() < chunkSize && !queue.isEmpty()) {
+                        batch.add(queue.poll());
+                    }
+                    batches.add(batch);
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    if (truncated) {
+                        logger.warn("Browse stopped at maxNodes={}", maxNodes);
+                    }
+                    future.complete(nodes);
+                    return;
+                }
+            }
+            for (List<BrowsedNode> batch : batches) {
+                browse(batch, 0);
+            }
+        }
+
+        synchronized boolean isIncomplete() {
+            return incomplete;
+        }
+
+        // attempt counts the failed requests of this batch, browsing it again
+        // skips the references found before
+        private void browse(List<BrowsedNode> parents, int attempt) {
+            List<BrowseDescription> descriptions = new ArrayList<>(parents.size());
+            for (BrowsedNode parent : parents) {
+                descriptions.add(new BrowseDescription(parent.nodeId, BrowseDirection.Forward,
+                        Identifiers.HierarchicalReferences, true,
+                        uint(NodeClass.Object.getValue() | NodeClass.Variable.getValue()),
+                        uint(BrowseResultMask.All.getValue())));
+            }
+
+            client.browse(DEFAULT_VIEW, uint(maxReferencesPerNode), descriptions).whenComplete((response, ex) -> {
+                if (ex != null) {
+                    retry(parents, attempt, ex);
+                    return;
+                }
+                onResults(parents, toList(response.getResults()), attempt);
+            });
+        }
+
+        // follows the continuation points until every parent is complete,
+        // then the request slot is free for the next batch
+        private void onResults(List<BrowsedNode> parents, List<BrowseResult> results, int attempt) {
+            List<ByteString> continuationPoints = new ArrayList<>();
+            List<BrowsedNode> continued = new ArrayList<>();
+            for (int i = 0; i < results.size() && i < parents.size(); i++) {
+                BrowseResult result = results.get(i);
+                addReferences(parents.get(i), result);
+                ByteString continuationPoint = result.getContinuationPoint();
+                if (continuationPoint != null && continuationPoint.isNotNull() && continuationPoint.length() > 0) {
+                    continuationPoints.add(continuationPoint);
+                    continued.add(parents.get(i));
+                }
+            }
+
+            if (continuationPoints.isEmpty()) {
+                synchronized (this) {
+                    inFlight--;
+                }
+                pump();
+                return;
+            }
+            client.browseNext(false, continuationPoints).whenComplete((response, ex) -> {
+                if (ex != null) {
+                    // the server may still hold them, the parents are browsed from the start
+                    client.browseNext(true, continuationPoints);
+                    retry(continued, attempt, ex);
+                    return;
+                }
+                onResults(continued, toList(response.getResults()), attempt);
+            });
+        }
+
+        private synchronized void addReferences(BrowsedNode parent, BrowseResult result) {
+            if (result.getStatusCode().isBad()) {
+                logger.warn("Browsing {} failed: {}", parent.nodeId, result.getStatusCode());
+                return;
+            }
+            for (ReferenceDescription reference : toList(result.getReferences())) {
+                Optional<NodeId> nodeId = reference.getNodeId().toNodeId(client.getNamespaceTable());
+                if (!nodeId.isPresent() || !visited.add(nodeId.get())) {
+                    continue;
+                }
+                if (nodes.size() >= maxNodes) {
+                    truncated = true;
+                    continue;
+                }
+                String name = reference.getBrowseName().getName();
+                String path = parent.path.isEmpty() ? name : parent.path + "/" + name;
+                BrowsedNode node = new BrowsedNode(nodeId.get(), path, reference.getNodeClass());
+                nodes.add(node);
+                if (node.nodeClass == NodeClass.Object) {
+                    queue.add(node);
+                }
+            }
+        }
+
+        // the batch keeps its request slot while it waits for the retry
+        private void retry(List<BrowsedNode> parents, int attempt, Throwable ex) {
+            if (attempt >= retries) {
+                logger.warn("Browse of {} nodes failed {} times, continuing without them: {}", parents.size(),
+                        attempt + 1, ex.getMessage());
+                synchronized (this) {
+                    incomplete = true;
+                    inFlight--;
+                }
+                pump();
+                return;
+            }
+            long delay = retryDelayMs << Math.min(attempt, 16);
+            logger.warn("Browse of {} nodes failed: {}, retrying in {}ms", parents.size(), ex.getMessage(), delay);
+            Stack.sharedScheduledExecutor().schedule(() -> browse(parents, attempt + 1), delay,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private CompletableFuture<Void> readAttributes(List<BrowsedNode> nodes) {
+        List<BrowsedNode> variables = new ArrayList<>();
+        List<ReadValueId> readValueIds = new ArrayList<>();
+        for (BrowsedNode node : nodes) {
+            if (node.nodeClass == NodeClass.Variable) {
+                variables.add(node);
+                readValueIds.add(new ReadValueId(node.nodeId, AttributeId.DataType.uid(), null,
+                        QualifiedName.NULL_VALUE));
+                readValueIds.add(new ReadValueId(node.nodeId, AttributeId.AccessLevel.uid(), null,
+                        QualifiedName.NULL_VALUE));
+            }
+        }
+
+        return bulkReader.read(readValueIds, TimestampsToReturn.Neither).thenAccept(values -> {
+            for (int i = 0; i < variables.size(); i++) {
+                BrowsedNode node = variables.get(i);
+                Object dataType = value(values.get(2 * i));
+                Object accessLevel = value(values.get(2 * i + 1));
+                node.dataType = dataType instanceof NodeId ? (NodeId) dataType : null;
+                node.accessLevel = accessLevel instanceof UByte ? ((UByte) accessLevel).intValue() : 0;
+            }
+        });
+    }
+
+    private static Object value(DataValue value) {
+        return value != null && value.getStatusCode() != null && value.getStatusCode().isGood()
+                ? value.getValue().getValue()
+                : null;
+    }
+
+    // NodeIds in the cache are only valid for the same namespace array
+    private JSONObject cacheKey(String[] namespaces, BuildInfo buildInfo) {
+        JSONObject key = new JSONObject();
+        key.put("version", CACHE_VERSION);
+        key.put("root", root.toParseableString());
+        key.put("maxNodes", maxNodes);
+        key.put("namespaces", new JSONArray(namespaces != null ? namespaces : new String[0]));
+        if (buildInfo != null) {
+            key.put("productUri", buildInfo.getProductUri());
+            key.put("manufacturerName", buildInfo.getManufacturerName());
+            key.put("softwareVersion", buildInfo.getSoftwareVersion());
+            key.put("buildNumber", buildInfo.getBuildNumber());
+            if (buildInfo.getBuildDate() != null) {
+                key.put("buildDate", buildInfo.getBuildDate().getUtcTime());
+            }
+        }
+        return key;
+    }
+
+    private List<BrowsedNode> readCache(JSONObject key) {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        try {
+            JSONObject cache = new JSONObject(new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8));
+            if (!key.similar(cache.optJSONObject("key"))) {
+                logger.info("Server changed since {} was written, browsing again", cacheFile);
+                return null;
+            }
+            JSONArray array = cache.getJSONArray("nodes");
+            List<BrowsedNode> nodes = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                BrowsedNode node = new BrowsedNode(NodeId.parse(json.getString("nodeId")), json.getString("path"),
+                        NodeClass.valueOf(json.getString("class")));
+                String dataType = json.optString("dataType", null);
+                node.dataType = dataType != null ? NodeId.parse(dataType) : null;
+                node.accessLevel = json.optInt("accessLevel", 0);
+                nodes.add(node);
+            }
+            return nodes;
+        } catch (Exception e) {
+            logger.error("Unable to read browse cache {}: {}", cacheFile, e.getMessage());
+            return null;
+        }
+    }
+
+    // written to a temporary file first, a crash never leaves a partial cache
+    private void writeCache(JSONObject key, List<BrowsedNode> nodes) {
+        JSONArray array = new JSONArray();
+        for (BrowsedNode node : nodes) {
+            JSONObject json = new JSONObject()
+                    .put("nodeId", node.nodeId.toParseableString())
+                    .put("path", node.path)
+                    .put("class", node.nodeClass.name());
+            if (node.nodeClass == NodeClass.Variable) {
+                if (node.dataType != null) {
+                    json.put("dataType", node.dataType.toParseableString());
+                }
+                json.put("accessLevel", node.accessLevel);
+            }
+            array.put(json);
+        }
+
+        try {
+            Path parent = cacheFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, "browse", ".tmp");
+            Files.write(temp, new JSONObject().put("key", key).put("nodes", array).toString()
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.error("Unable to write browse cache {}: {}", cacheFile, e.getMessage());
+        }
+    }
+}
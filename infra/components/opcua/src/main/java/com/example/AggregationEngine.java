@@ -0,0 +1,357 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.model.QOS;
+
+// Reduces the values of trend tag groups to window statistics at the edge:
+// min, max, mean, count, last and the time weighted average (twa, every
+// value weighted by how long it was held). Only the aggregates are reported,
+// to the shadow and/or to <topic>/aggregates depending on the group's
+// telemetry mode. A group is aggregated when its telemetry group settings
+// have an "aggregate" object:
+// "groups": {"trend": {"mode": "shadow",
+//                      "aggregate": {"windowMs": 60000, "slideMs": 60000,
+//                                    "functions": ["min", "max", "mean", "count", "last", "twa"]}}}
+// slideMs equal to windowMs gives tumbling windows, a smaller slideMs sliding
+// windows of windowMs that are emitted every slideMs. A window is kept as
+// windowMs / slideMs slots of primitive arrays, per tag and slot, that are
+// reused round robin. Windows are aligned to the wall clock and values are
+// placed by arrival time, so late source timestamps can't reopen a window.
+public class AggregationEngine implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AggregationEngine.class);
+
+    static final List<String> FUNCTIONS = Arrays.asList("min", "max", "mean", "count", "last", "twa");
+    private static final int MIN = 0;
+    private static final int MAX = 1;
+    private static final int MEAN = 2;
+    private static final int COUNT = 3;
+    private static final int LAST = 4;
+    private static final int TWA = 5;
+
+    private static final LongAdder aggregatedValues = MetricsRegistry.counter("aggregation.values");
+    private static final LongAdder skippedValues = MetricsRegistry.counter("aggregation.skippedValues");
+    private static final LongAdder emittedAggregates = MetricsRegistry.counter("aggregation.emitted");
+
+    private final class GroupWindow {
+        final String group;
+        final TelemetryStreamer.Mode mode;
+        final String topic;
+        final QOS qos;
+        final int maxTagsPerMessage;
+        final long slideMs;
+        final int slots;
+        final boolean[] functions = new boolean[FUNCTIONS.size()];
+        final List<TagDefinition> tags = new ArrayList<>();
+
+        // guarded by this, per tag and slot at [tag * slots + slot]
+        double[] min;
+        double[] max;
+        double[] sum;
+        long[] count;
+        double[] weightedSum;
+        long[] heldMs;
+        // guarded by this, per tag: last value and since when it is held
+        double[] held;
+        long[] heldSince;
+        boolean[] holding;
+        int current;
+        long windowStart;
+
+        GroupWindow(String group, JSONObject groupConfig, JSONObject aggregate, String topic) {
+            this.group = group;
+            this.mode = TelemetryStreamer.Mode.valueOf(groupConfig.optString("mode", "shadow").toUpperCase());
+            this.topic = topic + "/aggregates";
+            this.qos = TelemetryStreamer.parseQos(groupConfig.optString("qos", "AT_MOST_ONCE"));
+            this.maxTagsPerMessage = Math.max(1, aggregate.optInt("maxTagsPerMessage", 500));
+            long windowMs = Math.max(1, aggregate.optLong("windowMs", 60000));
+            this.slideMs = Math.max(1, Math.min(windowMs, aggregate.optLong("slideMs", windowMs)));
+            this.slots = (int) Math.max(1, Math.round((double) windowMs / slideMs));
+            JSONArray names = aggregate.optJSONArray("functions");
+            for (int f = 0; f < functions.length; f++) {
+                functions[f] = names == null;
+            }
+            for (int i = 0; names != null && i < names.length(); i++) {
+                int f = FUNCTIONS.indexOf(names.getString(i));
+                if (f < 0) {
+                    throw new IllegalArgumentException("unknown aggregate function " + names.getString(i));
+                }
+                functions[f] = true;
+            }
+        }
+
+        void allocate(long now) {
+            int cells = tags.size() * slots;
+            min = new double[cells];
+            max = new double[cells];
+            sum = new double[cells];
+            count = new long[cells];
+            weightedSum = new double[cells];
+            heldMs = new long[cells];
+            held = new double[tags.size()];
+            heldSince = new long[tags.size()];
+            holding = new boolean[tags.size()];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            windowStart = now - now % slideMs - (slots - 1) * slideMs;
+        }
+
+        synchronized void add(int tag, double value, long now) {
+            int cell = tag * slots + current;
+            if (holding[tag]) {
+                hold(tag, cell, now);
+            }
+            min[cell] = Math.min(min[cell], value);
+            max[cell] = Math.max(max[cell], value);
+            sum[cell] += value;
+            count[cell]++;
+            held[tag] = value;
+            heldSince[tag] = now;
+            holding[tag] = true;
+        }
+
+        // the held value counts for the time since it arrived or since the slot began
+        private void hold(int tag, int cell, long now) {
+            long ms = Math.max(0, now - heldSince[tag]);
+            weightedSum[cell] += held[tag] * ms;
+            heldMs[cell] += ms;
+            heldSince[tag] = now;
+        }
+
+        // aggregates of the window ending at now, then the oldest slot is reused
+        synchronized Map<TagDefinition, JSONObject> close(long now) {
+            Map<TagDefinition, JSONObject> aggregates = new LinkedHashMap<>();
+            for (int tag = 0; tag < tags.size(); tag++) {
+                if (holding[tag]) {
+                    hold(tag, tag * slots + current, now);
+                }
+                double windowMin = Double.POSITIVE_INFINITY;
+                double windowMax = Double.NEGATIVE_INFINITY;
+                double windowSum = 0;
+                long windowCount = 0;
+                double windowWeighted = 0;
+                long windowHeldMs = 0;
+                for (int cell = tag * slots; cell < (tag + 1) * slots; cell++) {
+                    windowMin = Math.min(windowMin, min[cell]);
+                    windowMax = Math.max(windowMax, max[cell]);
+                    windowSum += sum[cell];
+                    windowCount += count[cell];
+                    windowWeighted += weightedSum[cell];
+                    windowHeldMs += heldMs[cell];
+                }
+                if (windowCount == 0 && windowHeldMs == 0) {
+                    continue; // no value yet
+                }
+
+                JSONObject aggregate = new JSONObject();
+                if (windowCount > 0) {
+                    put(aggregate, MIN, windowMin);
+                    put(aggregate, MAX, windowMax);
+                    put(aggregate, MEAN, windowSum / windowCount);
+                }
+                if (functions[COUNT]) {
+                    aggregate.put(FUNCTIONS.get(COUNT), windowCount);
+                }
+                put(aggregate, LAST, held[tag]);
+                if (windowHeldMs > 0) {
+                    put(aggregate, TWA, windowWeighted / windowHeldMs);
+                }
+                aggregates.put(tags.get(tag), aggregate);
+            }
+
+            windowStart += slideMs;
+            current = (current + 1) % slots;
+            for (int tag = 0; tag < tags.size(); tag++) {
+                int cell = tag * slots + current;
+                min[cell] = Double.POSITIVE_INFINITY;
+                max[cell] = Double.NEGATIVE_INFINITY;
+                sum[cell] = 0;
+                count[cell] = 0;
+                weightedSum[cell] = 0;
+                heldMs[cell] = 0;
+            }
+            return aggregates;
+        }
+
+        // NaN and Infinity can't be represented in JSON
+        private void put(JSONObject aggregate, int function, double value) {
+            if (functions[function] && !Double.isNaN(value) && !Double.isInfinite(value)) {
+                aggregate.put(FUNCTIONS.get(function), value);
+            }
+        }
+    }
+
+    private final String thingName;
+    private final String endpoint;
+    private final StoreAndForward storeAndForward;
+    private final BiConsumer<TagDefinition, Object> shadowSink;
+    // window of every catalog tag and the tag's position in it, indexed by
+    // TagDefinition.getIndex(), null for tags that are not aggregated
+    private final GroupWindow[] windows;
+    private final int[] positions;
+    private final List<GroupWindow> groups = new ArrayList<>();
+
+    private final ScheduledExecutorService windowExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "telemetry-aggregator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // telemetryConfig is the "telemetry" section, shadowSink takes the
+    // aggregates of groups reported to the shadow
+    public AggregationEngine(JSONObject telemetryConfig, TagCatalog catalog, String thingName, String endpoint,
+            StoreAndForward storeAndForward, BiConsumer<TagDefinition, Object> shadowSink) {
+        this.thingName = thingName;
+        this.endpoint = endpoint;
+        this.storeAndForward = storeAndForward;
+        this.shadowSink = shadowSink;
+        this.windows = new GroupWindow[catalog.size()];
+        this.positions = new int[catalog.size()];
+
+        JSONObject groupsConfig = telemetryConfig.optJSONObject("groups");
+        if (groupsConfig == null) {
+            groupsConfig = new JSONObject();
+        }
+        Map<String, GroupWindow> byGroup = new HashMap<>();
+        for (TagDefinition tag : catalog.getTags()) {
+            GroupWindow window = byGroup.get(tag.getGroup());
+            if (window == null && !byGroup.containsKey(tag.getGroup())) {
+                JSONObject groupConfig = TelemetryStreamer.groupConfig(groupsConfig, tag.getGroup());
+                JSONObject aggregate = groupConfig.optJSONObject("aggregate");
+                if (aggregate != null) {
+                    window = new GroupWindow(tag.getGroup(), groupConfig, aggregate,
+                            TelemetryStreamer.topic(telemetryConfig, groupConfig, thingName, endpoint, tag.getGroup()));
+                    groups.add(window);
+                }
+                byGroup.put(tag.getGroup(), window);
+            }
+            if (window != null) {
+                windows[tag.getIndex()] = window;
+                positions[tag.getIndex()] = window.tags.size();
+                window.tags.add(tag);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (GroupWindow window : groups) {
+            window.allocate(now);
+            // ticks on the slide boundaries of the wall clock
+            windowExecutor.scheduleAtFixedRate(() -> emit(window), window.slideMs - now % window.slideMs,
+                    window.slideMs, TimeUnit.MILLISECONDS);
+            logger.info("Aggregating group {} ({} tags): window={}ms slide={}ms mode={}", window.group,
+                    window.tags.size(), window.slots * window.slideMs, window.slideMs, window.mode);
+        }
+    }
+
+    public boolean isAggregated(TagDefinition tag) {
+        return windows[tag.getIndex()] != null;
+    }
+
+    // called from the subscription lanes. False when the tag's group is not
+    // aggregated, true when the value was taken (also when it was skipped
+    // because it is not numeric or not good).
+    public boolean offer(TagDefinition tag, DataValue value) {
+        GroupWindow window = windows[tag.getIndex()];
+        if (window == null) {
+            return false;
+        }
+        Object v = value.getValue().getValue();
+        double d;
+        if (v instanceof Number) {
+            d = ((Number) v).doubleValue();
+        } else if (v instanceof Boolean) {
+            d = ((Boolean) v) ? 1 : 0;
+        } else {
+            skippedValues.increment();
+            return true;
+        }
+        if (value.getStatusCode() != null && !value.getStatusCode().isGood()) {
+            skippedValues.increment();
+            return true;
+        }
+        aggregatedValues.increment();
+        window.add(positions[tag.getIndex()], d, System.currentTimeMillis());
+        return true;
+    }
+
+    private void emit(GroupWindow window) {
+        try {
+            long windowStart = window.windowStart;
+            long windowEnd = windowStart + window.slots * window.slideMs;
+            Map<TagDefinition, JSONObject> aggregates = window.close(System.currentTimeMillis());
+            if (aggregates.isEmpty()) {
+                return;
+            }
+            emittedAggregates.add(aggregates.size());
+            if (window.mode != TelemetryStreamer.Mode.STREAM) {
+                for (Map.Entry<TagDefinition, JSONObject> entry : aggregates.entrySet()) {
+                    shadowSink.accept(entry.getKey(), entry.getValue());
+                }
+            }
+            if (window.mode != TelemetryStreamer.Mode.SHADOW) {
+                publish(window, windowStart, windowEnd, aggregates);
+            }
+            logger.debug("Emitted aggregates of {} tags of group {}", aggregates.size(), window.group);
+        } catch (Exception e) {
+            logger.error("Aggregating group {} failed: {}", window.group, e.getMessage());
+        }
+    }
+
+    // {"thing": "...", "group": "trend", "windowStart": ..., "windowEnd": ...,
+    //  "aggregates": {"<tag>": {"min": ..., "max": ..., ...}}} ("endpoint" is added
+    // with several endpoints), split after maxTagsPerMessage tags
+    private void publish(GroupWindow window, long windowStart, long windowEnd,
+            Map<TagDefinition, JSONObject> aggregates) {
+        JSONObject values = new JSONObject();
+        int remaining = aggregates.size();
+        for (Map.Entry<TagDefinition, JSONObject> entry : aggregates.entrySet()) {
+            values.put(entry.getKey().getName(), entry.getValue());
+            remaining--;
+            if (values.length() >= window.maxTagsPerMessage || remaining == 0) {
+                JSONObject message = new JSONObject();
+                message.put("thing", thingName);
+                if (endpoint != null) {
+                    message.put("endpoint", endpoint);
+                }
+                message.put("group", window.group);
+                message.put("windowStart", windowStart);
+                message.put("windowEnd", windowEnd);
+                message.put("aggregates", values);
+                storeAndForward.publishToIoTCore(window.topic, message.toString().getBytes(StandardCharsets.UTF_8),
+                        window.qos);
+                values = new JSONObject();
+            }
+        }
+    }
+
+    public boolean hasGroups() {
+        return !groups.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        windowExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClientV2;
+import software.amazon.awssdk.aws.greengrass.model.*;
+
+// Asynchronous counterpart of IpcUtils. Every call returns a CompletableFuture
+// and the number of requests in flight is capped by a window. When the window
+// is full the caller waits up to acquireTimeoutMs for a slot and then gets a
+// future failed with RejectedExecutionException. Callers on OPC UA callback
+// threads must not wait, they hand values to a batcher that calls in here from
+// its own thread, or check isSaturated() and keep coalescing while it is true.
+// Priority publishes (high severity alarms) have a small window of their own,
+// a window full of telemetry never delays them.
+class AsyncIpcUtils {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncIpcUtils.class);
+
+    enum Operation {
+        UPDATE_SHADOW, GET_SHADOW, PUBLISH_TO_TOPIC, PUBLISH_TO_IOT_CORE
+    }
+
+    private static volatile Semaphore window = new Semaphore(16);
+    private static volatile int maxInFlight = 16;
+    private static volatile long acquireTimeoutMs = 5000;
+    private static volatile Semaphore priorityWindow = new Semaphore(4);
+
+    private static final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private static final LongAdder failures = MetricsRegistry.counter("ipc.failures");
+    static {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            MetricsRegistry.register("ipc." + operation.name().toLowerCase(), latencies.get(operation));
+        }
+        MetricsRegistry.gauge("ipc.inFlight", AsyncIpcUtils::getInFlight);
+    }
+
+    private AsyncIpcUtils() {
+    }
+
+    // config keys: maxInFlight, acquireTimeoutMs, priorityInFlight. Must be
+    // called before first use.
+    protected static void configure(JSONObject config) {
+        maxInFlight = Math.max(1, config.optInt("maxInFlight", 16));
+        acquireTimeoutMs = Math.max(0, config.optLong("acquireTimeoutMs", 5000));
+        int priorityInFlight = Math.max(1, config.optInt("priorityInFlight", 4));
+        window = new Semaphore(maxInFlight);
+        priorityWindow = new Semaphore(priorityInFlight);
+        logger.info("Async IPC window: maxInFlight={} acquireTimeoutMs={} priorityInFlight={}", maxInFlight,
+                acquireTimeoutMs, priorityInFlight);
+    }
+
+    protected static LatencyHistogram getLatencyHistogram(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    protected static int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    protected static int getInFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    protected static boolean isSaturated() {
+        return window.availablePermits() == 0;
+    }
+
+    // false for errors about the request itself (a malformed or too large
+    // document, a denied operation), sending it again fails the same way
+    protected static boolean isRetryable(Throwable ex) {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return !(ex instanceof InvalidArgumentsError || ex instanceof UnauthorizedError
+                || ex instanceof IllegalArgumentException);
+    }
+
+    protected static CompletableFuture<UpdateThingShadowResponse> updateShadowAsync(String thingName,
+            String shadowName, byte[] shadowPayload) {
+        return call(Operation.UPDATE_SHADOW, () -> {
+            UpdateThingShadowRequest updateThingShadowRequest = new UpdateThingShadowRequest();
+            updateThingShadowRequest.setThingName(thingName);
+            updateThingShadowRequest.setShadowName(shadowName);
+            updateThingShadowRequest.setPayload(shadowPayload);
+            return client().updateThingShadowAsync(updateThingShadowRequest);
+        });
+    }
+
+    protected static CompletableFuture<String> getShadowDataAsync(String thingName, String shadowName) {
+        return call(Operation.GET_SHADOW, () -> {
+            GetThingShadowRequest getThingShadowRequest = new GetThingShadowRequest();
+            getThingShadowRequest.setThingName(thingName);
+            getThingShadowRequest.setShadowName(shadowName);
+            return client().getThingShadowAsync(getThingShadowRequest);
+        }).thenApply(response -> new String(response.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    protected static CompletableFuture<PublishToTopicResponse> publishToIpcAsync(String topic, byte[] message) {
+        return call(Operation.PUBLISH_TO_TOPIC, () -> {
+            BinaryMessage binaryMessage = new BinaryMessage().withMessage(message);
+            PublishMessage publishMessage = new PublishMessage().withBinaryMessage(binaryMessage);
+            PublishToTopicRequest publishToTopicRequest = new PublishToTopicRequest().withTopic(topic)
+                    .withPublishMessage(publishMessage);
+            return client().publishToTopicAsync(publishToTopicRequest);
+        });
+    }
+
+    protected static CompletableFuture<PublishToIoTCoreResponse> publishToIoTCoreAsync(String topic, byte[] message,
+            QOS qos) {
+        return publishToIoTCoreAsync(topic, message, qos, false);
+    }
+
+    // priority publishes take a slot of the priority window
+    protected static CompletableFuture<PublishToIoTCoreResponse> publishToIoTCoreAsync(String topic, byte[] message,
+            QOS qos, boolean priority) {
+        return call(Operation.PUBLISH_TO_IOT_CORE, priority, () -> {
+            PublishToIoTCoreRequest publishRequest = new PublishToIoTCoreRequest();
+            publishRequest.setQos(qos);
+            publishRequest.setTopicName(topic);
+            publishRequest.withPayload(message);
+            return client().publishToIoTCoreAsync(publishRequest);
+        });
+    }
+
+    private static GreengrassCoreIPCClientV2 client() throws Exception {
+        return IpcUtils.getInstance().getIPCClient();
+    }
+
+    interface AsyncCall<T> {
+        CompletableFuture<T> call() throws Exception;
+    }
+
+    private static <T> CompletableFuture<T> call(Operation operation, AsyncCall<T> request) {
+        return call(operation, false, request);
+    }
+
+    private static <T> CompletableFuture<T> call(Operation operation, boolean priority, AsyncCall<T> request) {
+        Semaphore permits = priority ? priorityWindow : window;
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return failed(new RejectedExecutionException("IPC " + (priority ? "priority " : "")
+                        + "window full, " + operation + " rejected"));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // set interrupt flag
+            return failed(ex);
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = request.call();
+        } catch (Exception ex) {
+            permits.release();
+            failures.increment();
+            logger.error("{} failed {}", operation, ex.getMessage());
+            return failed(ex);
+        }
+
+        return future.whenComplete((response, ex) -> {
+            permits.release();
+            latencies.get(operation).record(System.nanoTime() - start);
+            if (ex != null) {
+                failures.increment();
+                logger.error("{} failed {}", operation, ex.getMessage());
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+}
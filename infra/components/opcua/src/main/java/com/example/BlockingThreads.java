@@ -0,0 +1,105 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Threads for code that blocks: the endpoint session loops and the workers of
+// the bounded stages (OPC UA writes, spool writes). With threads.virtual on a
+// Java 21 runtime they are virtual threads, so blocking costs no platform
+// thread and stages can run many workers. The virtual thread API is looked up
+// through reflection, the component still compiles for and runs on Java 8,
+// where (like with threads.virtual off) daemon platform threads are used.
+public final class BlockingThreads {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingThreads.class);
+
+    // Thread.ofVirtual(), Thread.Builder.name(String) and unstarted(Runnable),
+    // null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    private static volatile boolean virtual;
+
+    private BlockingThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    // config keys: virtual. Must be called before the first thread is created.
+    protected static void configure(JSONObject config) {
+        boolean requested = config.optBoolean("virtual", false);
+        if (requested && !isSupported()) {
+            logger.warn("threads.virtual needs Java 21, running on {} with platform threads",
+                    System.getProperty("java.version"));
+        }
+        virtual = requested && isSupported();
+        logger.info("Blocking work runs on {} threads", virtual ? "virtual" : "platform");
+    }
+
+    public static Thread newThread(String name, Runnable task) {
+        if (virtual) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("unable to create virtual thread " + name, e);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // threads named <prefix>-<n>
+    public static ThreadFactory factory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> newThread(prefix + "-" + count.getAndIncrement(), r);
+    }
+
+    // a thread per task when virtual, otherwise a pool of platformThreads
+    public static ExecutorService newExecutor(String prefix, int platformThreads) {
+        if (virtual) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, factory(prefix));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("unable to create virtual thread executor " + prefix, e);
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, platformThreads), factory(prefix));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A bounded queue with its own worker threads, between a thread that must not
+// block (Milo subscription delivery, IPC stream events, IPC completions) and
+// work that may. What happens when the queue is full is set per stage:
+// block waits up to blockTimeoutMs for a free slot and then drops the task,
+// dropOldest discards the longest waiting task, coalesce replaces the
+// waiting task of the same key (the same tag) and otherwise drops the oldest.
+// Depth, drops and the time tasks wait in the queue are logged for all stages
+// every statsIntervalMs of the "stages" section. Workers are BlockingThreads.
+public class BoundedStage implements Executor, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BoundedStage.class);
+
+    enum Overflow {
+        BLOCK, DROP_OLDEST, COALESCE;
+
+        static Overflow parse(String name) {
+            switch (name) {
+            case "block":
+                return BLOCK;
+            case "dropOldest":
+                return DROP_OLDEST;
+            case "coalesce":
+                return COALESCE;
+            default:
+                throw new IllegalArgumentException("unknown overflow policy " + name);
+            }
+        }
+    }
+
+    private static final List<BoundedStage> stages = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stage-stats");
+        t.setDaemon(true);
+        return t;
+    });
+    private static ScheduledFuture<?> statsTask;
+
+    private static final class Task {
+        final Object key;
+        final long enqueuedNanos = System.nanoTime();
+        Runnable runnable;
+
+        Task(Object key, Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+
+    private final String name;
+    private final int capacity;
+    private final Overflow overflow;
+    private final long blockTimeoutMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // guarded by lock
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private final Map<Object, Task> waitingByKey = new HashMap<>();
+    private boolean closed;
+    private int maxDepth;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    // config keys: capacity, workers, overflow ("block", "dropOldest" or
+    // "coalesce"), blockTimeoutMs
+    public BoundedStage(String name, JSONObject config, int defaultCapacity, String defaultOverflow) {
+        this(name, config.optInt("capacity", defaultCapacity), config.optInt("workers", 1),
+                Overflow.parse(config.optString("overflow", defaultOverflow)), config.optLong("blockTimeoutMs", 1000));
+    }
+
+    public BoundedStage(String name, int capacity, int workers, Overflow overflow, long blockTimeoutMs) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.overflow = overflow;
+        this.blockTimeoutMs = Math.max(0, blockTimeoutMs);
+        int threads = Math.max(1, workers);
+        for (int i = 0; i < threads; i++) {
+            BlockingThreads.newThread(threads == 1 ? name : name + "-" + i, this::work).start();
+        }
+        stages.add(this);
+        MetricsRegistry.gauge("stage." + name + ".depth", this::getDepth);
+        MetricsRegistry.gauge("stage." + name + ".dropped", this::getDroppedCount);
+        MetricsRegistry.gauge("stage." + name + ".coalesced", this::getCoalescedCount);
+        MetricsRegistry.register("stage." + name + ".wait", waitTime);
+    }
+
+    // config keys: statsIntervalMs, 0 turns the stats log off
+    protected static synchronized void configure(JSONObject config) {
+        long statsIntervalMs = config.optLong("statsIntervalMs", 60000);
+        if (statsTask != null) {
+            statsTask.cancel(false);
+            statsTask = null;
+        }
+        if (statsIntervalMs > 0) {
+            statsTask = statsExecutor.scheduleWithFixedDelay(BoundedStage::logStats, statsIntervalMs,
+                    statsIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void logStats() {
+        for (BoundedStage stage : stages) {
+            logger.info("Stage {}", stage);
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submit(null, task);
+    }
+
+    // false when the task was dropped. With the coalesce policy a full queue
+    // replaces the waiting task of the same key, which then runs in its place.
+    public boolean submit(Object key, Runnable task) {
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                Task waiting = overflow == Overflow.COALESCE && key != null ? waitingByKey.get(key) : null;
+                if (waiting != null) {
+                    waiting.runnable = task;
+                    coalesced.incrementAndGet();
+                    return true;
+                }
+                if (overflow != Overflow.BLOCK) {
+                    dropOldest();
+                } else if (!awaitRoom()) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            Task queued = new Task(key, task);
+            queue.addLast(queued);
+            if (key != null && overflow == Overflow.COALESCE) {
+                waitingByKey.put(key, queued);
+            }
+            maxDepth = Math.max(maxDepth, queue.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held, false when the queue is still full after blockTimeoutMs
+    private boolean awaitRoom() {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        try {
+            while (queue.size() >= capacity && !closed && remaining > 0) {
+                remaining = notFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return queue.size() < capacity && !closed;
+    }
+
+    private void dropOldest() {
+        Task oldest = queue.pollFirst();
+        if (oldest != null && oldest.key != null && waitingByKey.get(oldest.key) == oldest) {
+            waitingByKey.remove(oldest.key);
+        }
+        dropped.incrementAndGet();
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            Runnable runnable;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                task = queue.pollFirst();
+                if (task == null) {
+                    return; // closed and drained
+                }
+                if (task.key != null && waitingByKey.get(task.key) == task) {
+                    waitingByKey.remove(task.key);
+                }
+                runnable = task.runnable;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            waitTime.record(System.nanoTime() - task.enqueuedNanos);
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                failed.incrementAndGet();
+                logger.error("Stage {} task failed: {}", name, t.toString());
+            }
+            executed.incrementAndGet();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    // time between submit and the start of the task
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    // tasks already queued still run, later submits are dropped
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        stages.remove(this);
+        for (String metric : new String[] { "depth", "dropped", "coalesced", "wait" }) {
+            MetricsRegistry.remove("stage." + name + "." + metric);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s depth=%d/%d maxDepth=%d executed=%d dropped=%d coalesced=%d failed=%d wait: %s",
+                name, getDepth(), capacity, getMaxDepth(), getExecutedCount(), getDroppedCount(),
+                getCoalescedCount(), getFailedCount(), waitTime);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.toList;
+
+// Batched reads: the ReadValueIds are split into Read requests of at most
+// MaxNodesPerRead and up to maxConcurrentRequests of them are kept in flight,
+// a new request is sent as soon as one completes.
+public class BulkReader {
+    private static final Logger logger = LoggerFactory.getLogger(BulkReader.class);
+
+    private final OpcUaClient client;
+    private final int chunkSize;
+    private final int maxConcurrentRequests;
+
+    public BulkReader(OpcUaClient client, OperationLimits limits, int maxConcurrentRequests) {
+        this.client = client;
+        this.chunkSize = limits.getMaxNodesPerRead();
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    }
+
+    // Value attribute of every node, in the order of the given list
+    public CompletableFuture<Map<NodeId, DataValue>> readValues(List<NodeId> nodeIds) {
+        List<ReadValueId> readValueIds = new ArrayList<>(nodeIds.size());
+        for (NodeId nodeId : nodeIds) {
+            readValueIds.add(new ReadValueId(nodeId, AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE));
+        }
+
+        return read(readValueIds, TimestampsToReturn.Both).thenApply(values -> {
+            Map<NodeId, DataValue> result = new LinkedHashMap<>(nodeIds.size() * 2);
+            for (int i = 0; i < nodeIds.size(); i++) {
+                result.put(nodeIds.get(i), values.get(i));
+            }
+            return result;
+        });
+    }
+
+    // any attribute reads, results are returned in request order
+    public CompletableFuture<List<DataValue>> read(List<ReadValueId> readValueIds, TimestampsToReturn timestamps) {
+        int chunks = (readValueIds.size() + chunkSize - 1) / chunkSize;
+        DataValue[] results = new DataValue[readValueIds.size()];
+        if (chunks == 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        CompletableFuture<List<DataValue>> future = new CompletableFuture<>();
+        AtomicInteger nextChunk = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(chunks);
+        for (int i = 0; i < Math.min(maxConcurrentRequests, chunks); i++) {
+            readNextChunk(readValueIds, timestamps, results, nextChunk, remaining, future);
+        }
+        return future;
+    }
+
+    private void readNextChunk(List<ReadValueId> readValueIds, TimestampsToReturn timestamps, DataValue[] results,
+            AtomicInteger nextChunk, AtomicInteger remaining, CompletableFuture<List<DataValue>> future) {
+        int chunk = nextChunk.getAndIncrement();
+        int from = chunk * chunkSize;
+        if (from >= readValueIds.size() || future.isDone()) {
+            return;
+        }
+        int to = Math.min(readValueIds.size(), from + chunkSize);
+
+        client.read(0.0, timestamps, readValueIds.subList(from, to)).whenComplete((response, ex) -> {
+            if (ex != null) {
+                logger.error("Bulk read of {} nodes failed: {}", to - from, ex.getMessage());
+                future.completeExceptionally(ex);
+                return;
+            }
+            List<DataValue> values = toList(response.getResults());
+            for (int i = 0; i < values.size() && from + i < to; i++) {
+                results[from + i] = values.get(i);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                future.complete(Arrays.asList(results));
+            } else {
+                readNextChunk(readValueIds, timestamps, results, nextChunk, remaining, future);
+            }
+        });
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.List;
+
+// CBOR (RFC 8949) message, prefixed with the self-describe tag 55799:
+// {"g": group, "d": dictionaryId, "t": baseTime, "s": [[tagIndex, timeOffset, value], ...]}
+// timeOffset is milliseconds relative to baseTime, a sample whose status is
+// not Good gets the status code as fourth element. Tag names are resolved
+// with the dictionary published next to the telemetry topic. Doubles that
+// fit a float exactly are written as 4 byte floats.
+public class CborTelemetryEncoder implements TelemetryEncoder {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int SELF_DESCRIBE_TAG = 55799;
+
+    private final PayloadBufferPool pool;
+
+    public CborTelemetryEncoder(PayloadBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public byte[] encode(String thingName, String group, int dictionaryId, List<TelemetrySample> samples) {
+        PayloadBuffer buffer = pool.acquire();
+        try {
+            long baseTime = Long.MAX_VALUE;
+            for (TelemetrySample sample : samples) {
+                baseTime = Math.min(baseTime, sample.time);
+            }
+
+            writeHead(buffer, MAJOR_TAG, SELF_DESCRIBE_TAG);
+            writeHead(buffer, MAJOR_MAP, 4);
+            writeText(buffer, "g");
+            writeText(buffer, group);
+            writeText(buffer, "d");
+            writeInteger(buffer, dictionaryId & 0xffffffffL);
+            writeText(buffer, "t");
+            writeInteger(buffer, samples.isEmpty() ? 0 : baseTime);
+            writeText(buffer, "s");
+            writeHead(buffer, MAJOR_ARRAY, samples.size());
+            for (TelemetrySample sample : samples) {
+                writeHead(buffer, MAJOR_ARRAY, sample.status != 0L ? 4 : 3);
+                writeInteger(buffer, sample.tag.getIndex());
+                writeInteger(buffer, sample.time - baseTime);
+                writeValue(buffer, sample.value);
+                if (sample.status != 0L) {
+                    writeInteger(buffer, sample.status);
+                }
+            }
+            return buffer.toByteArray();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static void writeValue(PayloadBuffer buffer, Object value) {
+        switch (TelemetryEncoder.kindOf(value)) {
+            case KIND_NULL:
+                buffer.writeByte(0xf6);
+                break;
+            case KIND_BOOLEAN:
+                buffer.writeByte(((Boolean) value) ? 0xf5 : 0xf4);
+                break;
+            case KIND_INTEGER:
+                writeInteger(buffer, ((Number) value).longValue());
+                break;
+            case KIND_DOUBLE:
+                double d = ((Number) value).doubleValue();
+                float f = (float) d;
+                if (f == d || Double.isNaN(d)) {
+                    buffer.writeByte(0xfa);
+                    buffer.writeInt(Float.floatToIntBits(f));
+                } else {
+                    buffer.writeByte(0xfb);
+                    buffer.writeLong(Double.doubleToLongBits(d));
+                }
+                break;
+            default:
+                writeText(buffer, String.valueOf(value));
+                break;
+        }
+    }
+
+    private static void writeInteger(PayloadBuffer buffer, long value) {
+        if (value >= 0) {
+            writeHead(buffer, MAJOR_UNSIGNED, value);
+        } else {
+            writeHead(buffer, MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    private static void writeText(PayloadBuffer buffer, String text) {
+        writeHead(buffer, MAJOR_TEXT, PayloadBuffer.utf8Length(text));
+        buffer.writeUtf8(text);
+    }
+
+    // major type and argument, using the shortest form
+    private static void writeHead(PayloadBuffer buffer, int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            buffer.writeByte(type | (int) argument);
+        } else if (argument < 0x100) {
+            buffer.writeByte(type | 24);
+            buffer.writeByte((int) argument);
+        } else if (argument < 0x10000) {
+            buffer.writeByte(type | 25);
+            buffer.writeByte((int) (argument >>> 8));
+            buffer.writeByte((int) argument);
+        } else if (argument < 0x100000000L) {
+            buffer.writeByte(type | 26);
+            buffer.writeInt((int) argument);
+        } else {
+            buffer.writeByte(type | 27);
+            buffer.writeLong(argument);
+        }
+    }
+
+    @Override
+    public boolean usesDictionary() {
+        return true;
+    }
+}
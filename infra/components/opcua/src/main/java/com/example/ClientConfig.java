@@ -12,6 +12,7 @@ import org.eclipse.milo.opcua.sdk.client.api.identity.AnonymousProvider;
 import org.eclipse.milo.opcua.sdk.client.api.identity.IdentityProvider;
 import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
 import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.json.JSONObject;
 
 public interface ClientConfig {
 
@@ -31,6 +32,20 @@ public interface ClientConfig {
         return new AnonymousProvider();
     }
 
+    // "startup" settings of the runner, see ClientRunner.createClient
+    default JSONObject getStartupConfig() {
+        return new JSONObject();
+    }
+
+    // "reconnect" backoff, also used by the runner to restart a failed client
+    default JSONObject getReconnectConfig() {
+        return new JSONObject();
+    }
+
+    // called with the built-in simulation server the runner connects to, before run
+    default void onSimulationServer(SimulationServer server) {
+    }
+
     void run(OpcUaClient client, CompletableFuture<OpcUaClient> future) throws Exception;
 
 }
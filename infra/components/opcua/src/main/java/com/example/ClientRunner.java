@@ -10,15 +10,26 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Security;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.config.OpcUaClientConfig;
+import org.eclipse.milo.opcua.stack.client.DiscoveryClient;
 import org.eclipse.milo.opcua.stack.client.security.DefaultClientCertificateValidator;
 import org.eclipse.milo.opcua.stack.core.Stack;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
 import org.eclipse.milo.opcua.stack.core.security.DefaultTrustListManager;
 import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.eclipse.milo.opcua.stack.core.util.EndpointUtil;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,26 +43,69 @@ public class ClientRunner {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientRunner.class);
 
-    private final CompletableFuture<OpcUaClient> future = new CompletableFuture<>();
+    // clients of all endpoints share the Stack resources, see stop
+    private static final AtomicInteger running = new AtomicInteger();
+
+    private static final LongAdder restarts = MetricsRegistry.counter("opcua.clientRestarts");
+    // how long a stopping client gets to close what it opened and disconnect
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+    // loaded once and shared by the runners of all endpoints
+    private CompletableFuture<KeyStoreLoader> keys;
 
     private DefaultTrustListManager trustListManager;
 
     private final ClientConfig clientConfig;
     private final String opcuaEndpointUrl;
+    private SimulationServer simulationServer;
 
     public ClientRunner(ClientConfig clientConfig, String opcuaEndpointUrl) throws Exception {
-        this(clientConfig, opcuaEndpointUrl, false);
+        this(clientConfig, opcuaEndpointUrl, null, loadKeys());
     }
 
-    public ClientRunner(ClientConfig clientConfig, String opcuaEndpointUrl, boolean serverRequired) throws Exception {
+    // simulationServer is started by the caller and may be shared with other
+    // runners, it is closed once the last of them stops
+    public ClientRunner(ClientConfig clientConfig, String opcuaEndpointUrl, SimulationServer simulationServer,
+            CompletableFuture<KeyStoreLoader> keys) throws Exception {
         this.clientConfig = clientConfig;
-        this.opcuaEndpointUrl = opcuaEndpointUrl;
-        logger.info("Ignoring built in server. User has requested: {}", serverRequired);
+        this.keys = keys;
+        if (simulationServer != null) {
+            // the client connects to the built-in simulation server instead
+            this.simulationServer = simulationServer.retain();
+            this.opcuaEndpointUrl = simulationServer.getEndpointUrl();
+            logger.info("Using built in simulation server, ignoring endpoint {}", opcuaEndpointUrl);
+            clientConfig.onSimulationServer(simulationServer);
+        } else {
+            this.opcuaEndpointUrl = opcuaEndpointUrl;
+        }
+        running.incrementAndGet();
+    }
+
+    private static Path securityDir() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "client", "security");
+    }
+
+    // Loads (on the first start generates) the client keys in the background.
+    // The future is handed to the runners of all endpoints, so the key store
+    // is only read and written once.
+    static CompletableFuture<KeyStoreLoader> loadKeys() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Path securityTempDir = securityDir();
+                Files.createDirectories(securityTempDir);
+                logger.info("security dir: {}", securityTempDir.toAbsolutePath());
+                return new KeyStoreLoader().load(securityTempDir);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
+    // Loading the client keys and discovering the endpoint run at the same
+    // time. With startup.cacheEndpoint the endpoint of the last start is used
+    // right away and discovery only checks it in the background.
     private OpcUaClient createClient() throws Exception {
         try {
-            Path securityTempDir = Paths.get(System.getProperty("java.io.tmpdir"), "client", "security");
+            Path securityTempDir = securityDir();
             Files.createDirectories(securityTempDir);
             if (!Files.exists(securityTempDir)) {
                 throw new Exception("unable to create security dir: " + securityTempDir);
@@ -59,111 +113,205 @@ public class ClientRunner {
 
             File pkiDir = securityTempDir.resolve("pki").toFile();
 
-            logger.info("security dir: {}", securityTempDir.toAbsolutePath());
             logger.info("security pki dir: {}", pkiDir.getAbsolutePath());
 
             logger.info("Client Endpoint URL: {} ", this.opcuaEndpointUrl);
 
-            KeyStoreLoader loader = new KeyStoreLoader().load(securityTempDir);
+            if (keys.isCompletedExceptionally()) {
+                // a failed load is tried again
+                keys = loadKeys();
+            }
+            CompletableFuture<EndpointDescription> endpoint = selectEndpoint();
 
             trustListManager = new DefaultTrustListManager(pkiDir);
 
             DefaultClientCertificateValidator certificateValidator = new DefaultClientCertificateValidator(
                     trustListManager);
 
-            return OpcUaClient.create(
-                    this.opcuaEndpointUrl,
-                    endpoints -> endpoints.stream()
-                            .filter(clientConfig.endpointFilter())
-                            .findFirst(),
-                    configBuilder -> configBuilder
-                            .setApplicationName(LocalizedText.english("eclipse milo opc-ua client"))
-                            .setApplicationUri("urn:eclipse:milo:example:client")
-                            .setKeyPair(loader.getClientKeyPair())
-                            .setCertificate(loader.getClientCertificate())
-                            .setCertificateChain(loader.getClientCertificateChain())
-                            .setCertificateValidator(certificateValidator)
-                            .setIdentityProvider(clientConfig.getIdentityProvider())
-                            .setRequestTimeout(uint(5000))
-                            .build());
+            KeyStoreLoader loader = keys.get();
+            OpcUaClientConfig config = OpcUaClientConfig.builder()
+                    .setEndpoint(endpoint.get())
+                    .setApplicationName(LocalizedText.english("eclipse milo opc-ua client"))
+                    .setApplicationUri("urn:eclipse:milo:example:client")
+                    .setKeyPair(loader.getClientKeyPair())
+                    .setCertificate(loader.getClientCertificate())
+                    .setCertificateChain(loader.getClientCertificateChain())
+                    .setCertificateValidator(certificateValidator)
+                    .setIdentityProvider(clientConfig.getIdentityProvider())
+                    .setRequestTimeout(uint(5000))
+                    .build();
+            OpcUaClient client = OpcUaClient.create(config);
+            StartupTimer.mark("client created");
+            return client;
         } catch (Exception e) {
             logger.error("Could not load keys {}", e.toString());
             return null;
         }
     }
 
+    private CompletableFuture<EndpointDescription> selectEndpoint() {
+        JSONObject startup = clientConfig.getStartupConfig();
+        EndpointCache cache = startup.optBoolean("cacheEndpoint", false)
+                ? new EndpointCache(startup.optString("endpointCacheFile", "endpoint-cache.json"), opcuaEndpointUrl)
+                : null;
+        CompletableFuture<EndpointDescription> discovered = discoverEndpoint();
+
+        EndpointDescription cached = cache != null ? cache.load() : null;
+        if (cached == null) {
+            return cache == null ? discovered : discovered.thenApply(endpoint -> {
+                cache.store(endpoint);
+                return endpoint;
+            });
+        }
+
+        logger.info("Using cached endpoint {} {}", cached.getEndpointUrl(), cached.getSecurityPolicyUri());
+        discovered.whenComplete((endpoint, ex) -> {
+            if (ex != null) {
+                // the session reports an unreachable server itself
+                logger.warn("Unable to check cached endpoint: {}", ex.getMessage());
+            } else if (!EndpointCache.sameEndpoint(cached, endpoint)) {
+                // the session keeps its endpoint as long as the server accepts
+                // it, the next connect uses the new one
+                cache.store(endpoint);
+                logger.info("Endpoint of {} changed to {} {}, used from the next connect", opcuaEndpointUrl,
+                        endpoint.getEndpointUrl(), endpoint.getSecurityPolicyUri());
+            }
+        });
+        return CompletableFuture.completedFuture(cached);
+    }
+
+    // what OpcUaClient.create(url, ...) does: first endpoint passing the filter,
+    // with the host of the configured url
+    private CompletableFuture<EndpointDescription> discoverEndpoint() {
+        return DiscoveryClient.getEndpoints(opcuaEndpointUrl).thenApply(endpoints -> endpoints.stream()
+                .filter(clientConfig.endpointFilter())
+                .findFirst()
+                .map(e -> EndpointUtil.updateUrl(e, EndpointUtil.getHost(opcuaEndpointUrl)))
+                .orElseThrow(() -> new CompletionException(new UaException(StatusCodes.Bad_ConfigurationError,
+                        "no desired endpoints returned"))));
+    }
+
+    // Runs the client until the runner thread is interrupted. A client that
+    // fails, before or after it connected, is closed and created again after
+    // the "reconnect" backoff while the clients of other endpoints keep running.
     public void run() {
-        logger.info("Creating OPC-UA Client");
+        JSONObject reconnect = clientConfig.getReconnectConfig();
+        long initialDelayMs = Math.max(1, reconnect.optLong("initialDelayMs", 500));
+        long maxDelayMs = Math.max(initialDelayMs, reconnect.optLong("maxDelayMs", 30000));
+        double multiplier = Math.max(1.0, reconnect.optDouble("multiplier", 2.0));
+        long delay = initialDelayMs;
         try {
-            OpcUaClient client = createClient();
-
-            // For the sake of the examples we will create mutual trust between the client
-            // and
-            // server so we can run them with security enabled by default.
-            // If the client example is pointed at another server then the rejected
-            // certificate
-            // will need to be moved from the security "pki/rejected" directory to the
-            // "pki/trusted/certs" directory.
-
-            // Make the example server trust the example client certificate by default.
-            // client.getConfig().getCertificate().ifPresent(
-            // certificate ->
-            // exampleServer.getServer().getConfig().getTrustListManager().addTrustedCertificate(certificate)
-            // );
-
-            // // Make the example client trust the example server certificate by default.
-            // exampleServer.getServer().getConfig().getCertificateManager().getCertificates().forEach(
-            // certificate ->
-            // trustListManager.addTrustedCertificate(certificate)
-            // );
-
-            future.whenCompleteAsync((c, ex) -> {
-                if (ex != null) {
-
-                    logger.error("Error running example: {}", ex.getMessage(), ex);
+            while (true) {
+                long started = System.nanoTime();
+                runClient();
+                // a client that worked for a while starts the backoff over
+                if (System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(maxDelayMs)) {
+                    delay = initialDelayMs;
                 }
+                restarts.increment();
+                logger.error("OPC-UA client for {} stopped, restarting in {}ms", this.opcuaEndpointUrl, delay);
+                Thread.sleep(delay);
+                delay = Math.min(maxDelayMs, (long) (delay * multiplier));
+            }
+        } catch (InterruptedException e) {
+            logger.info("OPC-UA client for {} interrupted", this.opcuaEndpointUrl);
+        }
+        stop();
+    }
 
-                try {
-                    client.disconnect().get();
-
-                    Stack.releaseSharedResources();
-                } catch (InterruptedException | ExecutionException e) {
-                    logger.error("Error disconnecting: {}", e.getMessage(), e);
-                }
+    // one client, from creating it until it failed
+    private void runClient() throws InterruptedException {
+        logger.info("Creating OPC-UA Client");
+        OpcUaClient client = null;
+        try {
+            client = createClient();
+        } catch (Throwable t) {
+            logger.error("Error getting client for endpoint {}  -  {}", this.opcuaEndpointUrl, t.toString());
+        }
 
-                try {
-                    Thread.sleep(1000);
-                    System.exit(0);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            });
+        // For the sake of the examples we will create mutual trust between the client
+        // and
+        // server so we can run them with security enabled by default.
+        // If the client example is pointed at another server then the rejected
+        // certificate
+        // will need to be moved from the security "pki/rejected" directory to the
+        // "pki/trusted/certs" directory.
+
+        // Make the example server trust the example client certificate by default.
+        // client.getConfig().getCertificate().ifPresent(
+        // certificate ->
+        // exampleServer.getServer().getConfig().getTrustListManager().addTrustedCertificate(certificate)
+        // );
+
+        // // Make the example client trust the example server certificate by default.
+        // exampleServer.getServer().getConfig().getCertificateManager().getCertificates().forEach(
+        // certificate ->
+        // trustListManager.addTrustedCertificate(certificate)
+        // );
+
+        if (client == null) {
+            logger.error("no client for endpoint {}", this.opcuaEndpointUrl);
+            return;
+        }
 
+        // the client runs on a thread of its own, interrupting it closes the
+        // subscriptions, poller and pipeline it opened
+        OpcUaClient runClient = client;
+        CompletableFuture<OpcUaClient> future = new CompletableFuture<>();
+        Thread runThread = BlockingThreads.newThread(Thread.currentThread().getName() + "-client", () -> {
             try {
-                clientConfig.run(client, future);
-                future.get(15, TimeUnit.SECONDS);
+                clientConfig.run(runClient, future);
             } catch (Throwable t) {
-                logger.error("Error running client example: {}", t.toString());
                 future.completeExceptionally(t);
+            } finally {
+                future.complete(runClient);
+            }
+        });
+        runThread.start();
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.error("Error running client for {}: {}", this.opcuaEndpointUrl, cause.toString(), cause);
+        } finally {
+            runThread.interrupt();
+            runThread.join(CLOSE_TIMEOUT_MS);
+            if (runThread.isAlive()) {
+                logger.warn("Client thread of {} still running after {}ms", this.opcuaEndpointUrl, CLOSE_TIMEOUT_MS);
             }
-        } catch (Throwable t) {
-            logger.error("Error getting client for endpoint {}  -  {}", this.opcuaEndpointUrl, t.toString());
-
-            future.completeExceptionally(t);
-
             try {
-                Thread.sleep(1000);
-                System.exit(0);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                client.disconnect().get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                logger.error("Error disconnecting: {}", e.getMessage(), e);
             }
         }
+    }
 
-        // try {
-        // Thread.sleep(999_999_999);
-        // } catch (InterruptedException e) {
-        // e.printStackTrace();
-        // }
+    // other endpoints keep running, once the last client stopped the JVM exits
+    // and Greengrass restarts the component
+    private void stop() {
+        try {
+            if (simulationServer != null && simulationServer.release()) {
+                simulationServer.close();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Error closing the simulation server: {}", e.getMessage(), e);
+        }
+
+        int remaining = running.decrementAndGet();
+        if (remaining > 0) {
+            logger.error("OPC-UA client for {} stopped, {} clients still running", this.opcuaEndpointUrl,
+                    remaining);
+            return;
+        }
+
+        Stack.releaseSharedResources();
+        try {
+            Thread.sleep(1000);
+            System.exit(0);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
 }
\ No newline at end of file
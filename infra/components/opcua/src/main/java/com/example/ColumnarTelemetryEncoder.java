@@ -0,0 +1,162 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+// Column oriented binary batch. Values of the same type are stored next to
+// each other and timestamps as deltas, which is what makes the optional
+// deflate compression effective on repetitive plant data.
+//
+// header:  byte 'O' | byte version (1) | byte flags (bit 0: body is deflated)
+// body:    varint dictionaryId | varint groupLength | group (UTF-8) | varint count
+//          | zigzag baseTime
+//          | count x varint tagIndex
+//          | count x zigzag time delta to the previous sample (the first to baseTime)
+//          | count x byte kind (TelemetryEncoder.KIND_*)
+//          | booleans, 8 per byte, least significant bit first
+//          | integers as zigzag varints
+//          | doubles as 8 byte IEEE 754, big endian
+//          | strings as varint length | UTF-8
+//          | varint statusCount | statusCount x (varint sampleIndex | varint statusCode)
+public class ColumnarTelemetryEncoder implements TelemetryEncoder {
+    public static final int MAGIC = 'O';
+    public static final int VERSION = 1;
+    public static final int FLAG_DEFLATE = 1;
+
+    private final PayloadBufferPool pool;
+    private final Deflater deflater;
+
+    // compression: none or deflate
+    public ColumnarTelemetryEncoder(PayloadBufferPool pool, String compression) {
+        this.pool = pool;
+        switch (compression.toLowerCase()) {
+            case "none":
+                deflater = null;
+                break;
+            case "deflate":
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown telemetry compression: " + compression);
+        }
+    }
+
+    @Override
+    public byte[] encode(String thingName, String group, int dictionaryId, List<TelemetrySample> samples) {
+        PayloadBuffer body = pool.acquire();
+        PayloadBuffer message = pool.acquire();
+        try {
+            writeBody(body, group, dictionaryId, samples);
+
+            message.writeByte(MAGIC);
+            message.writeByte(VERSION);
+            if (deflater == null) {
+                message.writeByte(0);
+                message.writeBytes(body.array(), 0, body.size());
+            } else {
+                message.writeByte(FLAG_DEFLATE);
+                deflate(body, message);
+            }
+            return message.toByteArray();
+        } finally {
+            pool.release(body);
+            pool.release(message);
+        }
+    }
+
+    private static void writeBody(PayloadBuffer body, String group, int dictionaryId,
+            List<TelemetrySample> samples) {
+        int count = samples.size();
+        body.writeVarint(dictionaryId & 0xffffffffL);
+        body.writeVarint(PayloadBuffer.utf8Length(group));
+        body.writeUtf8(group);
+        body.writeVarint(count);
+        long previous = count > 0 ? samples.get(0).time : 0L;
+        body.writeZigZag(previous);
+
+        for (int i = 0; i < count; i++) {
+            body.writeVarint(samples.get(i).tag.getIndex());
+        }
+        for (int i = 0; i < count; i++) {
+            long time = samples.get(i).time;
+            body.writeZigZag(time - previous);
+            previous = time;
+        }
+        int statusCount = 0;
+        for (int i = 0; i < count; i++) {
+            body.writeByte(TelemetryEncoder.kindOf(samples.get(i).value));
+            if (samples.get(i).status != 0L) {
+                statusCount++;
+            }
+        }
+
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < count; i++) {
+            Object value = samples.get(i).value;
+            if (TelemetryEncoder.kindOf(value) == KIND_BOOLEAN) {
+                if ((Boolean) value) {
+                    bits |= 1 << bitCount;
+                }
+                if (++bitCount == 8) {
+                    body.writeByte(bits);
+                    bits = 0;
+                    bitCount = 0;
+                }
+            }
+        }
+        if (bitCount > 0) {
+            body.writeByte(bits);
+        }
+        for (int i = 0; i < count; i++) {
+            Object value = samples.get(i).value;
+            if (TelemetryEncoder.kindOf(value) == KIND_INTEGER) {
+                body.writeZigZag(((Number) value).longValue());
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Object value = samples.get(i).value;
+            if (TelemetryEncoder.kindOf(value) == KIND_DOUBLE) {
+                body.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Object value = samples.get(i).value;
+            if (TelemetryEncoder.kindOf(value) == KIND_STRING) {
+                String s = String.valueOf(value);
+                body.writeVarint(PayloadBuffer.utf8Length(s));
+                body.writeUtf8(s);
+            }
+        }
+
+        body.writeVarint(statusCount);
+        for (int i = 0; i < count && statusCount > 0; i++) {
+            long status = samples.get(i).status;
+            if (status != 0L) {
+                body.writeVarint(i);
+                body.writeVarint(status);
+            }
+        }
+    }
+
+    // raw deflate (no zlib header), written straight into the pooled buffer
+    private void deflate(PayloadBuffer body, PayloadBuffer message) {
+        deflater.reset();
+        deflater.setInput(body.array(), 0, body.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            message.ensureCapacity(message.size() + Math.max(256, body.size() / 4));
+            message.advance(deflater.deflate(message.array(), message.size(),
+                    message.capacity() - message.size()));
+        }
+    }
+
+    @Override
+    public boolean usesDictionary() {
+        return true;
+    }
+}
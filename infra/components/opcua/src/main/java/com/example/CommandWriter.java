@@ -0,0 +1,272 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.toList;
+
+// Cloud to device write path. The desired values are taken straight from the
+// shadow delta document, mapped to the NodeId and DataType the catalog holds
+// for each tag and written with one Write request (split only when the server
+// MaxNodesPerWrite limit requires it).
+public class CommandWriter {
+    private static final Logger logger = LoggerFactory.getLogger(CommandWriter.class);
+
+    private static final LatencyHistogram writeRoundTrip = MetricsRegistry.histogram("opcua.writeRoundTrip");
+    private static final LongAdder writeFailures = MetricsRegistry.counter("opcua.writeFailures");
+
+    private final OpcUaClient client;
+    private final TagCatalog catalog;
+    private final int chunkSize;
+    // key of the desired values in the delta state
+    private final String section;
+
+    public CommandWriter(OpcUaClient client, TagCatalog catalog, OperationLimits limits) {
+        this(client, catalog, limits, ShadowDocumentWriter.DEFAULT_SECTION);
+    }
+
+    public CommandWriter(OpcUaClient client, TagCatalog catalog, OperationLimits limits, String section) {
+        this.client = client;
+        this.catalog = catalog;
+        this.chunkSize = limits.getMaxNodesPerWrite();
+        this.section = section;
+    }
+
+    // reads the DataType attribute of the catalog tags whose type isn't known
+    // yet from the browse or the simulation, with batched reads
+    public CompletableFuture<Void> loadDataTypes(BulkReader bulkReader) {
+        List<TagDefinition> missing = catalog.getTagsWithoutDataType();
+        if (missing.isEmpty()) {
+            logger.info("Data types of all {} tags known from the catalog", catalog.size());
+            return CompletableFuture.completedFuture(null);
+        }
+        List<ReadValueId> readValueIds = new ArrayList<>(missing.size());
+        for (TagDefinition tag : missing) {
+            readValueIds.add(new ReadValueId(tag.getNodeId(), AttributeId.DataType.uid(), null,
+                    QualifiedName.NULL_VALUE));
+        }
+
+        return bulkReader.read(readValueIds, TimestampsToReturn.Neither).thenAccept(values -> {
+            int loaded = 0;
+            for (int i = 0; i < values.size(); i++) {
+                DataValue value = values.get(i);
+                if (value != null && value.getValue().getValue() instanceof NodeId) {
+                    BuiltinDataType type = BuiltinDataType.fromNodeId((NodeId) value.getValue().getValue());
+                    if (type != null) {
+                        catalog.setDataType(missing.get(i), type);
+                        loaded++;
+                    }
+                }
+            }
+            logger.info("Read data types for {} of {} tags, {} known from the catalog", loaded, missing.size(),
+                    catalog.size() - missing.size());
+        });
+    }
+
+    // delta document: {"state": {"opcua": {"TurbineStatus": true, ...}}, ...},
+    // with several endpoints the section is the endpoint name
+    public CompletableFuture<List<StatusCode>> writeDelta(String deltaPayload) {
+        List<WriteValue> writeValues = toWriteValues(deltaPayload);
+        if (writeValues.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return write(writeValues);
+    }
+
+    // desired values of known catalog tags, converted to their DataType
+    public List<WriteValue> toWriteValues(String deltaPayload) {
+        JSONObject state = new JSONObject(deltaPayload).optJSONObject("state");
+        JSONObject desired = state != null ? state.optJSONObject(section) : null;
+        if (desired == null || desired.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<WriteValue> writeValues = new ArrayList<>(desired.length());
+        for (String key : desired.keySet()) {
+            TagDefinition tag = catalog.getByName(key);
+            if (tag == null) {
+                logger.warn("Ignoring desired value for unknown tag {}", key);
+                continue;
+            }
+            try {
+                // don't write status or timestamps
+                Variant variant = toVariant(desired.get(key), catalog.getDataType(tag));
+                writeValues.add(new WriteValue(tag.getNodeId(), AttributeId.Value.uid(), null,
+                        DataValue.valueOnly(variant)));
+            } catch (IllegalArgumentException e) {
+                logger.error("Unable to convert desired value for {}: {}", key, e.getMessage());
+            }
+        }
+        return writeValues;
+    }
+
+    public CompletableFuture<List<StatusCode>> write(List<WriteValue> writeValues) {
+        List<CompletableFuture<List<StatusCode>>> futures = new ArrayList<>();
+        for (int i = 0; i < writeValues.size(); i += chunkSize) {
+            List<WriteValue> chunk = writeValues.subList(i, Math.min(writeValues.size(), i + chunkSize));
+            long start = System.nanoTime();
+            futures.add(client.write(chunk).thenApply(response -> {
+                writeRoundTrip.record(System.nanoTime() - start);
+                List<StatusCode> results = toList(response.getResults());
+                for (int j = 0; j < results.size(); j++) {
+                    if (results.get(j).isGood()) {
+                        logger.debug("write {} Status={}", chunk.get(j).getNodeId(), results.get(j));
+                    } else {
+                        writeFailures.increment();
+                        logger.error("write {} failed Status={}", chunk.get(j).getNodeId(), results.get(j));
+                    }
+                }
+                return results;
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<StatusCode> results = new ArrayList<>(writeValues.size());
+            for (CompletableFuture<List<StatusCode>> future : futures) {
+                results.addAll(future.join());
+            }
+            return results;
+        });
+    }
+
+    private static final BigInteger UINT64_MAX = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    // JSON value -> Variant of the variable's builtin type. Without a cached type
+    // the natural JSON type is written and the server decides. Values an
+    // integer or Float variable can't hold exactly (fractions, out of range)
+    // and strings other than "true"/"false" for a Boolean are refused instead
+    // of being truncated, wrapped or read as false.
+    static Variant toVariant(Object value, BuiltinDataType type) {
+        if (value == JSONObject.NULL) {
+            return Variant.NULL_VALUE;
+        }
+        if (type == null) {
+            return new Variant(value instanceof Number && !(value instanceof Integer || value instanceof Long)
+                    ? ((Number) value).doubleValue()
+                    : value);
+        }
+
+        switch (type) {
+            case Boolean:
+                if (value instanceof Boolean) {
+                    return new Variant(value);
+                }
+                if (value instanceof Number) {
+                    return new Variant(((Number) value).doubleValue() != 0);
+                }
+                // only "true" and "false", parseBoolean would turn "on" or "1" into false
+                String text = value.toString().trim();
+                if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                    return new Variant(java.lang.Boolean.parseBoolean(text));
+                }
+                throw new IllegalArgumentException("not a boolean: " + value);
+            case SByte:
+                return new Variant((byte) integer(value, type, Byte.MIN_VALUE, Byte.MAX_VALUE));
+            case Byte:
+                return new Variant(ubyte(integer(value, type, 0, 0xff)));
+            case Int16:
+                return new Variant((short) integer(value, type, Short.MIN_VALUE, Short.MAX_VALUE));
+            case UInt16:
+                return new Variant(ushort((int) integer(value, type, 0, 0xffff)));
+            case Int32:
+                return new Variant((int) integer(value, type, Integer.MIN_VALUE, Integer.MAX_VALUE));
+            case UInt32:
+                return new Variant(uint(integer(value, type, 0, 0xffffffffL)));
+            case Int64:
+                return new Variant(integer(value, type, Long.MIN_VALUE, Long.MAX_VALUE));
+            case UInt64:
+                return new Variant(ulong(integer(value, type, BigInteger.ZERO, UINT64_MAX)));
+            case Float: {
+                double d = number(value).doubleValue();
+                if (Math.abs(d) > Float.MAX_VALUE) {
+                    throw new IllegalArgumentException(value + " is out of the range of " + type);
+                }
+                return new Variant((float) d);
+            }
+            case Double:
+                return new Variant(number(value).doubleValue());
+            case String:
+                return new Variant(value.toString());
+            default:
+                throw new IllegalArgumentException("unsupported data type " + type);
+        }
+    }
+
+    private static long integer(Object value, BuiltinDataType type, long min, long max) {
+        return integer(value, type, BigInteger.valueOf(min), BigInteger.valueOf(max)).longValue();
+    }
+
+    // the exact integer of the value, a fraction or a value outside min..max
+    // is an IllegalArgumentException
+    private static BigInteger integer(Object value, BuiltinDataType type, BigInteger min, BigInteger max) {
+        BigDecimal decimal;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            decimal = BigDecimal.valueOf(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            decimal = ((Boolean) value) ? BigDecimal.ONE : BigDecimal.ZERO;
+        } else {
+            try {
+                decimal = new BigDecimal(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("not a number: " + value);
+            }
+        }
+        // digits before the point, checked first so 1e999999999 isn't expanded
+        if (decimal.precision() - decimal.scale() > 20) {
+            throw new IllegalArgumentException(value + " is out of the range of " + type);
+        }
+        BigInteger integer;
+        try {
+            integer = decimal.toBigIntegerExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(value + " is not an integer, " + type + " expected");
+        }
+        if (integer.compareTo(min) < 0 || integer.compareTo(max) > 0) {
+            throw new IllegalArgumentException(value + " is out of the range of " + type);
+        }
+        return integer;
+    }
+
+    private static Number number(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + value);
+        }
+    }
+}
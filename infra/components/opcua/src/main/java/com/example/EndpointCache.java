@@ -0,0 +1,114 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Objects;
+
+import org.eclipse.milo.opcua.stack.core.NamespaceTable;
+import org.eclipse.milo.opcua.stack.core.channel.EncodingLimits;
+import org.eclipse.milo.opcua.stack.core.serialization.SerializationContext;
+import org.eclipse.milo.opcua.stack.core.types.DataTypeManager;
+import org.eclipse.milo.opcua.stack.core.types.OpcUaDataTypeManager;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.structured.EndpointDescription;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The endpoint selected on the last start, so the next start can open the
+// session right away instead of first connecting for GetEndpoints. The
+// EndpointDescription is kept in its binary encoding, together with the
+// server URL it was discovered from.
+public class EndpointCache {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointCache.class);
+
+    // EndpointDescription only uses namespace 0 types, no session needed
+    private static final SerializationContext CONTEXT = new SerializationContext() {
+        private final NamespaceTable namespaceTable = new NamespaceTable();
+
+        @Override
+        public EncodingLimits getEncodingLimits() {
+            return EncodingLimits.DEFAULT;
+        }
+
+        @Override
+        public NamespaceTable getNamespaceTable() {
+            return namespaceTable;
+        }
+
+        @Override
+        public DataTypeManager getDataTypeManager() {
+            return OpcUaDataTypeManager.getInstance();
+        }
+    };
+
+    private final Path file;
+    private final String url;
+
+    public EndpointCache(String file, String url) {
+        this.file = Paths.get(file);
+        this.url = url;
+    }
+
+    // null when there is no cache for this url or it cannot be read
+    public EndpointDescription load() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            JSONObject cache = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            if (!url.equals(cache.optString("url"))) {
+                logger.info("Endpoint cache {} was written for {}, discovering endpoints", file,
+                        cache.optString("url"));
+                return null;
+            }
+            ExtensionObject encoded = new ExtensionObject(
+                    ByteString.of(Base64.getDecoder().decode(cache.getString("endpoint"))),
+                    NodeId.parse(cache.getString("encodingId")));
+            return (EndpointDescription) encoded.decode(CONTEXT);
+        } catch (Exception e) {
+            logger.error("Unable to read endpoint cache {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    // written to a temporary file first, a crash never leaves a partial cache
+    public void store(EndpointDescription endpoint) {
+        try {
+            ExtensionObject encoded = ExtensionObject.encode(CONTEXT, endpoint);
+            JSONObject cache = new JSONObject()
+                    .put("url", url)
+                    .put("encodingId", encoded.getEncodingId().toParseableString())
+                    .put("endpoint", Base64.getEncoder()
+                            .encodeToString(((ByteString) encoded.getBody()).bytesOrEmpty()));
+
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, "endpoint", ".tmp");
+            Files.write(temp, cache.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.error("Unable to write endpoint cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    // whether a session opened with the cached endpoint is the one discovery
+    // would pick: same url, security and server certificate
+    public static boolean sameEndpoint(EndpointDescription cached, EndpointDescription discovered) {
+        return Objects.equals(cached.getEndpointUrl(), discovered.getEndpointUrl())
+                && Objects.equals(cached.getSecurityPolicyUri(), discovered.getSecurityPolicyUri())
+                && cached.getSecurityMode() == discovered.getSecurityMode()
+                && Objects.equals(cached.getServerCertificate(), discovered.getServerCertificate());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.model.BinaryMessage;
+import software.amazon.awssdk.aws.greengrass.model.SubscriptionResponseMessage;
+
+// Runs one OPC UA client per configured endpoint, so one component serves all
+// PLCs of a line. Every endpoint has its own Opcua pipeline with its own tag
+// catalog, subscriptions and section of the "opc" shadow, keyed by the
+// endpoint name. The Milo clients share the Stack event loop, executor and
+// timer. Endpoints connect, read and subscribe on their own threads in
+// parallel. Configured by the "endpoints" list:
+// [{"name": "press1", "url": "opc.tcp://10.0.1.5:4840", "tagCatalog": {...}}, ...]
+// Any other key of an entry replaces the top level section of the same name,
+// spool and ipc stay shared. Without the list the endpoint given as args[0]
+// is used with the top level configuration and reported under "opcua".
+public class EndpointPool {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointPool.class);
+
+    // the name is a shadow key and a topic level
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static class Endpoint {
+        final String name;
+        final String url;
+        final GatewayConfig config;
+        final Opcua opcua;
+
+        Endpoint(String name, String url, GatewayConfig config, StoreAndForward storeAndForward) {
+            this.name = name;
+            this.url = url;
+            this.config = config;
+            this.opcua = new Opcua(config, storeAndForward);
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    public EndpointPool(GatewayConfig config, String defaultUrl, StoreAndForward storeAndForward) {
+        JSONArray list = config.getRoot().optJSONArray("endpoints");
+        if (list == null || list.isEmpty()) {
+            endpoints.add(new Endpoint(ShadowDocumentWriter.DEFAULT_SECTION, defaultUrl, config, storeAndForward));
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < list.length(); i++) {
+            JSONObject entry = list.getJSONObject(i);
+            String name = entry.optString("name", "");
+            if (!NAME.matcher(name).matches() || !names.add(name)) {
+                throw new IllegalArgumentException("endpoint " + i + " needs a unique name of letters, digits, "
+                        + "'_' or '-': " + name);
+            }
+            endpoints.add(new Endpoint(name, entry.getString("url"), config.forEndpoint(entry), storeAndForward));
+        }
+        logger.info("Configured {} OPC UA endpoints", endpoints.size());
+    }
+
+    // creates all runners before any client starts, so an early failure of one
+    // endpoint doesn't end the component while others are still starting
+    public void start() throws Exception {
+        List<ClientRunner> runners = new ArrayList<>(endpoints.size());
+        // the clients share one key store, loaded or generated once
+        CompletableFuture<KeyStoreLoader> keys = ClientRunner.loadKeys();
+        // a port is bound once, endpoints simulating on the same port share the
+        // server started with the settings of the first of them
+        Map<Integer, SimulationServer> simulations = new HashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            JSONObject simulation = endpoint.config.section("simulation");
+            SimulationServer server = null;
+            if (simulation.optBoolean("enabled", false)) {
+                int port = simulation.optInt("port", SimulationServer.DEFAULT_PORT);
+                server = simulations.get(port);
+                if (server == null) {
+                    server = new SimulationServer(simulation).startup();
+                    simulations.put(port, server);
+                } else {
+                    logger.info("Endpoint {} shares the simulation server on port {}", endpoint.name, port);
+                }
+            }
+            runners.add(new ClientRunner(endpoint.opcua, endpoint.url, server, keys));
+        }
+        for (int i = 0; i < endpoints.size(); i++) {
+            ClientRunner runner = runners.get(i);
+            BlockingThreads.newThread("opcua-endpoint-" + endpoints.get(i).name, runner::run).start();
+        }
+    }
+
+    // every endpoint writes the desired values of its own section
+    void onShadowDelta(String message) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.opcua.onShadowDelta(message);
+        }
+    }
+
+    // a history request goes to the endpoint it names, without an endpoints
+    // list to the only one
+    void onHistoryRequest(String message) {
+        JSONObject request;
+        try {
+            request = new JSONObject(message);
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring history request that is not a JSON object: {}", e.getMessage());
+            return;
+        }
+        String name = request.optString("endpoint", "");
+        for (Endpoint endpoint : endpoints) {
+            if (name.equals(endpoint.name) || (name.isEmpty() && endpoints.size() == 1)) {
+                endpoint.opcua.onHistoryRequest(request);
+                return;
+            }
+        }
+        TimeSeriesStore.respond(endpoints.get(0).config.section("history"), request,
+                TimeSeriesStore.error("unknown endpoint '" + name + "'"));
+    }
+
+    public IPCMessageInterface deltaMessageInterface() {
+        return messageInterface(this::onShadowDelta);
+    }
+
+    public IPCMessageInterface historyMessageInterface() {
+        return messageInterface(this::onHistoryRequest);
+    }
+
+    private static IPCMessageInterface messageInterface(Consumer<String> onMessage) {
+        // IPC massage interface callbacks
+        return new IPCMessageInterface() {
+
+            @Override
+            public void onIPCMessage(SubscriptionResponseMessage ipcMessage) {
+                BinaryMessage binaryMessage = ipcMessage.getBinaryMessage();
+                String message = new String(binaryMessage.getMessage(), StandardCharsets.UTF_8);
+                String topic = binaryMessage.getContext().getTopic();
+                logger.debug("Got message from IPC on topic {}: {} %n", topic, message);
+                onMessage.accept(message);
+            }
+
+            @Override
+            public void onIPCConnectionError(String errorMessage) {
+                logger.error("Error on IPC message {}", errorMessage);
+            }
+
+            @Override
+            public void onIPCConnectionClosed() {
+                logger.error("IPC Stream connection closed");
+            }
+        };
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscriptionManager;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.FilterOperator;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.CallMethodRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.ContentFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.ContentFilterElement;
+import org.eclipse.milo.opcua.stack.core.types.structured.EventFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.LiteralOperand;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.SimpleAttributeOperand;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.model.QOS;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+// Subscribes to OPC UA events, including Alarms & Conditions, and publishes
+// them to IoT Core. Events have their own subscription with a short publishing
+// interval and one event monitored item per notifier (the Server object by
+// default), all with the same EventFilter. Every event becomes a compact JSON
+// record of the selected fields, records are batched and a batch is sent at
+// the latest flushIntervalMs after its first event. Events with a severity of
+// at least prioritySeverity skip the batch and go out at once, on a stage and
+// an IPC window of their own. Configured by the "events" section:
+// {"enabled": false, "notifiers": ["i=2253"], "publishingInterval": 100, "queueSize": 1000,
+//  "selectClauses": ["EventId", "EventType", "SourceName", "Time", "Message", "Severity", ...],
+//  "minSeverity": 0, "prioritySeverity": 800, "conditionRefresh": true,
+//  "topic": "opcua/{thing}/events", "qos": "AT_LEAST_ONCE", "maxEvents": 100, "flushIntervalMs": 200}
+// A select clause is a browse path of event fields, e.g. "ActiveState/Id", or
+// {"name": "active", "typeDefinition": "i=2915", "browsePath": "ActiveState/Id"}.
+// "ConditionId" selects the NodeId of the condition.
+public class EventSubscriber implements UaSubscriptionManager.SubscriptionListener, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EventSubscriber.class);
+
+    static final List<String> DEFAULT_SELECT_CLAUSES = Arrays.asList("EventId", "EventType", "SourceNode",
+            "SourceName", "Time", "Message", "Severity", "ConditionId", "ConditionName", "ActiveState/Id",
+            "AckedState/Id", "Retain");
+
+    private static final LongAdder receivedEvents = MetricsRegistry.counter("events.received");
+    private static final LongAdder priorityEvents = MetricsRegistry.counter("events.priority");
+    private static final LatencyHistogram receiveToPublish = MetricsRegistry.histogram("events.receiveToPublish");
+
+    // a selected event field and the JSON key of its value
+    static final class Field {
+        final String name;
+        final SimpleAttributeOperand operand;
+
+        Field(String name, SimpleAttributeOperand operand) {
+            this.name = name;
+            this.operand = operand;
+        }
+    }
+
+    private static final class Event {
+        final Variant[] values;
+        final long receivedNanos = System.nanoTime();
+
+        Event(Variant[] values) {
+            this.values = values;
+        }
+    }
+
+    private final OpcUaClient client;
+    private final StoreAndForward storeAndForward;
+    private final String endpoint;
+    private final List<NodeId> notifiers = new ArrayList<>();
+    private final List<Field> fields;
+    private final int severityIndex;
+    private final int minSeverity;
+    private final int prioritySeverity;
+    private final double publishingInterval;
+    private final int queueSize;
+    private final boolean conditionRefresh;
+    private final String topic;
+    private final QOS qos;
+    private final int maxEvents;
+    private final long flushIntervalMs;
+
+    private final BoundedStage events;
+    private final BoundedStage priority;
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "opcua-events-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    // guarded by this
+    private List<Event> batch = new ArrayList<>();
+
+    private volatile UaSubscription subscription;
+    private volatile boolean closed;
+
+    // stagesConfig: the "stages" section, "events" and "priorityEvents" are used
+    public EventSubscriber(OpcUaClient client, JSONObject config, String thingName, String endpoint,
+            StoreAndForward storeAndForward, JSONObject stagesConfig) {
+        this.client = client;
+        this.storeAndForward = storeAndForward;
+        this.endpoint = endpoint;
+        JSONArray notifierList = config.optJSONArray("notifiers");
+        if (notifierList == null || notifierList.isEmpty()) {
+            notifiers.add(Identifiers.Server);
+        } else {
+            for (int i = 0; i < notifierList.length(); i++) {
+                notifiers.add(NodeId.parse(notifierList.getString(i)));
+            }
+        }
+        JSONArray selectClauses = config.optJSONArray("selectClauses");
+        this.fields = parseFields(selectClauses != null ? selectClauses : new JSONArray(DEFAULT_SELECT_CLAUSES));
+        this.severityIndex = indexOf(fields, "Severity");
+        this.minSeverity = config.optInt("minSeverity", 0);
+        this.prioritySeverity = config.optInt("prioritySeverity", 800);
+        this.publishingInterval = config.optDouble("publishingInterval", 100.0);
+        this.queueSize = config.optInt("queueSize", 1000);
+        this.conditionRefresh = config.optBoolean("conditionRefresh", true);
+        this.topic = config.optString("topic", endpoint == null ? "opcua/{thing}/events"
+                : "opcua/{thing}/events/{endpoint}").replace("{thing}", String.valueOf(thingName))
+                .replace("{endpoint}", String.valueOf(endpoint));
+        this.qos = TelemetryStreamer.parseQos(config.optString("qos", "AT_LEAST_ONCE"));
+        this.maxEvents = Math.max(1, config.optInt("maxEvents", 100));
+        this.flushIntervalMs = Math.max(0, config.optLong("flushIntervalMs", 200));
+
+        String suffix = endpoint != null ? "-" + endpoint : "";
+        this.events = new BoundedStage("opcua-events" + suffix, stageConfig(stagesConfig, "events"), 10000,
+                "dropOldest");
+        this.priority = new BoundedStage("opcua-priority-events" + suffix,
+                stageConfig(stagesConfig, "priorityEvents"), 1000, "dropOldest");
+        if (prioritySeverity > 0 && severityIndex < 0) {
+            logger.warn("Severity is not selected, events.prioritySeverity has no effect");
+        }
+    }
+
+    private static JSONObject stageConfig(JSONObject stagesConfig, String stage) {
+        JSONObject stageConfig = stagesConfig.optJSONObject(stage);
+        return stageConfig != null ? stageConfig : new JSONObject();
+    }
+
+    static List<Field> parseFields(JSONArray selectClauses) {
+        List<Field> fields = new ArrayList<>(selectClauses.length());
+        for (int i = 0; i < selectClauses.length(); i++) {
+            Object clause = selectClauses.get(i);
+            String path;
+            String name;
+            NodeId typeDefinition;
+            if (clause instanceof JSONObject) {
+                JSONObject object = (JSONObject) clause;
+                path = object.getString("browsePath");
+                name = object.optString("name", path);
+                typeDefinition = object.has("typeDefinition") ? NodeId.parse(object.getString("typeDefinition"))
+                        : typeDefinitionOf(path);
+            } else {
+                path = clause.toString();
+                name = path;
+                typeDefinition = typeDefinitionOf(path);
+            }
+            fields.add(new Field(name, operand(typeDefinition, path)));
+        }
+        return fields;
+    }
+
+    // condition fields are looked up on the type that defines them
+    private static NodeId typeDefinitionOf(String path) {
+        String first = path.split("/")[0];
+        switch (first) {
+        case "ConditionId":
+        case "ConditionName":
+        case "Retain":
+        case "EnabledState":
+        case "Quality":
+        case "Comment":
+            return Identifiers.ConditionType;
+        case "AckedState":
+        case "ConfirmedState":
+            return Identifiers.AcknowledgeableConditionType;
+        case "ActiveState":
+        case "SuppressedState":
+            return Identifiers.AlarmConditionType;
+        default:
+            return Identifiers.BaseEventType;
+        }
+    }
+
+    private static SimpleAttributeOperand operand(NodeId typeDefinition, String path) {
+        if ("ConditionId".equals(path)) {
+            // the condition is the node itself, selected by an empty browse path
+            return new SimpleAttributeOperand(typeDefinition, new QualifiedName[0], AttributeId.NodeId.uid(), null);
+        }
+        String[] names = path.split("/");
+        QualifiedName[] browsePath = new QualifiedName[names.length];
+        for (int i = 0; i < names.length; i++) {
+            browsePath[i] = new QualifiedName(0, names[i]);
+        }
+        return new SimpleAttributeOperand(typeDefinition, browsePath, AttributeId.Value.uid(), null);
+    }
+
+    private static int indexOf(List<Field> fields, String name) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    EventFilter eventFilter() {
+        SimpleAttributeOperand[] selectClauses = new SimpleAttributeOperand[fields.size()];
+        for (int i = 0; i < selectClauses.length; i++) {
+            selectClauses[i] = fields.get(i).operand;
+        }
+        ContentFilter whereClause = new ContentFilter(null);
+        if (minSeverity > 0) {
+            SimpleAttributeOperand severity = operand(Identifiers.BaseEventType, "Severity");
+            LiteralOperand threshold = new LiteralOperand(new Variant(ushort(minSeverity)));
+            whereClause = new ContentFilter(new ContentFilterElement[] {
+                    new ContentFilterElement(FilterOperator.GreaterThanOrEqual, new ExtensionObject[] {
+                            ExtensionObject.encode(client.getStaticSerializationContext(), severity),
+                            ExtensionObject.encode(client.getStaticSerializationContext(), threshold) }) });
+        }
+        return new EventFilter(selectClauses, whereClause);
+    }
+
+    // creates the subscription and the event items, and asks for the state of
+    // all active conditions. Subscriptions the server lost are created again.
+    public CompletableFuture<Void> subscribe() {
+        client.getSubscriptionManager().addSubscriptionListener(this);
+        return createSubscription();
+    }
+
+    private CompletableFuture<Void> createSubscription() {
+        ExtensionObject filter = ExtensionObject.encode(client.getStaticSerializationContext(), eventFilter());
+        return client.getSubscriptionManager().createSubscription(publishingInterval).thenCompose(created -> {
+            subscription = created;
+            List<MonitoredItemCreateRequest> requests = new ArrayList<>(notifiers.size());
+            for (NodeId notifier : notifiers) {
+                ReadValueId readValueId = new ReadValueId(notifier, AttributeId.EventNotifier.uid(), null,
+                        QualifiedName.NULL_VALUE);
+                MonitoringParameters parameters = new MonitoringParameters(created.nextClientHandle(), 0.0, filter,
+                        uint(queueSize), true);
+                requests.add(new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters));
+            }
+            UaSubscription.ItemCreationCallback onItemCreated = (item, index) -> item
+                    .setEventConsumer((i, values) -> onEvent(values));
+            return created.createMonitoredItems(TimestampsToReturn.Both, requests, onItemCreated);
+        }).thenCompose(items -> {
+            int good = 0;
+            for (UaMonitoredItem item : items) {
+                if (item.getStatusCode().isGood()) {
+                    good++;
+                } else {
+                    logger.warn("Event item on {} failed: {}", item.getReadValueId().getNodeId(),
+                            item.getStatusCode());
+                }
+            }
+            logger.info("Event subscription {} created: {} of {} notifiers, {} fields, publishingInterval={}ms",
+                    subscription.getSubscriptionId(), good, items.size(), fields.size(), publishingInterval);
+            return conditionRefresh && good > 0 ? refreshConditions() : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    // the server reports every retained condition as an event again
+    private CompletableFuture<Void> refreshConditions() {
+        CallMethodRequest request = new CallMethodRequest(Identifiers.ConditionType,
+                Identifiers.ConditionType_ConditionRefresh,
+                new Variant[] { new Variant(subscription.getSubscriptionId()) });
+        return client.call(Collections.singletonList(request)).handle((response, ex) -> {
+            StatusCode status = ex == null ? response.getResults()[0].getStatusCode() : null;
+            if (status == null || !status.isGood()) {
+                // servers without Alarms & Conditions don't implement it
+                logger.info("ConditionRefresh not done: {}", ex != null ? ex.getMessage() : status);
+            }
+            return null;
+        });
+    }
+
+    // Milo delivery thread, the event is only queued
+    void onEvent(Variant[] values) {
+        receivedEvents.increment();
+        Event event = new Event(values);
+        if (isPriority(values)) {
+            priorityEvents.increment();
+            priority.execute(() -> publish(Collections.singletonList(event), true));
+        } else {
+            events.execute(() -> add(event));
+        }
+    }
+
+    private boolean isPriority(Variant[] values) {
+        if (prioritySeverity <= 0 || severityIndex < 0 || severityIndex >= values.length) {
+            return false;
+        }
+        Object severity = values[severityIndex].getValue();
+        return severity instanceof Number && ((Number) severity).intValue() >= prioritySeverity;
+    }
+
+    private void add(Event event) {
+        List<Event> full = null;
+        synchronized (this) {
+            batch.add(event);
+            if (batch.size() >= maxEvents) {
+                full = batch;
+                batch = new ArrayList<>();
+            } else if (batch.size() == 1 && !flushExecutor.isShutdown()) {
+                // the first event of a batch starts its clock
+                flushExecutor.schedule(this::flush, flushIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            publish(full, false);
+        }
+    }
+
+    private void flush() {
+        List<Event> pending;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                return; // sent when it was full
+            }
+            pending = batch;
+            batch = new ArrayList<>();
+        }
+        publish(pending, false);
+    }
+
+    // {"endpoint": "press1", "events": [{"EventId": "base64", "Severity": 900, ...}, ...]}
+    // ("endpoint" only with several endpoints)
+    private void publish(List<Event> pending, boolean priorityPublish) {
+        JSONArray records = new JSONArray();
+        for (Event event : pending) {
+            records.put(toRecord(event.values));
+        }
+        JSONObject message = new JSONObject();
+        if (endpoint != null) {
+            message.put("endpoint", endpoint);
+        }
+        message.put("events", records);
+        byte[] payload = message.toString().getBytes(StandardCharsets.UTF_8);
+        storeAndForward.publishToIoTCore(topic, payload, qos, priorityPublish).whenComplete((r, ex) -> {
+            long now = System.nanoTime();
+            for (Event event : pending) {
+                receiveToPublish.record(now - event.receivedNanos);
+            }
+        });
+    }
+
+    // fields without a value are left out
+    JSONObject toRecord(Variant[] values) {
+        JSONObject record = new JSONObject();
+        for (int i = 0; i < fields.size() && i < values.length; i++) {
+            Object value = jsonValue(values[i].getValue());
+            if (value != null) {
+                record.put(fields.get(i).name, value);
+            }
+        }
+        return record;
+    }
+
+    static Object jsonValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return Double.isFinite(d) ? d : null;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof ByteString) {
+            byte[] bytes = ((ByteString) value).bytes();
+            return bytes != null ? Base64.getEncoder().encodeToString(bytes) : null;
+        } else if (value instanceof LocalizedText) {
+            return ((LocalizedText) value).getText();
+        } else if (value instanceof NodeId) {
+            return ((NodeId) value).toParseableString();
+        } else if (value instanceof DateTime) {
+            return ((DateTime) value).getJavaTime();
+        } else if (value instanceof QualifiedName) {
+            return ((QualifiedName) value).toParseableString();
+        } else if (value instanceof StatusCode) {
+            return ((StatusCode) value).getValue();
+        }
+        return value.toString();
+    }
+
+    @Override
+    public void onSubscriptionTransferFailed(UaSubscription lost, StatusCode statusCode) {
+        UaSubscription current = subscription;
+        if (closed || current == null || !current.getSubscriptionId().equals(lost.getSubscriptionId())) {
+            return;
+        }
+        logger.warn("Transfer of event subscription {} failed ({}), creating it again", lost.getSubscriptionId(),
+                statusCode);
+        recreate(1000);
+    }
+
+    private void recreate(long delayMs) {
+        createSubscription().whenComplete((v, ex) -> {
+            if (ex != null && !closed && !flushExecutor.isShutdown()) {
+                logger.warn("Creating event subscription failed: {}, retrying in {}ms", ex.getMessage(), delayMs);
+                flushExecutor.schedule(() -> recreate(Math.min(30000, delayMs * 2)), delayMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    // the open batch is sent, events still queued on the stages are published
+    // as the stages drain
+    @Override
+    public void close() {
+        closed = true;
+        client.getSubscriptionManager().removeSubscriptionListener(this);
+        UaSubscription current = subscription;
+        if (current != null) {
+            client.getSubscriptionManager().deleteSubscription(current.getSubscriptionId());
+        }
+        events.close();
+        priority.close();
+        flushExecutor.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// component tuning options, read from the recipe ComponentConfiguration
+// or from a local JSON file when running outside of Greengrass
+public class GatewayConfig {
+    private static final Logger logger = LoggerFactory.getLogger(GatewayConfig.class);
+
+    private final JSONObject root;
+    // name of the "endpoints" entry, null for the single endpoint given as args[0]
+    private final String endpointName;
+
+    public GatewayConfig(JSONObject root) {
+        this(root, null);
+    }
+
+    private GatewayConfig(JSONObject root, String endpointName) {
+        this.root = root != null ? root : new JSONObject();
+        this.endpointName = endpointName;
+    }
+
+    // args[1] (optional) is a path to a JSON config file, otherwise the
+    // component configuration is fetched from the nucleus over IPC
+    public static GatewayConfig load(String[] args) {
+        if (args.length > 1) {
+            try {
+                String json = new String(Files.readAllBytes(Paths.get(args[1])), StandardCharsets.UTF_8);
+                logger.info("Loaded component configuration from {}", args[1]);
+                return new GatewayConfig(new JSONObject(json));
+            } catch (Exception e) {
+                logger.error("Unable to read configuration file {}: {}", args[1], e.getMessage());
+            }
+        }
+
+        Map<String, Object> configuration = IpcUtils.getConfiguration();
+        if (configuration != null) {
+            return new GatewayConfig(new JSONObject(configuration));
+        }
+
+        logger.warn("No component configuration available, using defaults");
+        return new GatewayConfig(null);
+    }
+
+    public JSONObject getRoot() {
+        return root;
+    }
+
+    public String getEndpointName() {
+        return endpointName;
+    }
+
+    // configuration of one "endpoints" entry, its sections replace the top
+    // level sections of the same name
+    public GatewayConfig forEndpoint(JSONObject endpoint) {
+        JSONObject merged = new JSONObject();
+        for (String key : root.keySet()) {
+            if (!"endpoints".equals(key)) {
+                merged.put(key, root.get(key));
+            }
+        }
+        for (String key : endpoint.keySet()) {
+            merged.put(key, endpoint.get(key));
+        }
+        return new GatewayConfig(merged, endpoint.getString("name"));
+    }
+
+    // returns the named section or an empty object so callers can use optXxx defaults
+    public JSONObject section(String name) {
+        JSONObject section = root.optJSONObject(name);
+        return section != null ? section : new JSONObject();
+    }
+
+}
@@ -5,6 +5,8 @@
 package com.example;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -37,8 +39,18 @@ class IpcUtils {
         }
     }
 
+    private IpcUtils(GreengrassCoreIPCClientV2 client) {
+        ipcClient = client;
+    }
+
+    // replaces the Greengrass client, used to run against a stub client
+    // outside of Greengrass (benchmarks)
+    static synchronized void useClient(GreengrassCoreIPCClientV2 client) {
+        instance = new IpcUtils(client);
+    }
+
     // singleton constructor
-    public static IpcUtils getInstance() throws Exception {
+    public static synchronized IpcUtils getInstance() throws Exception {
         if (instance == null) {
             instance = new IpcUtils();
         }
@@ -201,4 +213,28 @@ class IpcUtils {
         return null;
     }
 
+    // read this component's configuration (recipe ComponentConfiguration merged
+    // with the deployment configuration update)
+    protected static Map<String, Object> getConfiguration() {
+        if (ipcClient == null) {
+            return null;
+        }
+        try {
+            GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest()
+                    .withKeyPath(Collections.emptyList());
+            GetConfigurationResponse configurationResponse = ipcClient.getConfiguration(getConfigurationRequest);
+            logger.debug("getConfiguration response: {}", configurationResponse.getValue());
+            return configurationResponse.getValue();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // set interrupt flag
+            logger.error("Getting configuration interrupted {}", ex.getMessage());
+            ex.printStackTrace();
+        } catch (Exception ex) {
+            logger.error("Getting configuration failed {}", ex.getMessage());
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
 }
@@ -0,0 +1,63 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+// {"thing": "...", "group": "fast", "samples": [{"n": "TurbineSpeed", "t": 1700000000000, "v": 1234.5}]}
+// with "s" added to a sample when its status code is not Good. Written
+// directly into a pooled buffer instead of building a JSONObject tree.
+public class JsonTelemetryEncoder implements TelemetryEncoder {
+    private final PayloadBufferPool pool;
+
+    public JsonTelemetryEncoder(PayloadBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public byte[] encode(String thingName, String group, int dictionaryId, List<TelemetrySample> samples) {
+        PayloadBuffer buffer = pool.acquire();
+        try {
+            buffer.writeUtf8("{\"thing\":");
+            buffer.writeUtf8(JSONObject.quote(thingName));
+            buffer.writeUtf8(",\"group\":");
+            buffer.writeUtf8(JSONObject.quote(group));
+            buffer.writeUtf8(",\"samples\":[");
+            for (int i = 0; i < samples.size(); i++) {
+                TelemetrySample sample = samples.get(i);
+                buffer.writeUtf8(i == 0 ? "{\"n\":" : ",{\"n\":");
+                buffer.writeUtf8(JSONObject.quote(sample.tag.getName()));
+                buffer.writeUtf8(",\"t\":");
+                buffer.writeUtf8(Long.toString(sample.time));
+                buffer.writeUtf8(",\"v\":");
+                buffer.writeUtf8(valueToString(sample.value));
+                if (sample.status != 0L) {
+                    buffer.writeUtf8(",\"s\":");
+                    buffer.writeUtf8(Long.toString(sample.status));
+                }
+                buffer.writeByte('}');
+            }
+            buffer.writeUtf8("]}");
+            return buffer.toByteArray();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    // JSON has no NaN or Infinity
+    private static String valueToString(Object value) {
+        if (TelemetryEncoder.kindOf(value) == KIND_DOUBLE && !Double.isFinite(((Number) value).doubleValue())) {
+            return "null";
+        }
+        return JSONObject.valueToString(value);
+    }
+
+    @Override
+    public boolean usesDictionary() {
+        return false;
+    }
+}
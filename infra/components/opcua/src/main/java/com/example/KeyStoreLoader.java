@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyStore;
@@ -31,6 +32,9 @@ public class KeyStoreLoader {
     private static final String CLIENT_ALIAS = "client-ai";
     private static final char[] PASSWORD = "password".toCharArray();
 
+    // the clients of all endpoints share the key store file
+    private static final Object FILE_LOCK = new Object();
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private X509Certificate[] clientCertificateChain;
@@ -38,6 +42,12 @@ public class KeyStoreLoader {
     private KeyPair clientKeyPair;
 
     KeyStoreLoader load(Path baseDir) throws Exception {
+        synchronized (FILE_LOCK) {
+            return loadLocked(baseDir);
+        }
+    }
+
+    private KeyStoreLoader loadLocked(Path baseDir) throws Exception {
         KeyStore keyStore = KeyStore.getInstance("PKCS12");
 
         Path serverKeyStore = baseDir.resolve("example-client.pfx");
@@ -72,8 +82,15 @@ public class KeyStoreLoader {
             X509Certificate certificate = builder.build();
 
             keyStore.setKeyEntry(CLIENT_ALIAS, keyPair.getPrivate(), PASSWORD, new X509Certificate[] { certificate });
-            try (OutputStream out = Files.newOutputStream(serverKeyStore)) {
-                keyStore.store(out, PASSWORD);
+            // written next to it and moved into place, a crash never leaves a partial key store behind
+            Path tempFile = Files.createTempFile(baseDir, "example-client", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    keyStore.store(out, PASSWORD);
+                }
+                Files.move(tempFile, serverKeyStore, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
             }
         } else {
             try (InputStream in = Files.newInputStream(serverKeyStore)) {
@@ -0,0 +1,108 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+
+// Last value reported for every catalog tag (indexed by TagDefinition.getIndex(),
+// one slot per NodeId). Numeric and boolean values are kept unboxed in a
+// double[]. A notification is dropped when the status is unchanged and the
+// value is equal, or for numeric tags within the tag's absolute or percent
+// deadband. This filters again on the client what a server-side DataChangeFilter
+// should already suppress, because not every server honours the filter.
+// A slot is only written from the lane that delivers the tag's notifications.
+public class LastValueCache {
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte OBJECT = 3;
+
+    private final byte[] kinds;
+    private final double[] numbers;
+    private final Object[] objects;
+    private final long[] statusCodes;
+    private final double[] deadbands;
+
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public LastValueCache(TagCatalog catalog) {
+        int size = catalog.size();
+        kinds = new byte[size];
+        numbers = new double[size];
+        objects = new Object[size];
+        statusCodes = new long[size];
+        deadbands = new double[size];
+        for (TagDefinition tag : catalog.getTags()) {
+            deadbands[tag.getIndex()] = tag.getAbsoluteDeadband();
+        }
+    }
+
+    // stores the value and returns true if it must be published
+    public boolean update(TagDefinition tag, DataValue value) {
+        int slot = tag.getIndex();
+        Object v = value.getValue().getValue();
+        long status = value.getStatusCode() != null ? value.getStatusCode().getValue() : 0L;
+
+        boolean changed = kinds[slot] == EMPTY || statusCodes[slot] != status || valueChanged(slot, v);
+        if (!changed) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+
+        statusCodes[slot] = status;
+        if (v instanceof Number) {
+            kinds[slot] = NUMBER;
+            numbers[slot] = ((Number) v).doubleValue();
+            objects[slot] = null;
+        } else if (v instanceof Boolean) {
+            kinds[slot] = BOOLEAN;
+            numbers[slot] = ((Boolean) v) ? 1.0 : 0.0;
+            objects[slot] = null;
+        } else {
+            kinds[slot] = OBJECT;
+            objects[slot] = v;
+        }
+        passed.incrementAndGet();
+        return true;
+    }
+
+    private boolean valueChanged(int slot, Object v) {
+        switch (kinds[slot]) {
+            case NUMBER:
+                if (!(v instanceof Number)) {
+                    return true;
+                }
+                double d = ((Number) v).doubleValue();
+                double last = numbers[slot];
+                if (Double.compare(d, last) == 0) {
+                    return false;
+                }
+                return deadbands[slot] <= 0.0 || Double.isNaN(d) || Double.isNaN(last)
+                        || Math.abs(d - last) > deadbands[slot];
+            case BOOLEAN:
+                return !(v instanceof Boolean) || (((Boolean) v) ? 1.0 : 0.0) != numbers[slot];
+            case OBJECT:
+                if (v instanceof Object[] && objects[slot] instanceof Object[]) {
+                    return !Arrays.deepEquals((Object[]) v, (Object[]) objects[slot]);
+                }
+                return !Objects.equals(v, objects[slot]);
+            default:
+                return true;
+        }
+    }
+
+    public long getPassedCount() {
+        return passed.get();
+    }
+
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+}
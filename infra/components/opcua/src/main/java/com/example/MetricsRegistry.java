@@ -0,0 +1,168 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Process wide counters, gauges and latency histograms. Counters are
+// LongAdders and histograms LatencyHistograms, recording never takes a lock;
+// hot paths look their metric up once and keep the reference. Every
+// intervalMs a snapshot with counter totals and rates, gauge values and
+// histogram percentiles of the interval is published as JSON to a local IPC
+// topic and/or written to a file. Configured by the "metrics" section:
+// {"intervalMs": 60000, "topic": "opcua/metrics", "file": ""}
+public final class MetricsRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService publishExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-publisher");
+        t.setDaemon(true);
+        return t;
+    });
+    private static ScheduledFuture<?> publishTask;
+
+    // counter totals and time of the previous snapshot, for rates
+    private static final Map<String, Long> previousTotals = new HashMap<>();
+    private static long previousNanos = System.nanoTime();
+
+    private MetricsRegistry() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    // a histogram kept elsewhere, e.g. the IPC latencies of AsyncIpcUtils
+    public static void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    // read when a snapshot is taken
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    // config keys: intervalMs (0 turns publishing off), topic, file
+    protected static synchronized void configure(JSONObject config) {
+        long intervalMs = config.optLong("intervalMs", 60000);
+        String topic = config.optString("topic", "opcua/metrics");
+        String file = config.optString("file", "");
+        if (publishTask != null) {
+            publishTask.cancel(false);
+            publishTask = null;
+        }
+        if (intervalMs <= 0 || (topic.isEmpty() && file.isEmpty())) {
+            logger.info("Metrics publishing disabled");
+            return;
+        }
+        Path path = file.isEmpty() ? null : Paths.get(file);
+        publishTask = publishExecutor.scheduleWithFixedDelay(() -> publish(topic, path), intervalMs, intervalMs,
+                TimeUnit.MILLISECONDS);
+        logger.info("Publishing metrics every {}ms to topic '{}' file '{}'", intervalMs, topic, file);
+    }
+
+    private static void publish(String topic, Path file) {
+        try {
+            byte[] snapshot = snapshot(true).toString().getBytes(StandardCharsets.UTF_8);
+            if (!topic.isEmpty()) {
+                // metrics are not spooled, a lost snapshot is replaced by the next one
+                AsyncIpcUtils.publishToIpcAsync(topic, snapshot);
+            }
+            if (file != null) {
+                Path parent = file.toAbsolutePath().getParent();
+                Files.createDirectories(parent);
+                Path temp = Files.createTempFile(parent, "metrics", ".tmp");
+                Files.write(temp, snapshot);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (Exception e) {
+            logger.error("Unable to publish metrics: {}", e.getMessage());
+        }
+    }
+
+    // {"timestamp": ..., "intervalMs": ..., "counters": {"<name>": {"total": n, "perSecond": r}},
+    //  "gauges": {"<name>": v}, "histograms": {"<name>": {"count", "meanUs", "p50Us", "p90Us", "p99Us", "maxUs"}}}
+    // resetHistograms starts the next interval with empty histograms
+    public static synchronized JSONObject snapshot(boolean resetHistograms) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - previousNanos) / 1e9);
+        previousNanos = now;
+
+        JSONObject counterValues = new JSONObject();
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            long total = entry.getValue().sum();
+            Long previous = previousTotals.put(entry.getKey(), total);
+            double rate = (total - (previous != null ? previous : 0)) / seconds;
+            counterValues.put(entry.getKey(), new JSONObject()
+                    .put("total", total)
+                    .put("perSecond", Math.round(rate * 10) / 10.0));
+        }
+
+        JSONObject gaugeValues = new JSONObject();
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            try {
+                gaugeValues.put(entry.getKey(), entry.getValue().getAsLong());
+            } catch (RuntimeException e) {
+                logger.debug("Gauge {} failed: {}", entry.getKey(), e.getMessage());
+            }
+        }
+
+        JSONObject histogramValues = new JSONObject();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            histogramValues.put(entry.getKey(), new JSONObject()
+                    .put("count", histogram.getCount())
+                    .put("meanUs", Math.round(histogram.getMeanMicros()))
+                    .put("p50Us", histogram.getPercentileMicros(50))
+                    .put("p90Us", histogram.getPercentileMicros(90))
+                    .put("p99Us", histogram.getPercentileMicros(99))
+                    .put("maxUs", histogram.getMaxMicros()));
+            if (resetHistograms) {
+                histogram.reset();
+            }
+        }
+
+        return new JSONObject()
+                .put("timestamp", System.currentTimeMillis())
+                .put("intervalMs", Math.round(seconds * 1000))
+                .put("counters", counterValues)
+                .put("gauges", gaugeValues)
+                .put("histograms", histogramValues);
+    }
+}
@@ -7,53 +7,30 @@
 package com.example;
 
 import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
-import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
-import org.eclipse.milo.opcua.stack.core.AttributeId;
 import org.eclipse.milo.opcua.stack.core.Identifiers;
-import org.eclipse.milo.opcua.stack.core.UaException;
 import org.eclipse.milo.opcua.stack.core.types.structured.ServerStatusDataType;
-import org.json.JSONObject;
 // logger
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
-import software.amazon.awssdk.aws.greengrass.model.BinaryMessage;
-import software.amazon.awssdk.aws.greengrass.model.SubscriptionResponseMessage;
 // read namespaces
-import org.eclipse.milo.opcua.sdk.client.model.nodes.objects.ServerTypeNode;
-import org.eclipse.milo.opcua.sdk.client.model.nodes.variables.ServerStatusTypeNode;
-import org.eclipse.milo.opcua.stack.core.types.structured.BrowseDescription;
-import org.eclipse.milo.opcua.stack.core.types.structured.BrowseResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.BuildInfo;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
-import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReferenceDescription;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
-import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
 import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
-import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
-import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
-import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
-import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseDirection;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseResultMask;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.ServerState;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
 
 // browse 
-import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
-import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.toList;
-import org.eclipse.milo.opcua.sdk.client.nodes.UaVariableNode;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Arrays;
-import static com.google.common.collect.Lists.newArrayList;
+import org.json.JSONObject;
 
 public class Opcua implements ClientConfig {
     // must be configured in nucleus by enabling
@@ -62,65 +39,68 @@ public class Opcua implements ClientConfig {
     public static final String THING_NAME = System.getenv("AWS_IOT_THING_NAME");
     public static final String OPC_SHADOW_TOPIC_BASE = "$aws/things/" + THING_NAME + "/shadow/name/opc";
     private static final Logger logger = LoggerFactory.getLogger(Opcua.class);
-    private static final String TURBINE_STATUS_STRING = "TurbineStatus";
-    private static final String TURBINE_SPEED_STRING = "TurbineSpeed";
 
-    private static OpcUaClient opcUaClient;
+    private final GatewayConfig config;
+    private final StoreAndForward storeAndForward;
+    private ShadowUpdateBatcher shadowBatcher;
+    private ShadowDocumentWriter shadowWriter;
+    // bounds of one shadow document
+    private TelemetryStreamer telemetryStreamer;
+    private AggregationEngine aggregationEngine;
+    private LastValueCache lastValues;
+    private volatile TimeSeriesStore history;
+    private volatile CommandWriter commandWriter;
+    private volatile SimulationServer simulationServer;
+    // shadow deltas are written here, never on the IPC stream thread
+    private final BoundedStage commands;
+    // history queries run here, null without history
+    private final BoundedStage historyQueries;
+    private static final LongAdder unchangedValues = MetricsRegistry.counter("opcua.unchangedValues");
+
+    public Opcua(GatewayConfig config, StoreAndForward storeAndForward) {
+        this.config = config;
+        this.storeAndForward = storeAndForward;
+        String endpoint = config.getEndpointName();
+        this.commands = new BoundedStage(endpoint != null ? "opcua-commands-" + endpoint : "opcua-commands",
+                stageConfig("commands"), 16, "dropOldest");
+        this.historyQueries = config.section("history").optBoolean("enabled", false)
+                ? new BoundedStage(endpoint != null ? "opcua-history-" + endpoint : "opcua-history",
+                        stageConfig("history"), 16, "dropOldest")
+                : null;
+    }
 
     public static void main(String[] args) {
         String opcuaEndpointUrl = args[0];
 
         logger.debug("Welcome to OPCUA Component with OPCUA endpointURL: {}", opcuaEndpointUrl);
 
-        // IPC massage interface callbacks
-        IPCMessageInterface ipcMessageInterface = new IPCMessageInterface() {
-
-            @Override
-            public void onIPCMessage(SubscriptionResponseMessage ipcMessage) {
-                BinaryMessage binaryMessage = ipcMessage.getBinaryMessage();
-                String message = new String(binaryMessage.getMessage(), StandardCharsets.UTF_8);
-                String topic = binaryMessage.getContext().getTopic();
-                logger.debug("Got message from IPC on topic {}: {} %n", topic, message);
-                try {
-                    // get the current shadow state
-                    String shadowDataString = IpcUtils.getShadowData(THING_NAME, "opc");
-                    logger.debug("Shadow String {} %n", shadowDataString);
-                    boolean turbineStatus = new JSONObject(shadowDataString).getJSONObject("state")
-                            .getJSONObject("desired")
-                            .getJSONObject("opcua").getBoolean(TURBINE_STATUS_STRING);
-
-                    // synchronous connect
-                    opcUaClient.connect().get();
-                    writeTurbineStatus(opcUaClient, turbineStatus);
-
-                } catch (Exception e) {
-                    // upon exception try & stop the opcua GG component
-                    Thread.currentThread().interrupt();
-                    logger.debug("Shadow read interrupted.");
-                    e.printStackTrace();
-                }
-            }
-
-            @Override
-            public void onIPCConnectionError(String errorMessage) {
-                logger.error("Error on IPC message {}", errorMessage);
-            }
-
-            @Override
-            public void onIPCConnectionClosed() {
-                logger.error("IPC Stream connection closed");
-            }
-        };
-
         try {
             // initialize IPC utils
             IpcUtils.getInstance();
             logger.debug("Successfully initialized IPC Client");
+            GatewayConfig config = GatewayConfig.load(args);
+            AsyncIpcUtils.configure(config.section("ipc"));
+            BoundedStage.configure(config.section("stages"));
+            MetricsRegistry.configure(config.section("metrics"));
+            BlockingThreads.configure(config.section("threads"));
+            // undeliverable telemetry is spooled to disk and replayed in order
+            StoreAndForward storeAndForward = new StoreAndForward(config.section("spool"),
+                    stageConfig(config, "egress"));
+            Runtime.getRuntime().addShutdownHook(new Thread(storeAndForward::close));
+            // one OPCUA client per configured endpoint, args[0] without an endpoints list
+            EndpointPool pool = new EndpointPool(config, opcuaEndpointUrl, storeAndForward);
             // subscribe to opc named shadows for core device from IPC
-            IpcUtils.subscribeToIpc(OPC_SHADOW_TOPIC_BASE + "/update/delta", ipcMessageInterface);
+            IpcUtils.subscribeToIpc(OPC_SHADOW_TOPIC_BASE + "/update/delta", pool.deltaMessageInterface());
+            // queries of the local tag history
+            JSONObject historyConfig = config.section("history");
+            if (historyConfig.optBoolean("enabled", false)) {
+                IpcUtils.subscribeToIpc(historyConfig.optString("requestTopic", "opcua/history/request"),
+                        pool.historyMessageInterface());
+            }
 
-            // initialize milo OPCUA client runner
-            new ClientRunner(new Opcua(), opcuaEndpointUrl, false).run();
+            // initialize milo OPCUA client runners, optionally against the built-in
+            // simulation server
+            pool.start();
 
         } catch (Exception e) {
             logger.error("OPCUA Component exception occurred :{}", e.getMessage());
@@ -141,231 +121,376 @@ public class Opcua implements ClientConfig {
 
     }
 
-    @Override
-    public void run(OpcUaClient client, CompletableFuture<OpcUaClient> future) throws Exception {
-        Opcua.opcUaClient = client;
-        // synchronous connect
-        client.connect().get();
-
-        logger.info("OPCUA Milo Client connected!!");
-
-        // Get a typed reference to the Server object: ServerNode
-        ServerTypeNode serverNode = (ServerTypeNode) client.getAddressSpace().getObjectNode(
-                Identifiers.Server,
-                Identifiers.ServerType);
-
-        // Read properties of the Server object...
-        String[] serverArray = serverNode.getServerArray();
-        String[] namespaceArray = serverNode.getNamespaceArray();
-
-        logger.info("ServerArray={}", Arrays.toString(serverArray));
-        logger.info("NamespaceArray={}", Arrays.toString(namespaceArray));
-
-        // Read the value of attribute the ServerStatus variable component
-        ServerStatusDataType serverStatus = serverNode.getServerStatus();
-
-        logger.info("ServerStatus={}", serverStatus);
-
-        // Get a typed reference to the ServerStatus variable
-        // component and read value attributes individually
-        ServerStatusTypeNode serverStatusNode = serverNode.getServerStatusNode();
-
-        // this wont work for KepEx Server
-        // https://stackoverflow.com/questions/45325230/throws-uaexception-for-getting-buildinfo-with-kepware-ua-server
-        BuildInfo buildInfo = serverStatusNode.getBuildInfo();
-        logger.info("ServerStatus.BuildInfo={}", buildInfo);
-        DateTime startTime = serverStatusNode.getStartTime();
-        DateTime currentTime = serverStatusNode.getCurrentTime();
-        ServerState state = serverStatusNode.getState();
-
-        logger.info("ServerStatus.StartTime={}", startTime);
-        logger.info("ServerStatus.CurrentTime={}", currentTime);
-        logger.info("ServerStatus.State={}", state);
-
-        // browse nodes
-        // start browsing at root folder list all the nodes
-        // browseNode("1", client, Identifiers.RootFolder);
-
-        // synchronous read request via VariableNode
-        logger.debug("Initiating Read of Wind Turbine nodes -->");
-
-        Variant turbineStatus = readOPCNode(client, 1, TURBINE_STATUS_STRING);
-        Variant turbineSpeed = readOPCNode(client, 1, TURBINE_SPEED_STRING);
-
-        JSONObject dataObject = new JSONObject();
-        dataObject.put(TURBINE_STATUS_STRING, turbineStatus != null ? turbineStatus.getValue() : null);
-        dataObject.put(TURBINE_SPEED_STRING, turbineSpeed != null ? turbineSpeed.getValue() : null);
-        updateOpcShadow(dataObject);
-
-        logger.debug("Setting up OPCUA Subscriptions ");
-        // create a subscription
-        // create a subscription @ 1000ms
-        UaSubscription subscription = client.getSubscriptionManager().createSubscription(1000.0).get();
-
-        // IMPORTANT: client handle must be unique per item within the context of a
-        // subscription.
-        // You are not required to use the UaSubscription's client handle sequence; it
-        // is provided as a convenience.
-        // Your application is free to assign client handles by whatever means
-        // necessary.
-        UInteger speedClientHandle = subscription.nextClientHandle();
-        MonitoringParameters speedParameters = new MonitoringParameters(
-                speedClientHandle,
-                1000.0, // sampling interval
-                null, // filter, null means use default
-                uint(10), // queue size
-                true // discard oldest
-        );
-        // subscribe to the Value attribute of the server's Turbine speed property
-        ReadValueId turbineSpeedReadValueId = new ReadValueId(
-                new NodeId(1, TURBINE_SPEED_STRING),
-                AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
-
-        MonitoredItemCreateRequest turbineSpeedRequest = new MonitoredItemCreateRequest(
-                turbineSpeedReadValueId,
-                MonitoringMode.Reporting,
-                speedParameters);
-
-        // subscribe to the Value attribute of the server's Turbine Status property
-        UInteger statusClientHandle = subscription.nextClientHandle();
-        MonitoringParameters statusParameters = new MonitoringParameters(
-                statusClientHandle,
-                1000.0, // sampling interval
-                null, // filter, null means use default
-                uint(10), // queue size
-                true // discard oldest
-        );
-
-        ReadValueId turbineStatusReadValueId = new ReadValueId(
-                new NodeId(1, TURBINE_STATUS_STRING),
-                AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
-
-        MonitoredItemCreateRequest turbineStatusRequest = new MonitoredItemCreateRequest(
-                turbineStatusReadValueId,
-                MonitoringMode.Reporting,
-                statusParameters);
-
-        // when creating items in MonitoringMode.Reporting this callback is where each
-        // item needs to have its
-        // value/event consumer hooked up. The alternative is to create the item in
-        // sampling mode, hook up the
-        // consumer after the creation call completes, and then change the mode for all
-        // items to reporting.
-        UaSubscription.ItemCreationCallback onItemCreated = (item, id) -> item
-                .setValueConsumer(this::onSubscriptionValue);
-
-        List<UaMonitoredItem> items = subscription.createMonitoredItems(
-                TimestampsToReturn.Both,
-                newArrayList(turbineSpeedRequest, turbineStatusRequest),
-                onItemCreated).get();
-
-        for (UaMonitoredItem item : items) {
-            if (item.getStatusCode().isGood()) {
-                logger.info("item created for nodeId={}", item.getReadValueId().getNodeId());
-            } else {
-                logger.warn(
-                        "failed to create item for nodeId={} (status={})",
-                        item.getReadValueId().getNodeId(), item.getStatusCode());
-            }
-        }
+    // called on the IPC stream thread, the write runs on the commands stage.
+    // Every delta carries all desired values that differ from the reported
+    // ones, so dropping older deltas on overflow loses nothing.
+    void onShadowDelta(String message) {
+        commands.execute(() -> writeDelta(message));
+    }
 
+    // the delta document carries the desired values, they are written with a
+    // single Write request without re-reading the shadow
+    void writeDelta(String message) {
+        CommandWriter writer = commandWriter;
+        if (writer == null) {
+            logger.warn("OPCUA client not ready, dropping shadow delta");
+            return;
+        }
         try {
-            while (true) {
-                Thread.sleep(2000);
-            }
+            writer.writeDelta(message).get();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            logger.error("Shadow delta write interrupted {}", e.getMessage());
+        } catch (Exception e) {
+            logger.error("Shadow delta write failed {}", e.getMessage());
         }
     }
 
-    private void onSubscriptionValue(UaMonitoredItem item, DataValue value) {
+    // called on the IPC stream thread, the query runs on the history stage
+    void onHistoryRequest(JSONObject request) {
+        JSONObject historyConfig = config.section("history");
+        if (historyQueries == null) {
+            TimeSeriesStore.respond(historyConfig, request, TimeSeriesStore.error("history is not enabled"));
+            return;
+        }
+        historyQueries.execute(() -> {
+            TimeSeriesStore store = history;
+            JSONObject response;
+            if (store == null) {
+                response = TimeSeriesStore.error("history is not open, the endpoint is not connected yet");
+            } else {
+                try {
+                    response = store.query(request);
+                } catch (RuntimeException e) {
+                    response = TimeSeriesStore.error(e.getMessage());
+                }
+            }
+            if (config.getEndpointName() != null) {
+                response.put("endpoint", config.getEndpointName());
+            }
+            TimeSeriesStore.respond(historyConfig, request, response);
+        });
+    }
 
-        logger.info(
-                "subscription value received: item={}, value={} \n\n",
-                item.getReadValueId().getNodeId().getIdentifier(), value.getValue().getValue());
-        JSONObject dataObject = new JSONObject();
-        dataObject.put(item.getReadValueId().getNodeId().getIdentifier().toString(),
-                value.getValue().getValue());
-        updateOpcShadow(dataObject);
+    // value of a good DataValue if it has the expected type, null otherwise
+    private static <T> T valueOf(DataValue value, Class<T> type) {
+        Object v = value.getStatusCode().isGood() ? value.getValue().getValue() : null;
+        return type.isInstance(v) ? type.cast(v) : null;
     }
 
-    private Variant readOPCNode(OpcUaClient client, int namespaceIndex, String identifier) {
-        try {
-            UaVariableNode node = client.getAddressSpace().getVariableNode(
-                    new NodeId(namespaceIndex, identifier));
+    private JSONObject stageConfig(String stage) {
+        return stageConfig(config, stage);
+    }
 
-            logger.info("DataType={}", node.getDataType());
+    // settings of one stage in the "stages" section, see BoundedStage
+    private static JSONObject stageConfig(GatewayConfig config, String stage) {
+        JSONObject stageConfig = config.section("stages").optJSONObject(stage);
+        return stageConfig != null ? stageConfig : new JSONObject();
+    }
 
-            DataValue value = node.readValue();
-            logger.info("value={}", value);
+    // key of this endpoint's values in the opc shadow
+    String getShadowSection() {
+        String endpoint = config.getEndpointName();
+        return endpoint != null ? endpoint : ShadowDocumentWriter.DEFAULT_SECTION;
+    }
 
-            Variant variant = value.getValue();
-            logger.info("variant={}", variant.getValue());
+    @Override
+    public JSONObject getStartupConfig() {
+        JSONObject startup = new JSONObject(config.section("startup").toString());
+        if (!startup.has("endpointCacheFile")) {
+            String endpoint = config.getEndpointName();
+            startup.put("endpointCacheFile",
+                    endpoint != null ? "endpoint-cache-" + endpoint + ".json" : "endpoint-cache.json");
+        }
+        return startup;
+    }
 
-            return variant;
-        } catch (UaException e) {
-            logger.error("unable to read node {}", e.getMessage());
-            return null;
+    @Override
+    public JSONObject getReconnectConfig() {
+        return config.section("reconnect");
+    }
+
+    @Override
+    public void onSimulationServer(SimulationServer server) {
+        this.simulationServer = server;
+    }
+
+    @Override
+    public void run(OpcUaClient client, CompletableFuture<OpcUaClient> future) throws Exception {
+        // the first connect is retried with backoff instead of restarting the component
+        try (SessionSupervisor supervisor = new SessionSupervisor(client, getReconnectConfig())) {
+            supervisor.connect();
+
+            logger.info("OPCUA Milo Client connected!!");
+            StartupTimer.mark("connected");
+
+            // ServerArray, NamespaceArray, ServerStatus (StartTime, CurrentTime, State
+            // and BuildInfo in one structure) and the operation limits in one Read
+            List<NodeId> diagnosticNodeIds = new ArrayList<>(Arrays.asList(Identifiers.Server_ServerArray,
+                    Identifiers.Server_NamespaceArray, Identifiers.Server_ServerStatus));
+            diagnosticNodeIds.addAll(OperationLimits.NODE_IDS);
+            List<DataValue> diagnostics = client.readValues(0.0, TimestampsToReturn.Neither, diagnosticNodeIds).get();
+
+            String[] serverArray = valueOf(diagnostics.get(0), String[].class);
+            String[] namespaceArray = valueOf(diagnostics.get(1), String[].class);
+            logger.info("ServerArray={}", Arrays.toString(serverArray));
+            logger.info("NamespaceArray={}", Arrays.toString(namespaceArray));
+
+            ServerStatusDataType serverStatus = null;
+            ExtensionObject status = valueOf(diagnostics.get(2), ExtensionObject.class);
+            if (status != null) {
+                serverStatus = (ServerStatusDataType) status.decode(client.getStaticSerializationContext());
+            }
+            logger.info("ServerStatus={}", serverStatus);
+            // not every server (e.g. KepServerEX) returns the BuildInfo
+            BuildInfo buildInfo = serverStatus != null ? serverStatus.getBuildInfo() : null;
+            if (serverStatus != null) {
+                logger.info("ServerStatus.BuildInfo={}", buildInfo);
+                logger.info("ServerStatus.StartTime={}", serverStatus.getStartTime());
+                logger.info("ServerStatus.CurrentTime={}", serverStatus.getCurrentTime());
+                logger.info("ServerStatus.State={}", serverStatus.getState());
+            }
+
+            OperationLimits limits = OperationLimits.fromValues(diagnostics.subList(3, diagnostics.size()));
+
+            BulkReader bulkReader = new BulkReader(client, limits,
+                    config.section("bulkRead").optInt("maxConcurrentRequests", 4));
+
+            TagCatalog catalog = loadCatalog(client, limits, bulkReader, namespaceArray, buildInfo);
+            StartupTimer.mark("catalog of " + catalog.size() + " tags loaded");
+
+            // initial snapshot of all catalog tags with pipelined batched reads
+            logger.debug("Initiating Read of {} catalog nodes -->", catalog.size());
+            Map<NodeId, DataValue> values = bulkReader.readValues(catalog.getNodeIds()).get();
+
+            startPipeline(catalog);
+            try {
+                reportSnapshot(catalog, values);
+
+                // NodeIds and DataTypes for the write path are cached up front, deltas
+                // are only written once the types are known
+                CommandWriter writer = new CommandWriter(client, catalog, limits, getShadowSection());
+                try {
+                    writer.loadDataTypes(bulkReader).get();
+                } catch (ExecutionException e) {
+                    logger.error("Reading the data types of {} tags failed, writing their desired values as JSON "
+                            + "types: {}", catalog.getTagsWithoutDataType().size(),
+                            e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                }
+                commandWriter = writer;
+
+                logger.debug("Setting up OPCUA Subscriptions ");
+                // monitored items are created in chunks that respect MaxMonitoredItemsPerCall
+                TagSubscriber tagSubscriber = new TagSubscriber(client, catalog, limits,
+                        config.section("tagCatalog").optInt("maxConcurrentCalls", 4));
+                // one or more subscriptions per publishing interval, each with its own delivery lane,
+                // groups listed in the polling section are read on a schedule instead. Both are
+                // closed before the pipeline they deliver to.
+                try (SubscriptionSharder sharder = new SubscriptionSharder(client, tagSubscriber,
+                        config.section("publishingGroups"),
+                        config.section("subscriptions").optInt("maxItemsPerSubscription", 1000),
+                        stageConfig("ingest"),
+                        config.getEndpointName() != null ? "opcua-lane-" + config.getEndpointName() : "opcua-lane");
+                        TagPoller poller = new TagPoller(bulkReader, config.section("polling"),
+                                sharder::getPublishingInterval, stageConfig("ingest"),
+                                config.getEndpointName() != null ? "opcua-poll-" + config.getEndpointName()
+                                        : "opcua-poll")) {
+                    List<TagDefinition> subscribed = new ArrayList<>(catalog.size());
+                    List<TagDefinition> polled = new ArrayList<>();
+                    for (TagDefinition tag : catalog.getTags()) {
+                        if (poller.isPolled(tag)) {
+                            polled.add(tag);
+                        } else {
+                            subscribed.add(tag);
+                        }
+                    }
+                    // after a reconnect lost subscriptions are rebuilt and the catalog is read
+                    // again, unchanged values are dropped by the last value cache
+                    supervisor.supervise(sharder, () -> bulkReader.readValues(catalog.getNodeIds())
+                            .thenAccept(read -> sharder.resync(read, this::onResyncValue)));
+                    // shards that could not be subscribed are retried with the reconnect backoff
+                    for (SubscriptionSharder.Shard shard
+                            : sharder.subscribe(subscribed, this::onSubscriptionValue).get()) {
+                        supervisor.retry(shard);
+                    }
+                    poller.start(polled, this::onSubscriptionValue);
+                    StartupTimer.mark("subscribed " + subscribed.size() + ", polling " + polled.size());
+
+                    EventSubscriber eventSubscriber = null;
+                    try {
+                        // events and alarms have a subscription and a publish path of their own
+                        if (config.section("events").optBoolean("enabled", false)) {
+                            eventSubscriber = new EventSubscriber(client, config.section("events"), THING_NAME,
+                                    config.getEndpointName(), storeAndForward, config.section("stages"));
+                            try {
+                                eventSubscriber.subscribe().get();
+                            } catch (ExecutionException e) {
+                                logger.error("Event subscription failed, continuing without events: {}",
+                                        e.getMessage());
+                            }
+                        }
+
+                        while (true) {
+                            Thread.sleep(2000);
+                        }
+                    } finally {
+                        if (eventSubscriber != null) {
+                            eventSubscriber.close();
+                        }
+                        // no rebuilds or resyncs once the subscriptions are closed
+                        supervisor.close();
+                    }
+                }
+            } finally {
+                // deltas wait for the next connect
+                commandWriter = null;
+                stopPipeline();
+            }
+        } catch (InterruptedException e) {
+            // the runner stops the client, or restarts it after a failure
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void updateOpcShadow(JSONObject dataObject) {
-        // Update shadows
-        JSONObject stateObject = new JSONObject();
-        JSONObject reportedObject = new JSONObject();
-        JSONObject opcuaObject = new JSONObject();
-        opcuaObject.put("opcua", dataObject);
-        reportedObject.put("reported", opcuaObject);
-        stateObject.put("state", reportedObject);
+    // configured tags come first, then the simulation server's tags, then the
+    // readable variables found by browsing the server, then the default tags
+    private TagCatalog loadCatalog(OpcUaClient client, OperationLimits limits, BulkReader bulkReader,
+            String[] namespaceArray, BuildInfo buildInfo) throws Exception {
+        JSONObject catalogConfig = config.section("tagCatalog");
+        JSONObject browseConfig = config.section("browse");
+        List<AddressSpaceCrawler.BrowsedNode> browsed = null;
+        if (browseConfig.optBoolean("enabled", false)) {
+            String endpoint = config.getEndpointName();
+            AddressSpaceCrawler crawler = new AddressSpaceCrawler(client, limits, bulkReader, browseConfig,
+                    endpoint != null ? "browse-cache-" + endpoint + ".json" : "browse-cache.json");
+            try {
+                browsed = crawler.load(namespaceArray, buildInfo).get();
+            } catch (ExecutionException e) {
+                // only fatal when the browse is where the tags come from
+                if (!catalogConfig.has("tags") && !catalogConfig.has("file") && simulationServer == null) {
+                    throw e;
+                }
+                logger.warn("Browse failed, continuing with the configured tags: {}", e.getMessage());
+            }
+        }
 
-        logger.debug("stateObject: {}", stateObject);
+        if (catalogConfig.has("tags") || catalogConfig.has("file")) {
+            TagCatalog catalog = TagCatalog.load(catalogConfig);
+            if (browsed != null) {
+                logger.info("Data types of {} of {} configured tags known from the browse",
+                        AddressSpaceCrawler.applyDataTypes(catalog, browsed), catalog.size());
+            }
+            return catalog;
+        }
+        SimulationServer simulation = simulationServer;
+        if (simulation != null) {
+            return simulation.getCatalog(catalogConfig.optJSONObject("defaults"));
+        }
+        if (browsed != null) {
+            TagCatalog catalog = AddressSpaceCrawler.toCatalog(browsed, catalogConfig.optJSONObject("defaults"));
+            logger.info("Tag catalog contains {} browsed variables", catalog.size());
+            return catalog;
+        }
+        return TagCatalog.load(catalogConfig);
+    }
 
-        IpcUtils.updateShadow(THING_NAME, "opc", stateObject.toString().getBytes());
+    // value processing between the subscriptions and IPC, also driven
+    // directly by the benchmarks
+    void startPipeline(TagCatalog catalog) {
+        lastValues = new LastValueCache(catalog);
+        shadowWriter = new ShadowDocumentWriter(catalog, getShadowSection());
+        // subscription values are coalesced and sent to the shadow per window
+        shadowBatcher = new ShadowUpdateBatcher(config.section("shadowBatch"), shadowWriter,
+                this::sendShadowDocument);
+        // high rate groups go to an IoT Core topic as batched samples instead
+        telemetryStreamer = new TelemetryStreamer(config.section("telemetry"), catalog, THING_NAME,
+                config.getEndpointName(), storeAndForward);
+        // trend groups only report window statistics
+        aggregationEngine = new AggregationEngine(config.section("telemetry"), catalog, THING_NAME,
+                config.getEndpointName(), storeAndForward, shadowBatcher::offer);
+        // recent values of every tag stay queryable on the device
+        JSONObject historyConfig = config.section("history");
+        if (historyConfig.optBoolean("enabled", false)) {
+            try {
+                history = new TimeSeriesStore(historyConfig, catalog, config.getEndpointName());
+            } catch (IOException e) {
+                logger.error("Unable to open the tag history, continuing without: {}", e.getMessage());
+            }
+        }
     }
 
-    private static void writeTurbineStatus(OpcUaClient client, boolean status) {
-        try {
-            UaVariableNode node = client.getAddressSpace().getVariableNode(
-                    new NodeId(1, TURBINE_STATUS_STRING));
-            // don't write status or timestamps
-            CompletableFuture<StatusCode> f = client.writeValue(node.getNodeId(),
-                    new DataValue(new Variant(status), null, null));
-
-            StatusCode writeStatus = f.get();
-            logger.info("write Status={}", writeStatus);
-
-        } catch (UaException e) {
-            logger.error("unable to write Turbine Status {}", e.getMessage());
-        } catch (InterruptedException | ExecutionException e) {
-            logger.error(" write Turbine Status interrupted{}", e.getMessage());
+    void stopPipeline() {
+        TimeSeriesStore store = history;
+        if (store != null) {
+            history = null;
+            store.close();
         }
+        aggregationEngine.close();
+        telemetryStreamer.close();
+        shadowBatcher.close();
+    }
 
+    // the snapshot seeds the last reported values, unchanged notifications are dropped
+    void reportSnapshot(TagCatalog catalog, Map<NodeId, DataValue> values) {
+        Map<TagDefinition, Object> snapshot = new LinkedHashMap<>(catalog.size() * 2);
+        for (TagDefinition tag : catalog.getTags()) {
+            DataValue value = values.get(tag.getNodeId());
+            if (value != null) {
+                lastValues.update(tag, value);
+                recordHistory(tag, value);
+            }
+            snapshot.put(tag, value != null ? value.getValue().getValue() : null);
+        }
+        shadowBatcher.offerAll(snapshot);
     }
 
-    private void browseNode(String indent, OpcUaClient client, NodeId browseRoot) {
-        BrowseDescription browse = new BrowseDescription(
-                browseRoot,
-                BrowseDirection.Forward,
-                Identifiers.References,
-                true,
-                uint(NodeClass.Object.getValue() | NodeClass.Variable.getValue()),
-                uint(BrowseResultMask.All.getValue()));
+    void onSubscriptionValue(TagDefinition tag, DataValue value) {
+        recordHistory(tag, value);
+        if (aggregationEngine.offer(tag, value)) {
+            return; // part of a window aggregate, not reported on its own
+        }
+        if (!lastValues.update(tag, value)) {
+            unchangedValues.increment();
+            return; // same as last reported or within the deadband
+        }
 
-        try {
-            BrowseResult browseResult = client.browse(browse).get();
+        if (logger.isDebugEnabled()) {
+            logger.debug("subscription value received: item={}, value={}", tag.getName(),
+                    value.getValue().getValue());
+        }
+        telemetryStreamer.offer(tag, value);
+        if (telemetryStreamer.isShadowed(tag)) {
+            shadowBatcher.offer(tag, value.getValue().getValue());
+        }
+    }
 
-            List<ReferenceDescription> references = toList(browseResult.getReferences());
+    // values read again after a reconnect, lost notifications or a silent
+    // subscription may repeat samples that were already aggregated and
+    // recorded, so only the last value cache and the shadow see them
+    void onResyncValue(TagDefinition tag, DataValue value) {
+        if (aggregationEngine.isAggregated(tag) || !lastValues.update(tag, value)) {
+            return;
+        }
+        if (telemetryStreamer.isShadowed(tag)) {
+            shadowBatcher.offer(tag, value.getValue().getValue());
+        }
+    }
 
-            for (ReferenceDescription rd : references) {
-                logger.info("{} Node={}", indent, rd.getBrowseName().getName());
+    private void recordHistory(TagDefinition tag, DataValue value) {
+        TimeSeriesStore store = history;
+        if (store != null) {
+            store.record(tag, value);
+        }
+    }
 
-                // recursively browse to children
-                rd.getNodeId().toNodeId(client.getNamespaceTable())
-                        .ifPresent(nodeId -> browseNode(indent + "  ", client, nodeId));
+    // Update shadows, the batcher writes {"state":{"reported":{"<section>":{...}}}}
+    // documents without a JSONObject tree
+    CompletableFuture<?> sendShadowDocument(byte[] document) {
+        return AsyncIpcUtils.updateShadowAsync(THING_NAME, "opc", document).whenComplete((response, ex) -> {
+            if (ex == null) {
+                StartupTimer.firstValuePublished();
             }
-        } catch (InterruptedException | ExecutionException e) {
-            logger.error("Browsing nodeId={} failed: {}", browseRoot, e.getMessage(), e);
-        }
+        });
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.toList;
+
+// Server operation limits (Server.ServerCapabilities.OperationLimits), used to
+// size batched service calls. A limit of 0 or an unreadable limit means the
+// server does not advertise one and our own default is used instead.
+public class OperationLimits {
+    private static final Logger logger = LoggerFactory.getLogger(OperationLimits.class);
+
+    static final int DEFAULT_MAX_MONITORED_ITEMS_PER_CALL = 1000;
+    static final int DEFAULT_MAX_NODES_PER_READ = 1000;
+    static final int DEFAULT_MAX_NODES_PER_WRITE = 500;
+    static final int DEFAULT_MAX_NODES_PER_BROWSE = 500;
+
+    private final int maxMonitoredItemsPerCall;
+    private final int maxNodesPerRead;
+    private final int maxNodesPerWrite;
+    private final int maxNodesPerBrowse;
+
+    public OperationLimits(int maxMonitoredItemsPerCall, int maxNodesPerRead, int maxNodesPerWrite,
+            int maxNodesPerBrowse) {
+        this.maxMonitoredItemsPerCall = maxMonitoredItemsPerCall;
+        this.maxNodesPerRead = maxNodesPerRead;
+        this.maxNodesPerWrite = maxNodesPerWrite;
+        this.maxNodesPerBrowse = maxNodesPerBrowse;
+    }
+
+    public static OperationLimits defaults() {
+        return new OperationLimits(DEFAULT_MAX_MONITORED_ITEMS_PER_CALL, DEFAULT_MAX_NODES_PER_READ,
+                DEFAULT_MAX_NODES_PER_WRITE, DEFAULT_MAX_NODES_PER_BROWSE);
+    }
+
+    // Value attributes holding the limits, in the order fromValues expects
+    static final List<NodeId> NODE_IDS = Arrays.asList(
+            Identifiers.Server_ServerCapabilities_OperationLimits_MaxMonitoredItemsPerCall,
+            Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerRead,
+            Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerWrite,
+            Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerBrowse);
+
+    // all limits are fetched with a single Read request
+    public static OperationLimits read(OpcUaClient client) {
+        ReadValueId[] readValueIds = new ReadValueId[NODE_IDS.size()];
+        for (int i = 0; i < readValueIds.length; i++) {
+            readValueIds[i] = new ReadValueId(NODE_IDS.get(i), AttributeId.Value.uid(), null,
+                    QualifiedName.NULL_VALUE);
+        }
+
+        try {
+            ReadResponse response = client.read(0.0, TimestampsToReturn.Neither, Arrays.asList(readValueIds)).get();
+            return fromValues(toList(response.getResults()));
+        } catch (Exception e) {
+            logger.warn("Unable to read server operation limits, using defaults: {}", e.getMessage());
+            return defaults();
+        }
+    }
+
+    // values of NODE_IDS, read along with other nodes; missing or bad values
+    // fall back to the defaults
+    static OperationLimits fromValues(List<DataValue> values) {
+        OperationLimits limits = new OperationLimits(
+                limit(values, 0, DEFAULT_MAX_MONITORED_ITEMS_PER_CALL),
+                limit(values, 1, DEFAULT_MAX_NODES_PER_READ),
+                limit(values, 2, DEFAULT_MAX_NODES_PER_WRITE),
+                limit(values, 3, DEFAULT_MAX_NODES_PER_BROWSE));
+        logger.info("Server operation limits: {}", limits);
+        return limits;
+    }
+
+    private static int limit(List<DataValue> values, int index, int defaultLimit) {
+        if (index >= values.size() || !values.get(index).getStatusCode().isGood()) {
+            return defaultLimit;
+        }
+        Object value = values.get(index).getValue().getValue();
+        if (value instanceof UInteger && ((UInteger) value).longValue() > 0) {
+            return (int) Math.min(Integer.MAX_VALUE, ((UInteger) value).longValue());
+        }
+        return defaultLimit;
+    }
+
+    public int getMaxMonitoredItemsPerCall() {
+        return maxMonitoredItemsPerCall;
+    }
+
+    public int getMaxNodesPerRead() {
+        return maxNodesPerRead;
+    }
+
+    public int getMaxNodesPerWrite() {
+        return maxNodesPerWrite;
+    }
+
+    public int getMaxNodesPerBrowse() {
+        return maxNodesPerBrowse;
+    }
+
+    @Override
+    public String toString() {
+        return "maxMonitoredItemsPerCall=" + maxMonitoredItemsPerCall
+                + ", maxNodesPerRead=" + maxNodesPerRead
+                + ", maxNodesPerWrite=" + maxNodesPerWrite
+                + ", maxNodesPerBrowse=" + maxNodesPerBrowse;
+    }
+}
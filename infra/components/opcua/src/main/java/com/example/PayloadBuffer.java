@@ -0,0 +1,149 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.Arrays;
+
+// Growable byte array that payload encoders write into. Instances are
+// reused (PayloadBufferPool, ShadowDocumentWriter), so encoding a payload
+// allocates only the final array.
+public final class PayloadBuffer {
+    private byte[] bytes;
+    private int size;
+
+    public PayloadBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+
+    public void writeBytes(byte[] b, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+    }
+
+    // unsigned LEB128
+    public void writeVarint(long value) {
+        ensureCapacity(size + 10);
+        while ((value & ~0x7fL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    // small negative values stay short
+    public void writeZigZag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(size + 4);
+        bytes[size++] = (byte) (value >>> 24);
+        bytes[size++] = (byte) (value >>> 16);
+        bytes[size++] = (byte) (value >>> 8);
+        bytes[size++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    // UTF-8 without an intermediate byte[], returns the number of bytes written
+    public int writeUtf8(CharSequence s) {
+        return writeUtf8(s, 0, s.length());
+    }
+
+    // characters from begin (inclusive) to end (exclusive)
+    public int writeUtf8(CharSequence s, int begin, int end) {
+        int start = size;
+        ensureCapacity(size + end - begin);
+        for (int i = begin; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(size + 1);
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(size + 2);
+                bytes[size++] = (byte) (0xc0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(size + 4);
+                bytes[size++] = (byte) (0xf0 | (cp >> 18));
+                bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                ensureCapacity(size + 3);
+                bytes[size++] = (byte) (0xe0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return size - start;
+    }
+
+    public static int utf8Length(CharSequence s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                count++;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                count += 4;
+                i++;
+            } else {
+                count += 3;
+            }
+        }
+        return count;
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return bytes.length;
+    }
+
+    // marks length more bytes, written directly into array(), as used
+    public void advance(int length) {
+        size += length;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    // drops what was written after the first size bytes
+    public void truncate(int size) {
+        this.size = Math.min(this.size, Math.max(0, size));
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+}
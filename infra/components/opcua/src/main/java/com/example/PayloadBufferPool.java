@@ -0,0 +1,46 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded pool of PayloadBuffers shared by the telemetry encoders. Buffers
+// that grew beyond maxRetainedBytes are not kept, so one oversized batch
+// does not pin memory for the lifetime of the component.
+public class PayloadBufferPool {
+    private final ConcurrentLinkedQueue<PayloadBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int initialBytes;
+    private final int maxRetainedBytes;
+    private final int maxPooled;
+
+    public PayloadBufferPool(int initialBytes, int maxRetainedBytes, int maxPooled) {
+        this.initialBytes = initialBytes;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.maxPooled = maxPooled;
+    }
+
+    public PayloadBuffer acquire() {
+        PayloadBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return new PayloadBuffer(initialBytes);
+        }
+        pooled.decrementAndGet();
+        buffer.reset();
+        return buffer;
+    }
+
+    public void release(PayloadBuffer buffer) {
+        if (buffer.capacity() > maxRetainedBytes) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.SessionActivityListener;
+import org.eclipse.milo.opcua.sdk.client.api.UaSession;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscriptionManager;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps the OPC UA session and its subscriptions working across server or
+// network outages without restarting the component. Milo's session state
+// machine already reconnects on its own (up to 16s between attempts) and
+// transfers the subscriptions to the new session. The supervisor adds the
+// rest: the first connect is retried with bounded exponential backoff instead
+// of failing the component, subscriptions whose transfer failed (a restarted
+// server has forgotten them) are created again with their monitored items, and
+// after every reconnect the catalog is read once so values that changed while
+// disconnected are reported. Configured by the "reconnect" section:
+// {"initialDelayMs": 500, "maxDelayMs": 30000, "multiplier": 2.0}
+public class SessionSupervisor
+        implements SessionActivityListener, UaSubscriptionManager.SubscriptionListener, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SessionSupervisor.class);
+
+    private static final LongAdder reconnects = MetricsRegistry.counter("opcua.reconnects");
+    private static final LongAdder subscriptionRebuilds = MetricsRegistry.counter("opcua.subscriptionRebuilds");
+    private static final LongAdder notificationDataLost = MetricsRegistry.counter("opcua.notificationDataLost");
+
+    private final OpcUaClient client;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "opcua-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean resyncScheduled = new AtomicBoolean();
+
+    private volatile SubscriptionSharder sharder;
+    private volatile Supplier<CompletableFuture<?>> resync;
+    // System.nanoTime() when the session was lost, 0 while it is active
+    private volatile long inactiveSince;
+
+    public SessionSupervisor(OpcUaClient client, JSONObject config) {
+        this.client = client;
+        this.initialDelayMs = Math.max(1, config.optLong("initialDelayMs", 500));
+        this.maxDelayMs = Math.max(initialDelayMs, config.optLong("maxDelayMs", 30000));
+        this.multiplier = Math.max(1.0, config.optDouble("multiplier", 2.0));
+    }
+
+    // blocks until the client is connected, only an interrupt ends the retries
+    public void connect() throws InterruptedException {
+        long delay = initialDelayMs;
+        for (int attempt = 1;; attempt++) {
+            try {
+                client.connect().get();
+                return;
+            } catch (ExecutionException e) {
+                logger.warn("OPCUA connect attempt {} failed: {}, retrying in {}ms", attempt,
+                        e.getCause() != null ? e.getCause().getMessage() : e.getMessage(), delay);
+                Thread.sleep(delay);
+                delay = nextDelay(delay);
+            }
+        }
+    }
+
+    long nextDelay(long delay) {
+        return Math.min(maxDelayMs, (long) (delay * multiplier));
+    }
+
+    // from here on lost subscriptions of the sharder are rebuilt, and resync
+    // is run after every reconnect
+    public void supervise(SubscriptionSharder sharder, Supplier<CompletableFuture<?>> resync) {
+        this.sharder = sharder;
+        this.resync = resync;
+        client.addSessionActivityListener(this);
+        client.getSubscriptionManager().addSubscriptionListener(this);
+    }
+
+    // a shard whose subscription couldn't be created, retried with backoff
+    // until it is
+    public void retry(SubscriptionSharder.Shard shard) {
+        SubscriptionSharder current = sharder;
+        if (current != null && !executor.isShutdown()) {
+            logger.warn("Creating {} monitored items again in {}ms", shard.tags.size(), initialDelayMs);
+            executor.schedule(() -> rebuild(current, shard, nextDelay(initialDelayMs)), initialDelayMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onSessionInactive(UaSession session) {
+        if (inactiveSince == 0) {
+            inactiveSince = System.nanoTime();
+        }
+        logger.warn("OPCUA session {} inactive, waiting for reconnect", session.getSessionId());
+    }
+
+    @Override
+    public void onSessionActive(UaSession session) {
+        long since = inactiveSince;
+        if (since == 0) {
+            return;
+        }
+        inactiveSince = 0;
+        reconnects.increment();
+        logger.info("OPCUA session {} active again after {}ms", session.getSessionId(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+        scheduleResync();
+    }
+
+    @Override
+    public void onSubscriptionTransferFailed(UaSubscription subscription, StatusCode statusCode) {
+        SubscriptionSharder current = sharder;
+        SubscriptionSharder.Shard shard = current != null ? current.findShard(subscription) : null;
+        if (shard == null) {
+            return;
+        }
+        subscriptionRebuilds.increment();
+        logger.warn("Transfer of subscription {} failed ({}), recreating {} monitored items",
+                subscription.getSubscriptionId(), statusCode, shard.tags.size());
+        executor.execute(() -> rebuild(current, shard, initialDelayMs));
+    }
+
+    @Override
+    public void onNotificationDataLost(UaSubscription subscription) {
+        notificationDataLost.increment();
+        logger.warn("Notifications of subscription {} lost, reading catalog again",
+                subscription.getSubscriptionId());
+        scheduleResync();
+    }
+
+    @Override
+    public void onSubscriptionWatchdogTimerElapsed(UaSubscription subscription) {
+        logger.warn("Subscription {} silent for longer than its lifetime", subscription.getSubscriptionId());
+        scheduleResync();
+    }
+
+    private void rebuild(SubscriptionSharder sharder, SubscriptionSharder.Shard shard, long delay) {
+        sharder.resubscribe(shard).whenCompleteAsync((v, ex) -> {
+            if (ex == null) {
+                logger.info("subscription {} recreated with {} items", shard.subscription.getSubscriptionId(),
+                        shard.tags.size());
+                scheduleResync();
+            } else if (!executor.isShutdown()) {
+                logger.warn("Recreating subscription failed: {}, retrying in {}ms", ex.getMessage(), delay);
+                executor.schedule(() -> rebuild(sharder, shard, nextDelay(delay)), delay, TimeUnit.MILLISECONDS);
+            }
+        }, executor);
+    }
+
+    // requests arriving while a resync is queued are served by that one
+    private void scheduleResync() {
+        Supplier<CompletableFuture<?>> current = resync;
+        if (current == null || !resyncScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            resyncScheduled.set(false);
+            long start = System.nanoTime();
+            current.get().whenComplete((v, ex) -> {
+                if (ex != null) {
+                    logger.error("Reading catalog after reconnect failed {}", ex.getMessage());
+                } else {
+                    logger.info("Catalog values resynchronized in {}ms",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            });
+        });
+    }
+
+    @Override
+    public void close() {
+        client.removeSessionActivityListener(this);
+        client.getSubscriptionManager().removeSubscriptionListener(this);
+        executor.shutdownNow();
+    }
+}
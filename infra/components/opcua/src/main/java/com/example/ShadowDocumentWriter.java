@@ -0,0 +1,246 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Writes the {"state":{"reported":{"<section>":{...}}}} shadow document straight
+// into a reused buffer. The quoted UTF-8 key of every catalog tag is encoded
+// once up front and numbers and booleans are written without boxing them
+// into strings, so an update allocates little more than the payload array.
+// Doubles with a fraction still go through Double.toString. Numbers are
+// formatted like org.json does, NaN and Infinity (which org.json rejects)
+// are written as null.
+// The shadow service rejects documents above its size limit (8 KB by
+// default), so updates are split into documents of bounded size.
+public class ShadowDocumentWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ShadowDocumentWriter.class);
+
+    static final String DEFAULT_SECTION = "opcua";
+
+    private static final byte[] SUFFIX = "}}}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private static final LongAdder oversizedValues = MetricsRegistry.counter("shadow.oversizedValues");
+
+    // {"state":{"reported":{"<section>":{
+    private final byte[] prefix;
+    // "name": per tag, indexed by TagDefinition.getIndex()
+    private final byte[][] keys;
+    // guarded by this
+    private final PayloadBuffer buffer = new PayloadBuffer(4096);
+
+    public ShadowDocumentWriter(TagCatalog catalog) {
+        this(catalog, DEFAULT_SECTION);
+    }
+
+    public ShadowDocumentWriter(TagCatalog catalog, String section) {
+        prefix = ("{\"state\":{\"reported\":{" + JSONObject.quote(section) + ":{").getBytes(StandardCharsets.UTF_8);
+        keys = new byte[catalog.size()][];
+        for (TagDefinition tag : catalog.getTags()) {
+            keys[tag.getIndex()] = catalog.getJsonKey(tag);
+        }
+    }
+
+    public synchronized byte[] write(Map<TagDefinition, Object> values) {
+        buffer.reset();
+        buffer.writeBytes(prefix, 0, prefix.length);
+        boolean first = true;
+        for (Map.Entry<TagDefinition, Object> entry : values.entrySet()) {
+            writeEntry(entry, first);
+            first = false;
+        }
+        return finish();
+    }
+
+    // one document of an update and the values it carries
+    public static final class Document {
+        public final byte[] payload;
+        public final Map<TagDefinition, Object> values;
+
+        Document(byte[] payload, Map<TagDefinition, Object> values) {
+            this.payload = payload;
+            this.values = values;
+        }
+    }
+
+    // documents of at most maxValues values and maxBytes bytes each, in the
+    // order of the map. A value too large for a document of its own is left
+    // out, the shadow service would reject it every time.
+    public synchronized List<Document> write(Map<TagDefinition, Object> values, int maxValues, int maxBytes) {
+        List<Document> documents = new ArrayList<>(1);
+        Map<TagDefinition, Object> current = new LinkedHashMap<>();
+        for (Map.Entry<TagDefinition, Object> entry : values.entrySet()) {
+            if (current.size() >= maxValues) {
+                documents.add(new Document(finish(), current));
+                current = new LinkedHashMap<>();
+            }
+            if (current.isEmpty()) {
+                buffer.reset();
+                buffer.writeBytes(prefix, 0, prefix.length);
+            }
+            int mark = buffer.size();
+            writeEntry(entry, current.isEmpty());
+            if (buffer.size() + SUFFIX.length > maxBytes && !current.isEmpty()) {
+                // the value starts the next document
+                buffer.truncate(mark);
+                documents.add(new Document(finish(), current));
+                current = new LinkedHashMap<>();
+                buffer.reset();
+                buffer.writeBytes(prefix, 0, prefix.length);
+                mark = buffer.size();
+                writeEntry(entry, true);
+            }
+            if (buffer.size() + SUFFIX.length > maxBytes) {
+                oversizedValues.increment();
+                logger.warn("Value of {} left out of the shadow update, {} bytes exceed the document limit of {}",
+                        entry.getKey().getName(), buffer.size() - mark, maxBytes);
+                buffer.truncate(mark);
+                continue;
+            }
+            current.put(entry.getKey(), entry.getValue());
+        }
+        if (!current.isEmpty()) {
+            documents.add(new Document(finish(), current));
+        }
+        return documents;
+    }
+
+    private void writeEntry(Map.Entry<TagDefinition, Object> entry, boolean first) {
+        if (!first) {
+            buffer.writeByte(',');
+        }
+        byte[] key = keys[entry.getKey().getIndex()];
+        buffer.writeBytes(key, 0, key.length);
+        writeValue(entry.getValue());
+    }
+
+    private byte[] finish() {
+        buffer.writeBytes(SUFFIX, 0, SUFFIX.length);
+        return buffer.toByteArray();
+    }
+
+    private void writeValue(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            buffer.writeBytes(NULL, 0, NULL.length);
+        } else if (value instanceof Boolean) {
+            byte[] b = ((Boolean) value) ? TRUE : FALSE;
+            buffer.writeBytes(b, 0, b.length);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue(), value instanceof Float);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (TelemetryEncoder.kindOf(value) == TelemetryEncoder.KIND_INTEGER) {
+            writeLong(((Number) value).longValue());
+        } else {
+            // rare types (arrays, LocalizedText, ...) keep the org.json rendering
+            buffer.writeUtf8(JSONObject.valueToString(value));
+        }
+    }
+
+    private void writeDouble(double d, boolean isFloat) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            buffer.writeBytes(NULL, 0, NULL.length);
+        } else if (d == (long) d && Math.abs(d) < 1e7 && !(d == 0.0 && 1 / d < 0)) {
+            // org.json drops the trailing ".0" of integral values
+            writeLong((long) d);
+        } else {
+            String s = isFloat ? Float.toString((float) d) : Double.toString(d);
+            if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+                int end = s.length();
+                while (s.charAt(end - 1) == '0') {
+                    end--;
+                }
+                if (s.charAt(end - 1) == '.') {
+                    end--;
+                }
+                buffer.writeUtf8(s, 0, end);
+            } else {
+                buffer.writeUtf8(s);
+            }
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.writeBytes(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        if (value < 0) {
+            buffer.writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        buffer.ensureCapacity(buffer.size() + digits);
+        byte[] bytes = buffer.array();
+        int position = buffer.size() + digits;
+        do {
+            bytes[--position] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        buffer.advance(digits);
+    }
+
+    private void writeString(String s) {
+        buffer.writeByte('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            buffer.writeUtf8(s, start, i);
+            start = i + 1;
+            buffer.writeByte('\\');
+            switch (c) {
+                case '"':
+                case '\\':
+                    buffer.writeByte(c);
+                    break;
+                case '\b':
+                    buffer.writeByte('b');
+                    break;
+                case '\t':
+                    buffer.writeByte('t');
+                    break;
+                case '\n':
+                    buffer.writeByte('n');
+                    break;
+                case '\f':
+                    buffer.writeByte('f');
+                    break;
+                case '\r':
+                    buffer.writeByte('r');
+                    break;
+                default:
+                    buffer.writeByte('u');
+                    buffer.writeByte('0');
+                    buffer.writeByte('0');
+                    buffer.writeByte(HEX[c >> 4]);
+                    buffer.writeByte(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        buffer.writeUtf8(s, start, s.length());
+        buffer.writeByte('"');
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Buffers reported values and sends them to the shadow as one combined
+// "reported.opcua" update per window. Values for the same tag within a
+// window are coalesced (last writer wins), so the number of IPC round-trips
+// is bounded by the window and not by the number of notifications.
+// An update is split into documents of bounded size that are sent one after
+// the other. A document the shadow service rejected (see
+// AsyncIpcUtils.isRetryable) loses its values, the others are still sent.
+// After any other failure the document and the ones not sent yet are requeued.
+public class ShadowUpdateBatcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ShadowUpdateBatcher.class);
+
+    // how long close() waits for the last updates to be answered
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    private final long windowMs;
+    private final int maxUpdates;
+    private final int maxDocumentBytes;
+    private final ShadowDocumentWriter writer;
+    private final Function<byte[], CompletableFuture<?>> sender;
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shadow-batcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    // at most one update in flight keeps shadow updates in order, values that
+    // arrive meanwhile keep coalescing until it is acknowledged
+    private final AtomicBoolean updateInFlight = new AtomicBoolean(false);
+    // completes once every document of the last update was answered, with
+    // false if values were requeued
+    private volatile CompletableFuture<Boolean> currentUpdate = CompletableFuture.completedFuture(true);
+    private final ScheduledFuture<?> windowFlush;
+
+    // guarded by this
+    private Map<TagDefinition, Object> pending = new HashMap<>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong sentUpdates = new AtomicLong();
+    private final AtomicLong sentValues = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+    private final AtomicLong droppedValues = new AtomicLong();
+    // guarded by this, arrival of the oldest pending value
+    private long pendingSince;
+
+    private static final LongAdder coalescedValues = MetricsRegistry.counter("shadow.coalescedValues");
+    private static final LongAdder updates = MetricsRegistry.counter("shadow.updates");
+    private static final LongAdder failures = MetricsRegistry.counter("shadow.failedUpdates");
+    private static final LongAdder rejectedValues = MetricsRegistry.counter("shadow.droppedValues");
+    // oldest value of each update, from arrival at the batcher to the shadow ack
+    private static final LatencyHistogram receiveToAck = MetricsRegistry.histogram("shadow.receiveToAck");
+
+    // config keys: windowMs (flush period), maxUpdates (flush early once this
+    // many distinct tags are pending, also the most values per document),
+    // maxDocumentBytes (size limit of a document)
+    public ShadowUpdateBatcher(JSONObject config, ShadowDocumentWriter writer,
+            Function<byte[], CompletableFuture<?>> sender) {
+        this(config.optLong("windowMs", 1000), config.optInt("maxUpdates", 500),
+                config.optInt("maxDocumentBytes", 7680), writer, sender);
+    }
+
+    public ShadowUpdateBatcher(long windowMs, int maxUpdates, int maxDocumentBytes, ShadowDocumentWriter writer,
+            Function<byte[], CompletableFuture<?>> sender) {
+        this.windowMs = Math.max(1, windowMs);
+        this.maxUpdates = Math.max(1, maxUpdates);
+        this.maxDocumentBytes = Math.max(256, maxDocumentBytes);
+        this.writer = writer;
+        this.sender = sender;
+        windowFlush = flushExecutor.scheduleWithFixedDelay(this::flush, this.windowMs, this.windowMs,
+                TimeUnit.MILLISECONDS);
+        logger.info("Shadow batching enabled: window={}ms maxUpdates={} maxDocumentBytes={}", this.windowMs,
+                this.maxUpdates, this.maxDocumentBytes);
+    }
+
+    // called from the OPC UA subscription threads, never blocks on IPC
+    public void offer(TagDefinition key, Object value) {
+        int size;
+        synchronized (this) {
+            size = put(key, value);
+        }
+        requestFlush(size);
+    }
+
+    // a whole snapshot in one go, sent in the same bounded documents
+    public void offerAll(Map<TagDefinition, Object> values) {
+        int size;
+        synchronized (this) {
+            size = pending.size();
+            for (Map.Entry<TagDefinition, Object> entry : values.entrySet()) {
+                size = put(entry.getKey(), entry.getValue());
+            }
+        }
+        requestFlush(size);
+    }
+
+    // guarded by this
+    private int put(TagDefinition key, Object value) {
+        received.incrementAndGet();
+        if (pending.isEmpty()) {
+            pendingSince = System.nanoTime();
+        }
+        if (pending.put(key, value != null ? value : JSONObject.NULL) != null) {
+            coalesced.incrementAndGet();
+            coalescedValues.increment();
+        }
+        return pending.size();
+    }
+
+    private void requestFlush(int size) {
+        if (size >= maxUpdates && !flushExecutor.isShutdown() && flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false); // closing, the final flush takes it
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        if (!updateInFlight.compareAndSet(false, true)) {
+            return;
+        }
+        Map<TagDefinition, Object> batch;
+        long batchSince;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                updateInFlight.set(false);
+                return;
+            }
+            batch = pending;
+            batchSince = pendingSince;
+            pending = new HashMap<>(batch.size() * 2);
+        }
+
+        List<ShadowDocumentWriter.Document> documents = writer.write(batch, maxUpdates, maxDocumentBytes);
+        logger.debug("shadow update of {} values in {} documents", batch.size(), documents.size());
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        currentUpdate = done;
+        send(documents, 0, batchSince, done);
+    }
+
+    // one document after the other, a large update doesn't fill the IPC
+    // window. The next document is sent from the flush thread and not from
+    // the IPC thread that completed the last one, sending may block for a permit.
+    private void send(List<ShadowDocumentWriter.Document> documents, int index, long batchSince,
+            CompletableFuture<Boolean> done) {
+        if (index == documents.size()) {
+            updateInFlight.set(false);
+            done.complete(true);
+            return;
+        }
+        ShadowDocumentWriter.Document document = documents.get(index);
+        CompletableFuture<?> update;
+        try {
+            update = sender.apply(document.payload);
+        } catch (Exception e) {
+            update = new CompletableFuture<>();
+            update.completeExceptionally(e);
+        }
+        update.whenComplete((response, ex) -> onFlushThread(() -> {
+            if (ex == null) {
+                receiveToAck.record(System.nanoTime() - batchSince);
+                updates.increment();
+                sentUpdates.incrementAndGet();
+                sentValues.addAndGet(document.values.size());
+                logger.debug("Flushed {} values to shadow (received={}, coalesced={}, updates={})",
+                        document.values.size(), received.get(), coalesced.get(), sentUpdates.get());
+                send(documents, index + 1, batchSince, done);
+                return;
+            }
+            failedUpdates.incrementAndGet();
+            failures.increment();
+            if (!AsyncIpcUtils.isRetryable(ex)) {
+                // only this document is refused, the rest of the update still goes out
+                droppedValues.addAndGet(document.values.size());
+                rejectedValues.add(document.values.size());
+                logger.error("Shadow update rejected {}, {} values dropped", ex.getMessage(),
+                        document.values.size());
+                send(documents, index + 1, batchSince, done);
+                return;
+            }
+            int requeued = 0;
+            for (int i = index; i < documents.size(); i++) {
+                requeue(documents.get(i).values, batchSince);
+                requeued += documents.get(i).values.size();
+            }
+            logger.error("Shadow update failed {}, {} values requeued", ex.getMessage(), requeued);
+            updateInFlight.set(false);
+            done.complete(false);
+        }));
+    }
+
+    private void onFlushThread(Runnable step) {
+        try {
+            flushExecutor.execute(step);
+        } catch (RejectedExecutionException e) {
+            step.run(); // closed, nothing else runs on the flush thread anymore
+        }
+    }
+
+    // a failed document goes back into the window unless a newer value for the
+    // same tag arrived meanwhile, replaying stale state would roll the shadow back
+    private synchronized void requeue(Map<TagDefinition, Object> values, long batchSince) {
+        if (pending.isEmpty() || batchSince - pendingSince < 0) {
+            pendingSince = batchSince;
+        }
+        for (Map.Entry<TagDefinition, Object> entry : values.entrySet()) {
+            pending.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getSentUpdateCount() {
+        return sentUpdates.get();
+    }
+
+    public long getSentValueCount() {
+        return sentValues.get();
+    }
+
+    public long getFailedUpdateCount() {
+        return failedUpdates.get();
+    }
+
+    public long getDroppedValueCount() {
+        return droppedValues.get();
+    }
+
+    @Override
+    public void close() {
+        windowFlush.cancel(false);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+        try {
+            // a flush while an update is in flight would send nothing, the
+            // update has to be answered (or requeued) first
+            CompletableFuture<Boolean> update = currentUpdate;
+            update.get(remaining(deadline), TimeUnit.NANOSECONDS);
+            // send whatever is left from the last window, again after an
+            // early flush got in between, until nothing is left or it fails
+            while (true) {
+                flushExecutor.submit(this::flush).get(remaining(deadline), TimeUnit.NANOSECONDS);
+                CompletableFuture<Boolean> last = currentUpdate;
+                if (last == update || !last.get(remaining(deadline), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                update = last;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Final shadow update did not complete: {}", e.toString());
+        }
+        flushExecutor.shutdown();
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                logger.warn("{} shadow values not sent before shutdown", pending.size());
+            }
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.api.ManagedNamespaceWithLifecycle;
+import org.eclipse.milo.opcua.sdk.server.api.MonitoredItem;
+import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
+import org.eclipse.milo.opcua.sdk.server.identity.AnonymousIdentityValidator;
+import org.eclipse.milo.opcua.sdk.server.model.nodes.objects.BaseEventTypeNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.security.DefaultCertificateManager;
+import org.eclipse.milo.opcua.stack.core.security.DefaultTrustListManager;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.transport.TransportProfile;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MessageSecurityMode;
+import org.eclipse.milo.opcua.stack.server.EndpointConfiguration;
+import org.eclipse.milo.opcua.stack.server.security.DefaultServerCertificateValidator;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+// Built-in OPC UA server with simulated, writable variables Sim.Tag<i> in a
+// "Simulation" folder, for load testing subscriptions, bulk reads and writes
+// without plant hardware. Listens on 127.0.0.1 without security. Configured
+// by the "simulation" section:
+// {
+//   "enabled": false, "port": 12686, "tags": 1000,
+//   "updateIntervalMs": 1000,   // 0 keeps the values constant
+//   "changeRatio": 1.0,         // share of the tags changed per update
+//   "types": {"Double": 6, "Int32": 2, "Boolean": 1, "String": 1},   // weights
+//   "noise": "randomWalk",      // randomWalk, sine, uniform or step
+//   "amplitude": 100.0, "periodMs": 60000, "seed": 42,
+//   "eventIntervalMs": 0        // > 0 raises a BaseEventType event of a random tag and severity
+// }
+// Endpoints simulating on the same port share one server, see EndpointPool.
+public class SimulationServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SimulationServer.class);
+
+    static final int DEFAULT_PORT = 12686;
+
+    private static final String NAMESPACE_URI = "urn:example:opcua:simulation";
+
+    public enum Noise {
+        RANDOMWALK, SINE, UNIFORM, STEP
+    }
+
+    private final OpcUaServer server;
+    private final SimulationNamespace namespace;
+    private final String endpointUrl;
+    private final long updateIntervalMs;
+    private final double changeRatio;
+    private final Noise noise;
+    private final double amplitude;
+    private final double periodMs;
+    private final Random random;
+    private final long eventIntervalMs;
+
+    private final ScheduledExecutorService updateExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "opcua-simulation");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong updates = new AtomicLong();
+    // runners connected to the server, the last one to stop closes it
+    private final AtomicInteger users = new AtomicInteger();
+
+    public SimulationServer(JSONObject config) throws Exception {
+        int port = config.optInt("port", DEFAULT_PORT);
+        int tags = config.optInt("tags", 1000);
+        this.updateIntervalMs = config.optLong("updateIntervalMs", 1000);
+        this.changeRatio = config.optDouble("changeRatio", 1.0);
+        this.noise = Noise.valueOf(config.optString("noise", "randomWalk").toUpperCase());
+        this.amplitude = config.optDouble("amplitude", 100.0);
+        this.periodMs = config.optDouble("periodMs", 60000.0);
+        this.random = new Random(config.optLong("seed", 42));
+        this.eventIntervalMs = config.optLong("eventIntervalMs", 0);
+
+        Path pki = Files.createTempDirectory("opcua-simulation-pki");
+        DefaultTrustListManager trustListManager = new DefaultTrustListManager(pki.toFile());
+
+        EndpointConfiguration endpoint = EndpointConfiguration.newBuilder()
+                .setBindAddress("127.0.0.1")
+                .setHostname("127.0.0.1")
+                .setBindPort(port)
+                .setPath("/simulation")
+                .setTransportProfile(TransportProfile.TCP_UASC_UABINARY)
+                .setSecurityPolicy(SecurityPolicy.None)
+                .setSecurityMode(MessageSecurityMode.None)
+                .addTokenPolicies(OpcUaServerConfig.USER_TOKEN_POLICY_ANONYMOUS)
+                .build();
+
+        OpcUaServerConfig serverConfig = OpcUaServerConfig.builder()
+                .setApplicationUri(NAMESPACE_URI)
+                .setApplicationName(LocalizedText.english("OPC UA simulation server"))
+                .setProductUri(NAMESPACE_URI)
+                .setEndpoints(Collections.singleton(endpoint))
+                .setCertificateManager(new DefaultCertificateManager())
+                .setTrustListManager(trustListManager)
+                .setCertificateValidator(new DefaultServerCertificateValidator(trustListManager))
+                .setIdentityValidator(AnonymousIdentityValidator.INSTANCE)
+                .build();
+
+        server = new OpcUaServer(serverConfig);
+        namespace = new SimulationNamespace(server, typeMix(config.optJSONObject("types"), tags));
+        endpointUrl = "opc.tcp://127.0.0.1:" + port + "/simulation";
+    }
+
+    // one data type per tag, drawn with the configured weights
+    private List<BuiltinDataType> typeMix(JSONObject weights, int tags) {
+        if (weights == null || weights.isEmpty()) {
+            weights = new JSONObject().put("Double", 1);
+        }
+        List<BuiltinDataType> types = new ArrayList<>();
+        List<Double> cumulative = new ArrayList<>();
+        double total = 0.0;
+        for (Iterator<String> it = weights.keys(); it.hasNext();) {
+            String name = it.next();
+            BuiltinDataType type = BuiltinDataType.valueOf(name);
+            switch (type) {
+                case Boolean:
+                case Int16:
+                case Int32:
+                case Int64:
+                case UInt16:
+                case UInt32:
+                case Float:
+                case Double:
+                case String:
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported simulation data type: " + name);
+            }
+            total += weights.getDouble(name);
+            types.add(type);
+            cumulative.add(total);
+        }
+        List<BuiltinDataType> mix = new ArrayList<>(tags);
+        for (int i = 0; i < tags; i++) {
+            double r = random.nextDouble() * total;
+            int t = 0;
+            while (t < cumulative.size() - 1 && r >= cumulative.get(t)) {
+                t++;
+            }
+            mix.add(types.get(t));
+        }
+        return mix;
+    }
+
+    public SimulationServer startup() throws ExecutionException, InterruptedException {
+        namespace.startup();
+        server.startup().get();
+        if (updateIntervalMs > 0) {
+            updateExecutor.scheduleAtFixedRate(this::update, updateIntervalMs, updateIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (eventIntervalMs > 0) {
+            updateExecutor.scheduleAtFixedRate(this::raiseEvent, eventIntervalMs, eventIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        logger.info("Simulation server listening at {} with {} tags, update every {}ms ({} noise)", endpointUrl,
+                namespace.nodes.size(), updateIntervalMs, noise);
+        return this;
+    }
+
+    public SimulationServer retain() {
+        users.incrementAndGet();
+        return this;
+    }
+
+    // true when no runner uses the server anymore
+    public boolean release() {
+        return users.decrementAndGet() <= 0;
+    }
+
+    public String getEndpointUrl() {
+        return endpointUrl;
+    }
+
+    public List<NodeId> getNodeIds() {
+        List<NodeId> nodeIds = new ArrayList<>(namespace.nodes.size());
+        for (UaVariableNode node : namespace.nodes) {
+            nodeIds.add(node.getNodeId());
+        }
+        return nodeIds;
+    }
+
+    // catalog of all simulated variables, missing settings come from the defaults
+    public TagCatalog getCatalog(JSONObject defaults) {
+        if (defaults == null) {
+            defaults = new JSONObject();
+        }
+        List<TagDefinition> tags = new ArrayList<>(namespace.nodes.size());
+        for (UaVariableNode node : namespace.nodes) {
+            JSONObject tag = new JSONObject()
+                    .put("name", node.getBrowseName().getName())
+                    .put("nodeId", node.getNodeId().toParseableString());
+            tags.add(TagDefinition.fromJson(tags.size(), tag, defaults));
+        }
+        TagCatalog catalog = new TagCatalog(tags);
+        for (TagDefinition tag : tags) {
+            catalog.setDataType(tag, namespace.types.get(tag.getIndex()));
+        }
+        return catalog;
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    private void update() {
+        try {
+            long now = System.currentTimeMillis();
+            DateTime time = new DateTime();
+            List<UaVariableNode> nodes = namespace.nodes;
+            for (int i = 0; i < nodes.size(); i++) {
+                if (changeRatio < 1.0 && random.nextDouble() >= changeRatio) {
+                    continue;
+                }
+                double x = namespace.state[i] = next(i, namespace.state[i], now);
+                nodes.get(i).setValue(new DataValue(toVariant(namespace.types.get(i), x), StatusCode.GOOD, time,
+                        time));
+                updates.incrementAndGet();
+            }
+        } catch (Throwable t) {
+            logger.error("Simulation update failed {}", t.getMessage());
+        }
+    }
+
+    // notified through the Server object, severity 1 to 1000
+    private void raiseEvent() {
+        try {
+            UaVariableNode source = namespace.nodes.get(random.nextInt(namespace.nodes.size()));
+            int severity = 1 + random.nextInt(1000);
+            BaseEventTypeNode event = server.getEventFactory().createEvent(
+                    new NodeId(namespace.getNamespaceIndex(), UUID.randomUUID()), Identifiers.BaseEventType);
+            event.setBrowseName(source.getBrowseName());
+            event.setDisplayName(source.getDisplayName());
+            event.setEventId(ByteString.of(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8)));
+            event.setEventType(Identifiers.BaseEventType);
+            event.setSourceNode(source.getNodeId());
+            event.setSourceName(source.getDisplayName().getText());
+            event.setTime(DateTime.now());
+            event.setReceiveTime(DateTime.NULL_VALUE);
+            event.setMessage(LocalizedText.english(source.getDisplayName().getText() + " severity " + severity));
+            event.setSeverity(ushort(severity));
+            server.getEventBus().post(event);
+            event.delete();
+        } catch (Throwable t) {
+            logger.error("Simulation event failed {}", t.getMessage());
+        }
+    }
+
+    private double next(int i, double x, long now) {
+        switch (noise) {
+            case SINE:
+                // every tag gets its own phase
+                return amplitude * Math.sin(2 * Math.PI * (now / periodMs + i / 64.0));
+            case UNIFORM:
+                return amplitude * random.nextDouble();
+            case STEP:
+                return x == 0.0 ? amplitude : 0.0;
+            default:
+                return x + random.nextGaussian() * amplitude * 0.01;
+        }
+    }
+
+    private static Variant toVariant(BuiltinDataType type, double x) {
+        switch (type) {
+            case Boolean:
+                return new Variant(x > 0.0);
+            case Int16:
+                return new Variant((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(x))));
+            case Int32:
+                return new Variant((int) Math.round(x));
+            case Int64:
+                return new Variant(Math.round(x));
+            case UInt16:
+                return new Variant(ushort((int) Math.min(0xffff, Math.abs(Math.round(x)))));
+            case UInt32:
+                return new Variant(uint(Math.abs(Math.round(x)) & 0xffffffffL));
+            case Float:
+                return new Variant((float) x);
+            case String:
+                return new Variant("S" + Math.round(x));
+            default:
+                return new Variant(x);
+        }
+    }
+
+    @Override
+    public void close() throws ExecutionException, InterruptedException {
+        updateExecutor.shutdownNow();
+        namespace.shutdown();
+        server.shutdown().get();
+    }
+
+    private static class SimulationNamespace extends ManagedNamespaceWithLifecycle {
+        private final SubscriptionModel subscriptionModel;
+        private final List<BuiltinDataType> types;
+        private final List<UaVariableNode> nodes = new ArrayList<>();
+        // current simulated value per tag, before the conversion to its type
+        private final double[] state;
+
+        SimulationNamespace(OpcUaServer server, List<BuiltinDataType> types) {
+            super(server, NAMESPACE_URI);
+            this.types = types;
+            this.state = new double[types.size()];
+            subscriptionModel = new SubscriptionModel(server, this);
+            getLifecycleManager().addLifecycle(subscriptionModel);
+            getLifecycleManager().addStartupTask(this::addNodes);
+        }
+
+        private void addNodes() {
+            UaFolderNode folder = new UaFolderNode(getNodeContext(), newNodeId("Simulation"),
+                    newQualifiedName("Simulation"), LocalizedText.english("Simulation"));
+            getNodeManager().addNode(folder);
+            folder.addReference(new Reference(folder.getNodeId(), Identifiers.Organizes,
+                    Identifiers.ObjectsFolder.expanded(), false));
+
+            for (int i = 0; i < types.size(); i++) {
+                String name = "Sim.Tag" + i;
+                BuiltinDataType type = types.get(i);
+                state[i] = i % 1000;
+                UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(getNodeContext())
+                        .setNodeId(newNodeId(name))
+                        .setAccessLevel(AccessLevel.READ_WRITE)
+                        .setUserAccessLevel(AccessLevel.READ_WRITE)
+                        .setBrowseName(newQualifiedName(name))
+                        .setDisplayName(LocalizedText.english(name))
+                        .setDataType(type.getNodeId())
+                        .setTypeDefinition(Identifiers.BaseDataVariableType)
+                        .build();
+                node.setValue(new DataValue(toVariant(type, state[i])));
+                getNodeManager().addNode(node);
+                folder.addOrganizes(node);
+                nodes.add(node);
+            }
+        }
+
+        @Override
+        public void onDataItemsCreated(List<DataItem> dataItems) {
+            subscriptionModel.onDataItemsCreated(dataItems);
+        }
+
+        @Override
+        public void onDataItemsModified(List<DataItem> dataItems) {
+            subscriptionModel.onDataItemsModified(dataItems);
+        }
+
+        @Override
+        public void onDataItemsDeleted(List<DataItem> dataItems) {
+            subscriptionModel.onDataItemsDeleted(dataItems);
+        }
+
+        @Override
+        public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
+            subscriptionModel.onMonitoringModeChanged(monitoredItems);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Append-only spool on disk, made of fixed size memory-mapped segment files.
+// Records are read back in the order they were appended and a small cursor
+// file remembers what was already replayed, so the spool survives restarts.
+// When maxSegments is reached the oldest segment is deleted, unread records in
+// it are counted as dropped.
+//
+// record: int bodyLength | int crc32(body) | body
+// body:   byte kind | byte qos | short topicLength | topic (UTF-8) | payload
+// a zero length marks the end of the written part of a segment.
+public class SpoolLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolLog.class);
+
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    public static final class Record {
+        public final byte kind;
+        public final byte qos;
+        public final String topic;
+        public final byte[] payload;
+        final long segment;
+        final int nextOffset;
+
+        Record(byte kind, byte qos, String topic, byte[] payload, long segment, int nextOffset) {
+            this.kind = kind;
+            this.qos = qos;
+            this.topic = topic;
+            this.payload = payload;
+            this.segment = segment;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int writePosition;
+
+        Segment(long sequence, Path path, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final MappedByteBuffer cursor;
+
+    private Segment writeSegment;
+    private long readSegment;
+    private int readOffset;
+
+    private long appendedRecords;
+    private long droppedRecords;
+
+    public SpoolLog(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(2, maxSegments);
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long sequence = Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(sequence, file, map(file, segmentBytes));
+                segment.writePosition = scanEnd(segment.buffer);
+                segments.put(sequence, segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            addSegment(0);
+        }
+        writeSegment = segments.lastEntry().getValue();
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("cursor"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            cursor = channel.map(FileChannel.MapMode.READ_WRITE, 0, 12);
+        }
+        readSegment = cursor.getLong(0);
+        readOffset = cursor.getInt(8);
+        if (!segments.containsKey(readSegment)) {
+            moveCursor(segments.firstKey(), 0);
+        }
+        logger.info("Spool opened at {}: {} segments, read position {}:{}", directory, segments.size(),
+                readSegment, readOffset);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // first offset that does not hold a complete, valid record
+    private static int scanEnd(MappedByteBuffer buffer) {
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            readBytes(buffer, position + HEADER_BYTES, body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static void readBytes(MappedByteBuffer buffer, int offset, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] = buffer.get(offset + i);
+        }
+    }
+
+    private Segment addSegment(long sequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(sequence, path, map(path, segmentBytes));
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    public synchronized boolean append(byte kind, byte qos, String topic, byte[] payload) throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + topicBytes.length + payload.length;
+        if (HEADER_BYTES + length > segmentBytes) {
+            logger.error("Spool record of {} bytes exceeds the segment size, dropped", length);
+            droppedRecords++;
+            return false;
+        }
+
+        if (writeSegment.writePosition + HEADER_BYTES + length > segmentBytes) {
+            roll();
+        }
+
+        byte[] body = new byte[length];
+        body[0] = kind;
+        body[1] = qos;
+        body[2] = (byte) (topicBytes.length >>> 8);
+        body[3] = (byte) topicBytes.length;
+        System.arraycopy(topicBytes, 0, body, 4, topicBytes.length);
+        System.arraycopy(payload, 0, body, 4 + topicBytes.length, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+
+        MappedByteBuffer buffer = writeSegment.buffer;
+        int position = writeSegment.writePosition;
+        for (int i = 0; i < length; i++) {
+            buffer.put(position + HEADER_BYTES + i, body[i]);
+        }
+        buffer.putInt(position + 4, (int) crc.getValue());
+        // length goes last, a torn write leaves the record invisible
+        buffer.putInt(position, length);
+        writeSegment.writePosition = position + HEADER_BYTES + length;
+        appendedRecords++;
+        return true;
+    }
+
+    private void roll() throws IOException {
+        writeSegment.buffer.force();
+        writeSegment = addSegment(writeSegment.sequence + 1);
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+            if (oldest.getKey() >= readSegment) {
+                droppedRecords += countRecords(oldest.getValue(), oldest.getKey() == readSegment ? readOffset : 0);
+                moveCursor(segments.firstKey(), 0);
+            }
+            Files.deleteIfExists(oldest.getValue().path);
+            logger.warn("Spool full, deleted segment {} ({} records dropped so far)", oldest.getKey(),
+                    droppedRecords);
+        }
+    }
+
+    private static int countRecords(Segment segment, int from) {
+        int count = 0;
+        int position = from;
+        while (position < segment.writePosition) {
+            position += HEADER_BYTES + segment.buffer.getInt(position);
+            count++;
+        }
+        return count;
+    }
+
+    // next record to replay, or null when everything was replayed
+    public synchronized Record peek() {
+        while (true) {
+            Segment segment = segments.get(readSegment);
+            if (segment == null) {
+                return null;
+            }
+            if (readOffset < segment.writePosition) {
+                int length = segment.buffer.getInt(readOffset);
+                byte[] body = new byte[length];
+                readBytes(segment.buffer, readOffset + HEADER_BYTES, body);
+                int topicLength = ((body[2] & 0xff) << 8) | (body[3] & 0xff);
+                String topic = new String(body, 4, topicLength, StandardCharsets.UTF_8);
+                byte[] payload = new byte[length - 4 - topicLength];
+                System.arraycopy(body, 4 + topicLength, payload, 0, payload.length);
+                return new Record(body[0], body[1], topic, payload, readSegment,
+                        readOffset + HEADER_BYTES + length);
+            }
+            Long next = segments.higherKey(readSegment);
+            if (next == null) {
+                return null;
+            }
+            moveCursor(next, 0);
+            removeConsumedSegments();
+        }
+    }
+
+    // marks a record returned by peek() as replayed
+    public synchronized void commit(Record record) {
+        if (record.segment == readSegment) {
+            moveCursor(readSegment, record.nextOffset);
+        }
+    }
+
+    private void moveCursor(long segment, int offset) {
+        readSegment = segment;
+        readOffset = offset;
+        cursor.putLong(0, segment);
+        cursor.putInt(8, offset);
+    }
+
+    private void removeConsumedSegments() {
+        while (segments.firstKey() < readSegment) {
+            Segment consumed = segments.pollFirstEntry().getValue();
+            try {
+                Files.deleteIfExists(consumed.path);
+            } catch (IOException e) {
+                logger.warn("Unable to delete spool segment {}: {}", consumed.path, e.getMessage());
+            }
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return peek() == null;
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedRecords;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedRecords;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        cursor.force();
+    }
+}
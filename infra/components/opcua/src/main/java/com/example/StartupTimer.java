@@ -0,0 +1,52 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Startup milestones, measured from the start of the JVM. The time until the
+// first value reached IoT (the snapshot shadow update, usually) is kept as
+// the startup metric.
+public final class StartupTimer {
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimer.class);
+
+    private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final AtomicLong timeToFirstValue = new AtomicLong(-1);
+    static {
+        MetricsRegistry.gauge("startup.timeToFirstValueMs", timeToFirstValue::get);
+    }
+
+    private StartupTimer() {
+    }
+
+    public static long elapsedMs() {
+        return System.currentTimeMillis() - JVM_START;
+    }
+
+    public static void mark(String milestone) {
+        logger.info("Startup: {} after {}ms", milestone, elapsedMs());
+    }
+
+    // only the first call of the process counts
+    public static void firstValuePublished() {
+        if (timeToFirstValue.get() >= 0) {
+            return;
+        }
+        long elapsed = elapsedMs();
+        if (timeToFirstValue.compareAndSet(-1, elapsed)) {
+            logger.info("Startup: first value published after {}ms", elapsed);
+        }
+    }
+
+    // -1 until a value was published
+    public static long getTimeToFirstValueMs() {
+        return timeToFirstValue.get();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.model.QOS;
+
+// Outbound telemetry that could not be delivered (IPC or cloud unavailable) is
+// written to a SpoolLog and replayed in order once publishes succeed again.
+// Replay is rate limited and only uses the IPC window while less than half of
+// it is taken by live traffic, so a backlog never starves live data. Spool
+// writes run on the "egress" stage and replay continues on its own thread,
+// IPC completion threads never touch the disk or wait for the IPC window.
+// Publishes the IPC service refuses for good (see AsyncIpcUtils.isRetryable)
+// are not spooled, and a spooled record refused that way is skipped, so it
+// never holds up the records behind it.
+public class StoreAndForward implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StoreAndForward.class);
+
+    static final byte KIND_IOT_CORE = 1;
+    static final byte KIND_LOCAL_TOPIC = 2;
+
+    private static final long TICK_MS = 100;
+
+    private final SpoolLog spool;
+    private final int replayPerTick;
+    private final long retryIntervalMs;
+
+    private final ScheduledExecutorService replayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "spool-replay");
+        t.setDaemon(true);
+        return t;
+    });
+    private final BoundedStage egress;
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+    private volatile long nextReplayAttempt;
+
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public StoreAndForward(JSONObject config) throws IOException {
+        this(config, new JSONObject());
+    }
+
+    // config keys: directory, segmentBytes, maxBytes, replayPerSecond, retryIntervalMs
+    // egressConfig: settings of the BoundedStage that writes the spool
+    public StoreAndForward(JSONObject config, JSONObject egressConfig) throws IOException {
+        int segmentBytes = config.optInt("segmentBytes", 4 * 1024 * 1024);
+        long maxBytes = config.optLong("maxBytes", 64L * 1024 * 1024);
+        this.spool = new SpoolLog(Paths.get(config.optString("directory", "spool")), segmentBytes,
+                (int) Math.max(2, maxBytes / segmentBytes));
+        this.replayPerTick = Math.max(1, (int) (config.optInt("replayPerSecond", 50) * TICK_MS / 1000));
+        this.retryIntervalMs = config.optLong("retryIntervalMs", 10000);
+        this.egress = new BoundedStage("spool-egress", egressConfig, 1000, "dropOldest");
+        MetricsRegistry.gauge("spool.spooled", spooled::get);
+        MetricsRegistry.gauge("spool.replayed", replayed::get);
+        MetricsRegistry.gauge("spool.dropped", spool::getDroppedCount);
+        MetricsRegistry.gauge("spool.rejected", rejected::get);
+        replayExecutor.scheduleWithFixedDelay(this::replay, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<?> publishToIoTCore(String topic, byte[] payload, QOS qos) {
+        return publishToIoTCore(topic, payload, qos, false);
+    }
+
+    // priority publishes use the priority IPC window, see AsyncIpcUtils
+    public CompletableFuture<?> publishToIoTCore(String topic, byte[] payload, QOS qos, boolean priority) {
+        return AsyncIpcUtils.publishToIoTCoreAsync(topic, payload, qos, priority).handle((response, ex) -> {
+            if (ex != null) {
+                reject(topic, ex);
+                egress.execute(() -> store(KIND_IOT_CORE, qos, topic, payload));
+                // don't hammer the link with replays right after a failure
+                nextReplayAttempt = System.currentTimeMillis() + retryIntervalMs;
+            }
+            return response;
+        });
+    }
+
+    public CompletableFuture<?> publishToIpc(String topic, byte[] payload) {
+        return AsyncIpcUtils.publishToIpcAsync(topic, payload).handle((response, ex) -> {
+            if (ex != null) {
+                reject(topic, ex);
+                egress.execute(() -> store(KIND_LOCAL_TOPIC, QOS.AT_MOST_ONCE, topic, payload));
+            }
+            return response;
+        });
+    }
+
+    // a publish that would fail the same way on replay fails the caller's
+    // future instead of being spooled
+    private void reject(String topic, Throwable ex) {
+        if (AsyncIpcUtils.isRetryable(ex)) {
+            return;
+        }
+        rejected.incrementAndGet();
+        logger.error("Publish to {} refused, not spooled: {}", topic, ex.getMessage());
+        throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+    }
+
+    private void store(byte kind, QOS qos, String topic, byte[] payload) {
+        try {
+            if (spool.append(kind, (byte) qos.ordinal(), topic, payload)) {
+                spooled.incrementAndGet();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to spool message for {}: {}", topic, e.getMessage());
+        }
+    }
+
+    private void replay() {
+        if (System.currentTimeMillis() < nextReplayAttempt
+                || AsyncIpcUtils.getInFlight() * 2 >= AsyncIpcUtils.getMaxInFlight()
+                || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        replayNext(replayPerTick);
+    }
+
+    // records are sent one at a time so they reach the cloud in spool order
+    private void replayNext(int budget) {
+        SpoolLog.Record record = budget > 0 ? spool.peek() : null;
+        if (record == null) {
+            replaying.set(false);
+            return;
+        }
+
+        CompletableFuture<?> send = record.kind == KIND_LOCAL_TOPIC
+                ? AsyncIpcUtils.publishToIpcAsync(record.topic, record.payload)
+                : AsyncIpcUtils.publishToIoTCoreAsync(record.topic, record.payload, QOS.values()[record.qos]);
+        send.whenComplete((response, ex) -> {
+            if (ex != null && AsyncIpcUtils.isRetryable(ex)) {
+                logger.warn("Spool replay paused, publish to {} failed: {}", record.topic, ex.getMessage());
+                nextReplayAttempt = System.currentTimeMillis() + retryIntervalMs;
+                replaying.set(false);
+                return;
+            }
+            replayExecutor.execute(() -> {
+                spool.commit(record);
+                if (ex != null) {
+                    // refused for good, skipped so the records behind it are replayed
+                    rejected.incrementAndGet();
+                    logger.error("Spooled publish to {} refused, dropped: {}", record.topic, ex.getMessage());
+                } else {
+                    replayed.incrementAndGet();
+                }
+                replayNext(budget - 1);
+            });
+        });
+    }
+
+    public long getSpooledCount() {
+        return spooled.get();
+    }
+
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    public long getDroppedCount() {
+        return spool.getDroppedCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        replayExecutor.shutdown();
+        egress.close();
+        spool.close();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Spreads catalog tags over several subscriptions. Tags are grouped by the
+// publishing interval of their publishing group and every group is split into
+// shards of at most maxItemsPerSubscription items, so fast tags never share a
+// publish queue with slow ones. Each shard hands its notifications to its own
+// single threaded lane, a BoundedStage configured by the "ingest" stage
+// settings, so one slow consumer can't stall the other shards or the Milo
+// delivery thread. Notifications are keyed by tag for the coalesce policy.
+public class SubscriptionSharder implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionSharder.class);
+
+    static final double DEFAULT_PUBLISHING_INTERVAL = 1000.0;
+
+    private final OpcUaClient client;
+    private final TagSubscriber tagSubscriber;
+    private final JSONObject groupsConfig;
+    private final int maxItemsPerSubscription;
+    private final JSONObject ingestConfig;
+    private final String lanePrefix;
+
+    private static final LongAdder notifications = MetricsRegistry.counter("opcua.notifications");
+    // OPC UA source timestamp to arrival at the client, includes clock skew
+    private static final LatencyHistogram sourceToReceive = MetricsRegistry.histogram("opcua.sourceToReceive");
+
+    private final List<Shard> shards = new ArrayList<>();
+    private TagSubscriber.TagValueConsumer consumer;
+
+    static class Shard {
+        final double publishingInterval;
+        final List<TagDefinition> tags;
+        final BoundedStage lane;
+        volatile UaSubscription subscription;
+
+        // one worker per lane keeps the notifications of a tag in order
+        Shard(double publishingInterval, List<TagDefinition> tags, String laneName, JSONObject ingestConfig) {
+            this.publishingInterval = publishingInterval;
+            this.tags = tags;
+            this.lane = new BoundedStage(laneName, ingestConfig.optInt("capacity", 10000), 1,
+                    BoundedStage.Overflow.parse(ingestConfig.optString("overflow", "coalesce")),
+                    ingestConfig.optLong("blockTimeoutMs", 1000));
+        }
+    }
+
+    // groupsConfig: {"fast": {"publishingInterval": 100}, "slow": {"publishingInterval": 60000}}
+    public SubscriptionSharder(OpcUaClient client, TagSubscriber tagSubscriber, JSONObject groupsConfig,
+            int maxItemsPerSubscription) {
+        this(client, tagSubscriber, groupsConfig, maxItemsPerSubscription, new JSONObject(), "opcua-lane");
+    }
+
+    // ingestConfig: capacity, overflow and blockTimeoutMs of every lane,
+    // lanes are named <lanePrefix>-<interval>ms-<n>
+    public SubscriptionSharder(OpcUaClient client, TagSubscriber tagSubscriber, JSONObject groupsConfig,
+            int maxItemsPerSubscription, JSONObject ingestConfig, String lanePrefix) {
+        this.client = client;
+        this.tagSubscriber = tagSubscriber;
+        this.groupsConfig = groupsConfig;
+        this.maxItemsPerSubscription = Math.max(1, maxItemsPerSubscription);
+        this.ingestConfig = ingestConfig;
+        this.lanePrefix = lanePrefix;
+    }
+
+    public double getPublishingInterval(String group) {
+        JSONObject groupConfig = groupsConfig.optJSONObject(group);
+        if (groupConfig == null) {
+            groupConfig = groupsConfig.optJSONObject(TagDefinition.DEFAULT_GROUP);
+        }
+        return groupConfig != null
+                ? groupConfig.optDouble("publishingInterval", DEFAULT_PUBLISHING_INTERVAL)
+                : DEFAULT_PUBLISHING_INTERVAL;
+    }
+
+    // completes with the shards whose subscription couldn't be created, they
+    // have no subscription and are left to the caller to retry
+    public CompletableFuture<List<Shard>> subscribe(List<TagDefinition> tags,
+            TagSubscriber.TagValueConsumer consumer) {
+        Map<Double, List<TagDefinition>> byInterval = new TreeMap<>();
+        for (TagDefinition tag : tags) {
+            byInterval.computeIfAbsent(getPublishingInterval(tag.getGroup()), k -> new ArrayList<>()).add(tag);
+        }
+
+        for (Map.Entry<Double, List<TagDefinition>> entry : byInterval.entrySet()) {
+            List<TagDefinition> intervalTags = entry.getValue();
+            for (int i = 0; i < intervalTags.size(); i += maxItemsPerSubscription) {
+                String laneName = String.format("%s-%.0fms-%d", lanePrefix, entry.getKey(),
+                        i / maxItemsPerSubscription);
+                shards.add(new Shard(entry.getKey(),
+                        intervalTags.subList(i, Math.min(intervalTags.size(), i + maxItemsPerSubscription)),
+                        laneName, ingestConfig));
+            }
+        }
+
+        // subscriptions and their monitored items are created for all shards in parallel
+        this.consumer = consumer;
+        List<Shard> failed = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<?>> futures = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            futures.add(resubscribe(shard).exceptionally(ex -> {
+                logger.warn("subscription of {} items failed: {}", shard.tags.size(), ex.getMessage());
+                failed.add(shard);
+                return null;
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> failed);
+    }
+
+    // creates the shard's subscription and monitored items, also after the
+    // server lost the previous subscription
+    public CompletableFuture<Void> resubscribe(Shard shard) {
+        TagSubscriber.TagValueConsumer laneConsumer = (tag, value) -> {
+            notifications.increment();
+            DateTime sourceTime = value.getSourceTime();
+            if (sourceTime != null && !sourceTime.isNull()) {
+                sourceToReceive.recordMicros(
+                        Math.max(0, System.currentTimeMillis() - sourceTime.getJavaTime()) * 1000);
+            }
+            shard.lane.submit(tag, () -> consumer.onTagValue(tag, value));
+        };
+
+        return client.getSubscriptionManager().createSubscription(shard.publishingInterval)
+                .thenCompose(subscription -> {
+                    shard.subscription = subscription;
+                    logger.info("subscription {} created: publishingInterval={}ms (revised {}ms), items={}",
+                            subscription.getSubscriptionId(), shard.publishingInterval,
+                            subscription.getRevisedPublishingInterval(), shard.tags.size());
+                    return tagSubscriber.subscribe(subscription, shard.tags, laneConsumer)
+                            .whenComplete((items, ex) -> {
+                                if (ex != null) {
+                                    // the retry starts with a new subscription
+                                    shard.subscription = null;
+                                    client.getSubscriptionManager()
+                                            .deleteSubscription(subscription.getSubscriptionId());
+                                }
+                            });
+                })
+                .thenApply(items -> null);
+    }
+
+    public Shard findShard(UaSubscription subscription) {
+        for (Shard shard : shards) {
+            UaSubscription current = shard.subscription;
+            if (current != null && current.getSubscriptionId().equals(subscription.getSubscriptionId())) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    // hands read values of the shards' tags to resyncConsumer, on the lane of
+    // their shard so they stay in order with the notifications
+    public void resync(Map<NodeId, DataValue> values, TagSubscriber.TagValueConsumer resyncConsumer) {
+        for (Shard shard : shards) {
+            shard.lane.execute(() -> {
+                for (TagDefinition tag : shard.tags) {
+                    DataValue value = values.get(tag.getNodeId());
+                    if (value != null) {
+                        resyncConsumer.onTagValue(tag, value);
+                    }
+                }
+            });
+        }
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.lane.close();
+            if (shard.subscription != null) {
+                client.getSubscriptionManager().deleteSubscription(shard.subscription.getSubscriptionId());
+            }
+        }
+        shards.clear();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The set of OPC UA variables this component monitors, loaded from the
+// "tagCatalog" configuration section:
+// {
+//   "file": "/path/to/tags.json",   // optional, same layout as this section
+//   "defaults": {"namespaceIndex": 1, "samplingInterval": 1000, "queueSize": 10},
+//   "tags": [{"name": "TurbineSpeed"}, {"nodeId": "ns=2;i=1001", "group": "fast"}]
+// }
+// It is also the registry of everything looked up per tag, filled once at
+// startup: name and NodeId lookups, the client handle of the tag's monitored
+// items (its index, so a notification finds its tag with an array index),
+// the builtin DataType of the variable (from the browse cache, the simulation
+// or one batched read) and the shadow document key as UTF-8 bytes.
+public class TagCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(TagCatalog.class);
+
+    // used when nothing is configured, matches the Node-RED sample flow
+    private static final String[] DEFAULT_TAGS = { "TurbineSpeed", "TurbineStatus" };
+
+    private final List<TagDefinition> tags;
+    private final TagDefinition[] byIndex;
+    private final Map<String, TagDefinition> byName;
+    private final Map<NodeId, TagDefinition> byNodeId;
+    // "<name>": of every tag, by index
+    private final byte[][] jsonKeys;
+    // by index, null while unknown
+    private final AtomicReferenceArray<BuiltinDataType> dataTypes;
+
+    public TagCatalog(List<TagDefinition> tags) {
+        this.tags = Collections.unmodifiableList(new ArrayList<>(tags));
+        this.byIndex = tags.toArray(new TagDefinition[0]);
+        this.byName = new HashMap<>(tags.size() * 2);
+        this.byNodeId = new HashMap<>(tags.size() * 2);
+        this.jsonKeys = new byte[tags.size()][];
+        this.dataTypes = new AtomicReferenceArray<>(tags.size());
+        for (int i = 0; i < tags.size(); i++) {
+            TagDefinition tag = tags.get(i);
+            if (tag.getIndex() != i) {
+                throw new IllegalArgumentException("tag index out of order: " + tag);
+            }
+            if (byName.put(tag.getName(), tag) != null) {
+                throw new IllegalArgumentException("duplicate tag name in catalog: " + tag.getName());
+            }
+            byNodeId.putIfAbsent(tag.getNodeId(), tag);
+            jsonKeys[i] = (JSONObject.quote(tag.getName()) + ":").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static TagCatalog load(JSONObject config) throws Exception {
+        JSONObject source = config;
+        String file = config.optString("file", null);
+        if (file != null) {
+            source = new JSONObject(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+            logger.info("Loading tag catalog from {}", file);
+        }
+
+        JSONObject defaults = source.optJSONObject("defaults");
+        if (defaults == null) {
+            defaults = config.optJSONObject("defaults");
+        }
+        if (defaults == null) {
+            defaults = new JSONObject();
+        }
+
+        List<TagDefinition> tags = new ArrayList<>();
+        JSONArray tagArray = source.optJSONArray("tags");
+        if (tagArray != null) {
+            for (int i = 0; i < tagArray.length(); i++) {
+                tags.add(TagDefinition.fromJson(i, tagArray.getJSONObject(i), defaults));
+            }
+        } else {
+            for (String name : DEFAULT_TAGS) {
+                tags.add(TagDefinition.fromJson(tags.size(), new JSONObject().put("name", name), defaults));
+            }
+        }
+
+        logger.info("Tag catalog contains {} tags", tags.size());
+        return new TagCatalog(tags);
+    }
+
+    public List<TagDefinition> getTags() {
+        return tags;
+    }
+
+    public TagDefinition getByName(String name) {
+        return byName.get(name);
+    }
+
+    public TagDefinition getByNodeId(NodeId nodeId) {
+        return byNodeId.get(nodeId);
+    }
+
+    // client handle of the tag's monitored items, unique within a subscription
+    public static UInteger clientHandle(TagDefinition tag) {
+        return UInteger.valueOf(tag.getIndex());
+    }
+
+    // tag of a monitored item's client handle, null for other handles
+    public TagDefinition getByClientHandle(int clientHandle) {
+        return clientHandle >= 0 && clientHandle < byIndex.length ? byIndex[clientHandle] : null;
+    }
+
+    // "<name>": as UTF-8, the tag's key in JSON documents
+    public byte[] getJsonKey(TagDefinition tag) {
+        return jsonKeys[tag.getIndex()];
+    }
+
+    public BuiltinDataType getDataType(TagDefinition tag) {
+        return dataTypes.get(tag.getIndex());
+    }
+
+    public void setDataType(TagDefinition tag, BuiltinDataType type) {
+        dataTypes.set(tag.getIndex(), type);
+    }
+
+    // from the DataType attribute of the tag's variable, false when the tag
+    // isn't in the catalog or the type is not a builtin one
+    public boolean setDataType(NodeId nodeId, NodeId dataTypeId) {
+        TagDefinition tag = byNodeId.get(nodeId);
+        BuiltinDataType type = tag != null && dataTypeId != null ? BuiltinDataType.fromNodeId(dataTypeId) : null;
+        if (type != null) {
+            dataTypes.set(tag.getIndex(), type);
+        }
+        return type != null;
+    }
+
+    public List<TagDefinition> getTagsWithoutDataType() {
+        List<TagDefinition> missing = new ArrayList<>();
+        for (TagDefinition tag : byIndex) {
+            if (dataTypes.get(tag.getIndex()) == null) {
+                missing.add(tag);
+            }
+        }
+        return missing;
+    }
+
+    public List<NodeId> getNodeIds() {
+        List<NodeId> nodeIds = new ArrayList<>(tags.size());
+        for (TagDefinition tag : tags) {
+            nodeIds.add(tag.getNodeId());
+        }
+        return nodeIds;
+    }
+
+    public int size() {
+        return tags.size();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// one monitored OPC UA variable as listed in the tag catalog
+public class TagDefinition {
+    public static final String DEFAULT_GROUP = "default";
+
+    private final String name;
+    private final NodeId nodeId;
+    private final double samplingInterval;
+    private final int queueSize;
+    private final DeadbandType deadbandType;
+    private final double deadbandValue;
+    private final String group;
+    // engineering units range, needed for percent deadbands on the client side
+    private final double euLow;
+    private final double euHigh;
+    // position in the catalog, used to index per-tag arrays
+    private final int index;
+
+    public TagDefinition(int index, String name, NodeId nodeId, double samplingInterval, int queueSize,
+            DeadbandType deadbandType, double deadbandValue, String group, double euLow, double euHigh) {
+        this.index = index;
+        this.name = name;
+        this.nodeId = nodeId;
+        this.samplingInterval = samplingInterval;
+        this.queueSize = queueSize;
+        this.deadbandType = deadbandType;
+        this.deadbandValue = deadbandValue;
+        this.group = group;
+        this.euLow = euLow;
+        this.euHigh = euHigh;
+    }
+
+    // {"name": "TurbineSpeed", "nodeId": "ns=1;s=TurbineSpeed", "samplingInterval": 1000,
+    // "queueSize": 10, "deadband": {"type": "Percent", "value": 2}, "euRange": [0, 3000],
+    // "group": "default"}
+    // name or nodeId may be omitted, missing values come from the catalog defaults
+    static TagDefinition fromJson(int index, JSONObject json, JSONObject defaults) {
+        String name = json.optString("name", null);
+        String nodeIdString = json.optString("nodeId", null);
+        NodeId nodeId;
+        if (nodeIdString != null) {
+            nodeId = NodeId.parse(nodeIdString);
+        } else if (name != null) {
+            nodeId = new NodeId(defaults.optInt("namespaceIndex", 1), name);
+        } else {
+            throw new IllegalArgumentException("tag requires a name or a nodeId: " + json);
+        }
+        if (name == null) {
+            name = nodeId.getIdentifier().toString();
+        }
+
+        DeadbandType deadbandType = DeadbandType.None;
+        double deadbandValue = 0.0;
+        JSONObject deadband = json.optJSONObject("deadband");
+        if (deadband == null) {
+            deadband = defaults.optJSONObject("deadband");
+        }
+        if (deadband != null) {
+            deadbandType = parseDeadbandType(deadband.optString("type", "None"));
+            deadbandValue = deadband.optDouble("value", 0.0);
+        }
+
+        double euLow = Double.NaN;
+        double euHigh = Double.NaN;
+        JSONArray euRange = json.optJSONArray("euRange");
+        if (euRange != null && euRange.length() == 2) {
+            euLow = euRange.getDouble(0);
+            euHigh = euRange.getDouble(1);
+        }
+
+        return new TagDefinition(
+                index,
+                name,
+                nodeId,
+                json.optDouble("samplingInterval", defaults.optDouble("samplingInterval", 1000.0)),
+                json.optInt("queueSize", defaults.optInt("queueSize", 10)),
+                deadbandType,
+                deadbandValue,
+                json.optString("group", defaults.optString("group", DEFAULT_GROUP)),
+                euLow,
+                euHigh);
+    }
+
+    private static DeadbandType parseDeadbandType(String type) {
+        for (DeadbandType t : DeadbandType.values()) {
+            if (t.name().equalsIgnoreCase(type)) {
+                return t;
+            }
+        }
+        throw new IllegalArgumentException("unknown deadband type: " + type);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public NodeId getNodeId() {
+        return nodeId;
+    }
+
+    public double getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public DeadbandType getDeadbandType() {
+        return deadbandType;
+    }
+
+    public double getDeadbandValue() {
+        return deadbandValue;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public boolean hasEuRange() {
+        return !Double.isNaN(euLow) && !Double.isNaN(euHigh) && euHigh > euLow;
+    }
+
+    public double getEuLow() {
+        return euLow;
+    }
+
+    public double getEuHigh() {
+        return euHigh;
+    }
+
+    // changes up to this size are not reported, 0 reports every change
+    public double getAbsoluteDeadband() {
+        switch (deadbandType) {
+            case Absolute:
+                return deadbandValue;
+            case Percent:
+                return hasEuRange() ? deadbandValue / 100.0 * (euHigh - euLow) : 0.0;
+            default:
+                return 0.0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + nodeId.toParseableString() + ")";
+    }
+}
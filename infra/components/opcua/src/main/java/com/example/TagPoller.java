@@ -0,0 +1,251 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import io.netty.util.HashedWheelTimer;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Reads tags with batched Reads on a schedule instead of monitoring them, for
+// servers that handle many monitored items badly (older KepServerEX and
+// embedded PLC stacks). The tags of the publishing groups listed in the
+// "polling" section are split into poll groups of at most maxItemsPerPoll
+// tags. Each poll group is read with one BulkReader call, and its next read
+// is scheduled on a hashed wheel timer once the read completes.
+// The interval of a poll group starts at its intervalMs. It doubles up to
+// maxIntervalMs while reads return no changed value and halves back towards
+// intervalMs when they do. It is never shorter than responseFactor times the
+// average read round-trip, so a slow server isn't read back to back. The first
+// read of a poll group is at a random offset within its interval and every
+// delay is jittered, so groups of the same interval don't read together.
+// Changed values go to the consumer like subscription notifications, on a
+// lane per poll group configured by the "ingest" stage settings.
+//
+// "polling": {
+//   "groups": {"slow": {"intervalMs": 5000, "maxIntervalMs": 60000}},
+//   "maxItemsPerPoll": 1000, "responseFactor": 4, "jitter": 0.1, "tickMs": 10
+// }
+public class TagPoller implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TagPoller.class);
+
+    private static final LongAdder reads = MetricsRegistry.counter("polling.reads");
+    private static final LongAdder failedReads = MetricsRegistry.counter("polling.failedReads");
+    private static final LongAdder changedValues = MetricsRegistry.counter("polling.changedValues");
+    private static final LatencyHistogram readRoundTrip = MetricsRegistry.histogram("polling.readRoundTrip");
+
+    private final BulkReader bulkReader;
+    private final JSONObject groupsConfig;
+    private final ToDoubleFunction<String> defaultInterval;
+    private final int maxItemsPerPoll;
+    private final double responseFactor;
+    private final double jitter;
+    private final JSONObject ingestConfig;
+    private final String lanePrefix;
+    private final HashedWheelTimer timer;
+
+    private final List<PollGroup> pollGroups = new ArrayList<>();
+    private TagSubscriber.TagValueConsumer consumer;
+    private volatile boolean closed;
+
+    static class PollGroup {
+        final String name;
+        final List<TagDefinition> tags;
+        final List<ReadValueId> readValueIds;
+        // last value read of each tag, only touched by the read completing
+        final DataValue[] lastValues;
+        final long baseIntervalMs;
+        final long maxIntervalMs;
+        final BoundedStage lane;
+        volatile long intervalMs;
+        // moving average, only touched by the read completing
+        double roundTripMs = -1;
+
+        PollGroup(String name, List<TagDefinition> tags, long baseIntervalMs, long maxIntervalMs,
+                JSONObject ingestConfig) {
+            this.name = name;
+            this.tags = tags;
+            this.readValueIds = new ArrayList<>(tags.size());
+            for (TagDefinition tag : tags) {
+                readValueIds.add(new ReadValueId(tag.getNodeId(), AttributeId.Value.uid(), null,
+                        QualifiedName.NULL_VALUE));
+            }
+            this.lastValues = new DataValue[tags.size()];
+            this.baseIntervalMs = baseIntervalMs;
+            this.maxIntervalMs = Math.max(baseIntervalMs, maxIntervalMs);
+            this.intervalMs = baseIntervalMs;
+            this.lane = new BoundedStage(name, ingestConfig.optInt("capacity", 10000), 1,
+                    BoundedStage.Overflow.parse(ingestConfig.optString("overflow", "coalesce")),
+                    ingestConfig.optLong("blockTimeoutMs", 1000));
+        }
+
+        public long getIntervalMs() {
+            return intervalMs;
+        }
+    }
+
+    // defaultInterval: the publishing interval of a group, used when the group
+    // has no intervalMs. Lanes are named <lanePrefix>-<group>-<n>.
+    public TagPoller(BulkReader bulkReader, JSONObject config, ToDoubleFunction<String> defaultInterval,
+            JSONObject ingestConfig, String lanePrefix) {
+        this.bulkReader = bulkReader;
+        JSONObject groups = config.optJSONObject("groups");
+        this.groupsConfig = groups != null ? groups : new JSONObject();
+        this.defaultInterval = defaultInterval;
+        this.maxItemsPerPoll = Math.max(1, config.optInt("maxItemsPerPoll", 1000));
+        this.responseFactor = Math.max(0.0, config.optDouble("responseFactor", 4.0));
+        this.jitter = Math.min(0.5, Math.max(0.0, config.optDouble("jitter", 0.1)));
+        this.ingestConfig = ingestConfig;
+        this.lanePrefix = lanePrefix;
+        this.timer = new HashedWheelTimer(r -> {
+            Thread t = new Thread(r, lanePrefix + "-timer");
+            t.setDaemon(true);
+            return t;
+        }, Math.max(1, config.optLong("tickMs", 10)), TimeUnit.MILLISECONDS, 512);
+    }
+
+    // true when the tag's publishing group is polled on this endpoint
+    public boolean isPolled(TagDefinition tag) {
+        return groupsConfig.has(tag.getGroup());
+    }
+
+    public void start(List<TagDefinition> tags, TagSubscriber.TagValueConsumer consumer) {
+        Map<String, List<TagDefinition>> byGroup = new LinkedHashMap<>();
+        for (TagDefinition tag : tags) {
+            byGroup.computeIfAbsent(tag.getGroup(), k -> new ArrayList<>()).add(tag);
+        }
+
+        this.consumer = consumer;
+        for (Map.Entry<String, List<TagDefinition>> entry : byGroup.entrySet()) {
+            JSONObject groupConfig = groupsConfig.optJSONObject(entry.getKey());
+            if (groupConfig == null) {
+                groupConfig = new JSONObject();
+            }
+            long intervalMs = Math.max(1, groupConfig.optLong("intervalMs",
+                    (long) defaultInterval.applyAsDouble(entry.getKey())));
+            long maxIntervalMs = groupConfig.optLong("maxIntervalMs", intervalMs * 10);
+            List<TagDefinition> groupTags = entry.getValue();
+            for (int i = 0; i < groupTags.size(); i += maxItemsPerPoll) {
+                PollGroup pollGroup = new PollGroup(lanePrefix + "-" + entry.getKey() + "-" + i / maxItemsPerPoll,
+                        groupTags.subList(i, Math.min(groupTags.size(), i + maxItemsPerPoll)), intervalMs,
+                        maxIntervalMs, ingestConfig);
+                pollGroups.add(pollGroup);
+                MetricsRegistry.gauge("polling." + pollGroup.name + ".intervalMs", pollGroup::getIntervalMs);
+                logger.info("poll group {} created: interval={}ms (up to {}ms), items={}", pollGroup.name,
+                        intervalMs, pollGroup.maxIntervalMs, pollGroup.tags.size());
+                // spread the first reads over the interval
+                schedule(pollGroup, ThreadLocalRandom.current().nextLong(intervalMs));
+            }
+        }
+    }
+
+    private void schedule(PollGroup group, long delayMs) {
+        if (closed) {
+            return;
+        }
+        try {
+            timer.newTimeout(t -> poll(group), delayMs, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // timer stopped by close
+        }
+    }
+
+    private void poll(PollGroup group) {
+        if (closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        bulkReader.read(group.readValueIds, TimestampsToReturn.Both).whenComplete((values, ex) -> {
+            long roundTripNanos = System.nanoTime() - start;
+            reads.increment();
+            readRoundTrip.record(roundTripNanos);
+            int changed = 0;
+            if (ex != null) {
+                failedReads.increment();
+                logger.warn("Poll of {} failed: {}", group.name, ex.getMessage());
+            } else {
+                changed = deliver(group, values);
+            }
+
+            long intervalMs = adapt(group, ex == null, changed, TimeUnit.NANOSECONDS.toMillis(roundTripNanos));
+            // the interval runs from the start of the read
+            double spread = jitter * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+            long delayMs = Math.round(intervalMs * (1.0 + spread)) - TimeUnit.NANOSECONDS.toMillis(roundTripNanos);
+            schedule(group, Math.max(0, delayMs));
+        });
+    }
+
+    // hands values that differ from the last read to the consumer, returns their number
+    private int deliver(PollGroup group, List<DataValue> values) {
+        int changed = 0;
+        for (int i = 0; i < values.size(); i++) {
+            DataValue value = values.get(i);
+            if (value == null || isUnchanged(group.lastValues[i], value)) {
+                continue;
+            }
+            group.lastValues[i] = value;
+            TagDefinition tag = group.tags.get(i);
+            group.lane.submit(tag, () -> consumer.onTagValue(tag, value));
+            changed++;
+        }
+        changedValues.add(changed);
+        return changed;
+    }
+
+    private static boolean isUnchanged(DataValue last, DataValue value) {
+        return last != null && Objects.equals(last.getValue(), value.getValue())
+                && Objects.equals(last.getStatusCode(), value.getStatusCode())
+                && Objects.equals(last.getSourceTime(), value.getSourceTime());
+    }
+
+    // next interval of the group after a read
+    long adapt(PollGroup group, boolean succeeded, int changed, long roundTripMs) {
+        long intervalMs = group.intervalMs;
+        if (!succeeded || changed == 0) {
+            intervalMs = Math.min(group.maxIntervalMs, intervalMs * 2);
+        } else {
+            intervalMs = Math.max(group.baseIntervalMs, intervalMs / 2);
+        }
+        group.roundTripMs = group.roundTripMs < 0 ? roundTripMs : 0.75 * group.roundTripMs + 0.25 * roundTripMs;
+        intervalMs = Math.max(intervalMs, (long) (group.roundTripMs * responseFactor));
+        if (intervalMs != group.intervalMs && logger.isDebugEnabled()) {
+            logger.debug("poll group {} interval {}ms -> {}ms: changed={}, roundTrip={}ms", group.name,
+                    group.intervalMs, intervalMs, changed, roundTripMs);
+        }
+        group.intervalMs = intervalMs;
+        return intervalMs;
+    }
+
+    public List<PollGroup> getPollGroups() {
+        return pollGroups;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.stop();
+        for (PollGroup group : pollGroups) {
+            group.lane.close();
+            MetricsRegistry.remove("polling." + group.name + ".intervalMs");
+        }
+        pollGroups.clear();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaMonitoredItem;
+import org.eclipse.milo.opcua.sdk.client.api.subscriptions.UaSubscription;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DataChangeTrigger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.MonitoringMode;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.DataChangeFilter;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoredItemCreateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.MonitoringParameters;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+// Creates the monitored items for a list of catalog tags. Requests are split
+// into chunks of at most MaxMonitoredItemsPerCall and a few chunks are kept in
+// flight at a time, so large catalogs don't pay one round-trip per chunk.
+// The client handle of an item is the index of its tag in the catalog, so one
+// value consumer per subscribe call finds the tag of a notification with an
+// array index instead of a closure per item.
+// A chunk whose call fails, or whose items fail for reasons of the server's
+// state (Bad_TooManyMonitoredItems, Bad_TooManyOperations, ...), fails the
+// whole subscribe so the caller can retry. Items refused for their node would
+// be refused again and are only logged.
+// Deadband filters are only sent for numeric tags. An item whose filter the
+// server refuses (no percent deadband without EURange, no deadbands at all,
+// ...) is created again without it, the LastValueCache applies the deadband
+// on the client then.
+public class TagSubscriber {
+    private static final Logger logger = LoggerFactory.getLogger(TagSubscriber.class);
+
+    // how many failed items are logged individually before only counting them
+    private static final int MAX_LOGGED_FAILURES = 20;
+
+    // item statuses that creating the item again won't change
+    private static final Set<Long> PERMANENT_FAILURES = new HashSet<>(Arrays.asList(
+            StatusCodes.Bad_NodeIdUnknown, StatusCodes.Bad_NodeIdInvalid, StatusCodes.Bad_AttributeIdInvalid,
+            StatusCodes.Bad_IndexRangeInvalid, StatusCodes.Bad_NotReadable, StatusCodes.Bad_UserAccessDenied,
+            StatusCodes.Bad_MonitoredItemFilterInvalid, StatusCodes.Bad_MonitoredItemFilterUnsupported,
+            StatusCodes.Bad_FilterNotAllowed, StatusCodes.Bad_DataEncodingInvalid,
+            StatusCodes.Bad_DataEncodingUnsupported));
+
+    // item statuses of a refused DataChangeFilter
+    private static final Set<Long> FILTER_FAILURES = new HashSet<>(Arrays.asList(
+            StatusCodes.Bad_MonitoredItemFilterInvalid, StatusCodes.Bad_MonitoredItemFilterUnsupported,
+            StatusCodes.Bad_FilterNotAllowed));
+
+    // DataTypes a server accepts an absolute or percent deadband for
+    private static final Set<BuiltinDataType> NUMERIC_TYPES = EnumSet.of(
+            BuiltinDataType.SByte, BuiltinDataType.Byte, BuiltinDataType.Int16, BuiltinDataType.UInt16,
+            BuiltinDataType.Int32, BuiltinDataType.UInt32, BuiltinDataType.Int64, BuiltinDataType.UInt64,
+            BuiltinDataType.Float, BuiltinDataType.Double);
+
+    private static final LongAdder filterFallbacks = MetricsRegistry.counter("opcua.deadbandFallbacks");
+
+    public interface TagValueConsumer {
+        void onTagValue(TagDefinition tag, DataValue value);
+    }
+
+    private final OpcUaClient client;
+    private final TagCatalog catalog;
+    private final int chunkSize;
+    private final int maxConcurrentCalls;
+
+    public TagSubscriber(OpcUaClient client, TagCatalog catalog, OperationLimits limits, int maxConcurrentCalls) {
+        this.client = client;
+        this.catalog = catalog;
+        this.chunkSize = limits.getMaxMonitoredItemsPerCall();
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+    }
+
+    public CompletableFuture<List<UaMonitoredItem>> subscribe(UaSubscription subscription,
+            List<TagDefinition> tags, TagValueConsumer consumer) {
+        List<List<TagDefinition>> chunks = new ArrayList<>();
+        for (int i = 0; i < tags.size(); i += chunkSize) {
+            chunks.add(tags.subList(i, Math.min(tags.size(), i + chunkSize)));
+        }
+
+        UaMonitoredItem.ValueConsumer dispatch = (item, value) -> {
+            TagDefinition tag = catalog.getByClientHandle(item.getClientHandle().intValue());
+            if (tag != null) {
+                consumer.onTagValue(tag, value);
+            }
+        };
+
+        // chunk i goes to lane i % lanes, each lane sends its chunks one after the other
+        int lanes = Math.min(maxConcurrentCalls, chunks.size());
+        List<CompletableFuture<List<UaMonitoredItem>>> laneFutures = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            CompletableFuture<List<UaMonitoredItem>> laneFuture = CompletableFuture
+                    .completedFuture(new ArrayList<>());
+            for (int c = lane; c < chunks.size(); c += lanes) {
+                List<TagDefinition> chunk = chunks.get(c);
+                laneFuture = laneFuture.thenCompose(created -> createChunk(subscription, chunk, dispatch)
+                        .thenApply(items -> {
+                            created.addAll(items);
+                            return created;
+                        }));
+            }
+            laneFutures.add(laneFuture);
+        }
+
+        return CompletableFuture.allOf(laneFutures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<UaMonitoredItem> items = new ArrayList<>(tags.size());
+            for (CompletableFuture<List<UaMonitoredItem>> laneFuture : laneFutures) {
+                items.addAll(laneFuture.join());
+            }
+            logResults(items);
+            return items;
+        });
+    }
+
+    private CompletableFuture<List<UaMonitoredItem>> createChunk(UaSubscription subscription,
+            List<TagDefinition> chunk, UaMonitoredItem.ValueConsumer dispatch) {
+        List<MonitoredItemCreateRequest> requests = new ArrayList<>(chunk.size());
+        for (TagDefinition tag : chunk) {
+            requests.add(createRequest(tag, hasDeadbandFilter(tag)));
+        }
+
+        // when creating items in MonitoringMode.Reporting this callback is where each
+        // item needs to have its value consumer hooked up
+        UaSubscription.ItemCreationCallback onItemCreated = (item, index) -> item.setValueConsumer(dispatch);
+
+        return subscription.createMonitoredItems(TimestampsToReturn.Both, requests, onItemCreated)
+                .thenCompose(items -> recreateWithoutFilter(subscription, chunk, items, onItemCreated))
+                .thenApply(items -> {
+                    checkResults(chunk, items);
+                    return items;
+                })
+                .whenComplete((items, ex) -> {
+                    if (ex != null) {
+                        logger.error("Creating {} monitored items failed: {}", chunk.size(), ex.getMessage());
+                    }
+                });
+    }
+
+    // items refused for their deadband filter are created again without one,
+    // in place of the refused ones
+    private CompletableFuture<List<UaMonitoredItem>> recreateWithoutFilter(UaSubscription subscription,
+            List<TagDefinition> chunk, List<UaMonitoredItem> items, UaSubscription.ItemCreationCallback onItemCreated) {
+        List<Integer> refused = new ArrayList<>();
+        for (int i = 0; i < items.size() && i < chunk.size(); i++) {
+            if (FILTER_FAILURES.contains(items.get(i).getStatusCode().getValue()) && hasDeadbandFilter(chunk.get(i))) {
+                refused.add(i);
+            }
+        }
+        if (refused.isEmpty()) {
+            return CompletableFuture.completedFuture(items);
+        }
+        List<MonitoredItemCreateRequest> requests = new ArrayList<>(refused.size());
+        for (int i : refused) {
+            requests.add(createRequest(chunk.get(i), false));
+        }
+        return subscription.createMonitoredItems(TimestampsToReturn.Both, requests, onItemCreated)
+                .thenApply(recreated -> {
+                    List<UaMonitoredItem> result = new ArrayList<>(items);
+                    for (int j = 0; j < recreated.size(); j++) {
+                        result.set(refused.get(j), recreated.get(j));
+                    }
+                    filterFallbacks.add(refused.size());
+                    logger.warn("Deadband filter of {} items refused ({}), applying their deadbands on the client",
+                            refused.size(), items.get(refused.get(0)).getStatusCode());
+                    return result;
+                });
+    }
+
+    // a deadband is only sent as a filter for numeric tags, a tag whose
+    // DataType isn't known gets it and falls back when the server refuses it
+    private boolean hasDeadbandFilter(TagDefinition tag) {
+        if (tag.getDeadbandType() == DeadbandType.None) {
+            return false;
+        }
+        BuiltinDataType type = catalog.getDataType(tag);
+        return type == null || NUMERIC_TYPES.contains(type);
+    }
+
+    // fails the chunk when items failed for a reason that may pass
+    private static void checkResults(List<TagDefinition> chunk, List<UaMonitoredItem> items) {
+        int retryable = 0;
+        StatusCode first = null;
+        for (UaMonitoredItem item : items) {
+            StatusCode status = item.getStatusCode();
+            if (status.isBad() && !PERMANENT_FAILURES.contains(status.getValue())) {
+                if (first == null) {
+                    first = status;
+                }
+                retryable++;
+            }
+        }
+        if (items.size() < chunk.size() && first == null) {
+            first = new StatusCode(StatusCodes.Bad_UnexpectedError);
+            retryable = chunk.size() - items.size();
+        }
+        if (first != null) {
+            throw new CompletionException(new UaException(first,
+                    retryable + " of " + chunk.size() + " monitored items not created: " + first));
+        }
+    }
+
+    private MonitoredItemCreateRequest createRequest(TagDefinition tag, boolean deadbandFilter) {
+        ExtensionObject filter = null; // null means use default
+        if (deadbandFilter) {
+            DataChangeFilter dataChangeFilter = new DataChangeFilter(
+                    DataChangeTrigger.StatusValue,
+                    uint(tag.getDeadbandType().getValue()),
+                    tag.getDeadbandValue());
+            filter = ExtensionObject.encode(client.getStaticSerializationContext(), dataChangeFilter);
+        }
+
+        // IMPORTANT: client handle must be unique per item within the context of a
+        // subscription, a tag is monitored once so its catalog index is.
+        MonitoringParameters parameters = new MonitoringParameters(
+                TagCatalog.clientHandle(tag),
+                tag.getSamplingInterval(),
+                filter,
+                uint(tag.getQueueSize()),
+                true // discard oldest
+        );
+
+        ReadValueId readValueId = new ReadValueId(
+                tag.getNodeId(),
+                AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE);
+
+        return new MonitoredItemCreateRequest(readValueId, MonitoringMode.Reporting, parameters);
+    }
+
+    private void logResults(List<UaMonitoredItem> items) {
+        int failed = 0;
+        for (UaMonitoredItem item : items) {
+            if (!item.getStatusCode().isGood()) {
+                if (failed++ < MAX_LOGGED_FAILURES) {
+                    logger.warn(
+                            "failed to create item for nodeId={} (status={})",
+                            item.getReadValueId().getNodeId(), item.getStatusCode());
+                }
+            }
+        }
+        logger.info("{} monitored items created, {} failed", items.size() - failed, failed);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.ULong;
+import org.json.JSONObject;
+
+// Turns a batch of streamed samples into a message payload. Selected per tag
+// group with "encoding": json (default), cbor or columnar. An encoder is only
+// called from the flush thread of its group.
+public interface TelemetryEncoder {
+    int KIND_NULL = 0;
+    int KIND_BOOLEAN = 1;
+    int KIND_INTEGER = 2;
+    int KIND_DOUBLE = 3;
+    int KIND_STRING = 4;
+
+    byte[] encode(String thingName, String group, int dictionaryId, List<TelemetrySample> samples);
+
+    // binary encodings refer to tags by catalog index, the names are
+    // published separately as a dictionary
+    boolean usesDictionary();
+
+    static TelemetryEncoder create(JSONObject config, PayloadBufferPool pool) {
+        String encoding = config.optString("encoding", "json");
+        switch (encoding.toLowerCase()) {
+            case "json":
+                return new JsonTelemetryEncoder(pool);
+            case "cbor":
+                return new CborTelemetryEncoder(pool);
+            case "columnar":
+                return new ColumnarTelemetryEncoder(pool, config.optString("compression", "none"));
+            default:
+                throw new IllegalArgumentException("unknown telemetry encoding: " + encoding);
+        }
+    }
+
+    // OPC UA unsigned types are Numbers as well, a ULong above Long.MAX_VALUE
+    // and values that are not scalars are sent as strings
+    static int kindOf(Object value) {
+        if (value == null) {
+            return KIND_NULL;
+        }
+        if (value instanceof Boolean) {
+            return KIND_BOOLEAN;
+        }
+        if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            return KIND_DOUBLE;
+        }
+        if (value instanceof ULong) {
+            return ((ULong) value).longValue() >= 0 ? KIND_INTEGER : KIND_STRING;
+        }
+        if (value instanceof BigInteger) {
+            return ((BigInteger) value).bitLength() < 64 ? KIND_INTEGER : KIND_STRING;
+        }
+        if (value instanceof Number) {
+            return KIND_INTEGER;
+        }
+        return KIND_STRING;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+// one buffered subscription value of a streamed tag
+public final class TelemetrySample {
+    public final TagDefinition tag;
+    // source timestamp in milliseconds since the epoch
+    public final long time;
+    public final Object value;
+    // OPC UA status code, 0 is Good
+    public final long status;
+
+    public TelemetrySample(TagDefinition tag, long time, Object value, long status) {
+        this.tag = tag;
+        this.time = time;
+        this.value = value;
+        this.status = status;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.aws.greengrass.model.QOS;
+
+// Sends subscription values of high rate tag groups to an IoT Core topic as
+// batched messages instead of the shadow. Every sample keeps its source
+// timestamp, so no value is lost to shadow coalescing. Configured per tag
+// group in the "telemetry" section:
+// {
+//   "topic": "opcua/{thing}/telemetry/{group}",   // with several endpoints ".../{endpoint}/{group}"
+//   "groups": {
+//     "default": {"mode": "shadow"},
+//     "fast": {"mode": "stream", "maxSamples": 500, "flushIntervalMs": 1000, "qos": "AT_MOST_ONCE",
+//              "encoding": "columnar", "compression": "deflate"}
+//   }
+// }
+// mode is shadow (default), stream, or both. The payload layout depends on
+// the group's encoding, see the TelemetryEncoder implementations. Binary
+// encodings identify tags by catalog index, the matching names are sent to
+// <topic>/dictionary at startup and every dictionaryIntervalMs.
+public class TelemetryStreamer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TelemetryStreamer.class);
+
+    private static final int DICTIONARY_ENTRIES_PER_MESSAGE = 2000;
+
+    public enum Mode {
+        SHADOW, STREAM, BOTH
+    }
+
+    private final class GroupStream {
+        final String group;
+        final Mode mode;
+        final String topic;
+        final int maxSamples;
+        final QOS qos;
+        final TelemetryEncoder encoder;
+        // tag indexes and names of the group, for binary encodings
+        final List<TagDefinition> tags = new ArrayList<>();
+        int dictionaryId;
+        final AtomicBoolean flushRequested = new AtomicBoolean(false);
+        // guarded by this
+        List<TelemetrySample> pending = new ArrayList<>();
+
+        GroupStream(String group, JSONObject config, String topic) {
+            this.group = group;
+            // aggregated groups only report their window statistics, see AggregationEngine
+            this.mode = config.has("aggregate") ? Mode.SHADOW
+                    : Mode.valueOf(config.optString("mode", "shadow").toUpperCase());
+            this.topic = topic;
+            this.maxSamples = Math.max(1, config.optInt("maxSamples", 500));
+            this.qos = parseQos(config.optString("qos", "AT_MOST_ONCE"));
+            this.encoder = TelemetryEncoder.create(config, bufferPool);
+        }
+
+        void offer(TelemetrySample sample) {
+            int size;
+            synchronized (this) {
+                pending.add(sample);
+                size = pending.size();
+            }
+            if (size >= maxSamples && !flushExecutor.isShutdown() && flushRequested.compareAndSet(false, true)) {
+                flushExecutor.execute(this::flush);
+            }
+        }
+
+        void flush() {
+            flushRequested.set(false);
+            List<TelemetrySample> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>(Math.min(batch.size(), maxSamples));
+            }
+            // a window can hold more than maxSamples when the flush lags behind
+            for (int from = 0; from < batch.size(); from += maxSamples) {
+                publish(this, batch.subList(from, Math.min(batch.size(), from + maxSamples)));
+            }
+        }
+    }
+
+    private final String thingName;
+    private final String endpoint;
+    private final StoreAndForward storeAndForward;
+    // stream of every catalog tag, indexed by TagDefinition.getIndex()
+    private final GroupStream[] streams;
+    private final List<GroupStream> streamed = new ArrayList<>();
+    private final PayloadBufferPool bufferPool = new PayloadBufferPool(16 * 1024, 1024 * 1024, 8);
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "telemetry-streamer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    // endpoint is the name of the "endpoints" entry, null for a single endpoint
+    public TelemetryStreamer(JSONObject config, TagCatalog catalog, String thingName, String endpoint,
+            StoreAndForward storeAndForward) {
+        this.thingName = thingName;
+        this.endpoint = endpoint;
+        this.storeAndForward = storeAndForward;
+        JSONObject groups = config.optJSONObject("groups");
+        if (groups == null) {
+            groups = new JSONObject();
+        }
+
+        Map<String, GroupStream> byGroup = new HashMap<>();
+        streams = new GroupStream[catalog.size()];
+        for (TagDefinition tag : catalog.getTags()) {
+            GroupStream stream = byGroup.get(tag.getGroup());
+            if (stream == null) {
+                JSONObject groupConfig = groupConfig(groups, tag.getGroup());
+                stream = new GroupStream(tag.getGroup(), groupConfig,
+                        topic(config, groupConfig, thingName, endpoint, tag.getGroup()));
+                byGroup.put(tag.getGroup(), stream);
+                if (stream.mode != Mode.SHADOW) {
+                    long flushIntervalMs = Math.max(1, groupConfig.optLong("flushIntervalMs", 1000));
+                    flushExecutor.scheduleWithFixedDelay(stream::flush, flushIntervalMs, flushIntervalMs,
+                            TimeUnit.MILLISECONDS);
+                    streamed.add(stream);
+                    logger.info("Streaming group {} to {}: maxSamples={} flushInterval={}ms qos={}", stream.group,
+                            stream.topic, stream.maxSamples, flushIntervalMs, stream.qos);
+                }
+            }
+            streams[tag.getIndex()] = stream;
+            stream.tags.add(tag);
+        }
+
+        long dictionaryIntervalMs = Math.max(1000, config.optLong("dictionaryIntervalMs", 600000));
+        for (GroupStream stream : streamed) {
+            if (stream.encoder.usesDictionary()) {
+                stream.dictionaryId = dictionaryId(stream.tags);
+                flushExecutor.scheduleWithFixedDelay(() -> publishDictionary(stream), 0, dictionaryIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // settings of a tag group, tags with an unknown group use "default"
+    static JSONObject groupConfig(JSONObject groups, String group) {
+        JSONObject groupConfig = groups.optJSONObject(group);
+        if (groupConfig == null) {
+            groupConfig = groups.optJSONObject(TagDefinition.DEFAULT_GROUP);
+        }
+        return groupConfig != null ? groupConfig : new JSONObject();
+    }
+
+    // topic of a group's messages, streams of several endpoints must not share
+    // a topic, their tag indexes differ
+    static String topic(JSONObject config, JSONObject groupConfig, String thingName, String endpoint,
+            String group) {
+        String topicTemplate = config.optString("topic", endpoint == null
+                ? "opcua/{thing}/telemetry/{group}"
+                : "opcua/{thing}/telemetry/{endpoint}/{group}");
+        return groupConfig.optString("topic", topicTemplate).replace("{thing}", String.valueOf(thingName))
+                .replace("{endpoint}", String.valueOf(endpoint)).replace("{group}", group);
+    }
+
+    // identifies the index to name mapping, consumers cache dictionaries by id
+    private static int dictionaryId(List<TagDefinition> tags) {
+        CRC32 crc = new CRC32();
+        for (TagDefinition tag : tags) {
+            byte[] entry = (tag.getIndex() + ":" + tag.getName() + "\n").getBytes(StandardCharsets.UTF_8);
+            crc.update(entry, 0, entry.length);
+        }
+        return (int) crc.getValue();
+    }
+
+    // {"thing": "...", "group": "fast", "dictionary": 1234, "ids": [0, 1], "names": ["TurbineSpeed", "TurbineStatus"]}
+    // ("endpoint" is added with several endpoints)
+    // sent to <topic>/dictionary, split into several messages for large groups
+    private void publishDictionary(GroupStream stream) {
+        for (int from = 0; from < stream.tags.size(); from += DICTIONARY_ENTRIES_PER_MESSAGE) {
+            JSONArray ids = new JSONArray();
+            JSONArray names = new JSONArray();
+            for (TagDefinition tag : stream.tags.subList(from,
+                    Math.min(stream.tags.size(), from + DICTIONARY_ENTRIES_PER_MESSAGE))) {
+                ids.put(tag.getIndex());
+                names.put(tag.getName());
+            }
+            JSONObject message = new JSONObject();
+            message.put("thing", thingName);
+            if (endpoint != null) {
+                message.put("endpoint", endpoint);
+            }
+            message.put("group", stream.group);
+            message.put("dictionary", stream.dictionaryId & 0xffffffffL);
+            message.put("ids", ids);
+            message.put("names", names);
+            storeAndForward.publishToIoTCore(stream.topic + "/dictionary",
+                    message.toString().getBytes(StandardCharsets.UTF_8), QOS.AT_LEAST_ONCE);
+        }
+    }
+
+    // "0"/"1" or the enum name
+    static QOS parseQos(String qos) {
+        if ("0".equals(qos)) {
+            return QOS.AT_MOST_ONCE;
+        }
+        if ("1".equals(qos)) {
+            return QOS.AT_LEAST_ONCE;
+        }
+        return QOS.valueOf(qos.toUpperCase());
+    }
+
+    public boolean isShadowed(TagDefinition tag) {
+        return streams[tag.getIndex()].mode != Mode.STREAM;
+    }
+
+    public boolean isStreamed(TagDefinition tag) {
+        return streams[tag.getIndex()].mode != Mode.SHADOW;
+    }
+
+    // called from the OPC UA subscription threads, never blocks on IPC
+    public void offer(TagDefinition tag, DataValue value) {
+        GroupStream stream = streams[tag.getIndex()];
+        if (stream.mode == Mode.SHADOW) {
+            return;
+        }
+        samples.incrementAndGet();
+        long status = value.getStatusCode() != null ? value.getStatusCode().getValue() : 0L;
+        stream.offer(new TelemetrySample(tag, sampleTime(value), value.getValue().getValue(), status));
+    }
+
+    private static long sampleTime(DataValue value) {
+        DateTime time = value.getSourceTime();
+        if (time == null || time.isNull()) {
+            time = value.getServerTime();
+        }
+        return time != null && !time.isNull() ? time.getJavaTime() : System.currentTimeMillis();
+    }
+
+    private void publish(GroupStream stream, List<TelemetrySample> batch) {
+        byte[] payload = stream.encoder.encode(thingName, stream.group, stream.dictionaryId, batch);
+        messages.incrementAndGet();
+        bytes.addAndGet(payload.length);
+        // failed publishes end up in the spool and are replayed later
+        storeAndForward.publishToIoTCore(stream.topic, payload, stream.qos);
+        logger.debug("Streamed {} samples of group {} to {} in {} bytes", batch.size(), stream.group,
+                stream.topic, payload.length);
+    }
+
+    public boolean hasStreams() {
+        return !streamed.isEmpty();
+    }
+
+    public long getSampleCount() {
+        return samples.get();
+    }
+
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    public long getByteCount() {
+        return bytes.get();
+    }
+
+    @Override
+    public void close() {
+        // drain what is buffered before stopping
+        for (GroupStream stream : streamed) {
+            flushExecutor.execute(stream::flush);
+        }
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+// logger
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Recent history of every catalog tag on the device, so operators can read
+// the last hour of a tag while the cloud link or the shadow is slow. Every tag
+// owns a ring of fixed size records in one memory-mapped file: the file never
+// grows with the value rate, an insert writes 13 bytes and allocates nothing.
+// Regions carry the NodeId of their tag, after a restart a tag finds its
+// history again even when the catalog changed. Queries return the raw values
+// of a time range or min/max/mean/last/count per interval. They arrive as
+// JSON on a local IPC topic, see query(). Configured by the "history" section:
+// {"enabled": false, "directory": "history", "recordsPerTag": 3600, "retentionMs": 3600000,
+//  "requestTopic": "opcua/history/request", "responseTopic": "opcua/history/response", "maxPoints": 2000}
+//
+// file:   int magic | int version | int recordsPerTag | int regions | regions
+// region: long baseMs | int next | int count | short nodeIdLength | nodeId (UTF-8) | records
+// record: int deltaMs (time - baseMs) | byte type | long value (double bits, long or 0/1)
+// records of a region are kept in time order, the oldest is next - count.
+public class TimeSeriesStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    private static final int MAGIC = 0x4f505453; // "OPTS"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int NODE_ID_BYTES = 242;
+    private static final int REGION_HEADER_BYTES = 18 + NODE_ID_BYTES;
+    private static final int RECORD_BYTES = 13;
+    // regions are mapped in chunks, a single mapping is limited to 2GB
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    static final byte GAP = 0; // bad status, no value
+    static final byte DOUBLE = 1;
+    static final byte LONG = 2;
+    static final byte BOOLEAN = 3;
+
+    private static final LongAdder recordedValues = MetricsRegistry.counter("history.records");
+    private static final LongAdder skippedValues = MetricsRegistry.counter("history.skippedValues");
+    private static final LongAdder queries = MetricsRegistry.counter("history.queries");
+    private static final LatencyHistogram queryTime = MetricsRegistry.histogram("history.query");
+
+    private final TagCatalog catalog;
+    private final Path file;
+    private final int recordsPerTag;
+    private final long retentionMs;
+    private final int maxPoints;
+    private final long regionBytes;
+    private final int regionsPerChunk;
+    private final MappedByteBuffer[] chunks;
+    // region of each tag, by catalog index, and the lock of the region
+    private final int[] regionOf;
+    private final Object[] locks;
+
+    // config keys: directory, recordsPerTag, retentionMs, maxPoints. Endpoints
+    // of a pool keep their history in a subdirectory named after the endpoint.
+    public TimeSeriesStore(JSONObject config, TagCatalog catalog, String endpoint) throws IOException {
+        this.catalog = catalog;
+        this.recordsPerTag = Math.max(2, config.optInt("recordsPerTag", 3600));
+        this.retentionMs = config.optLong("retentionMs", 3600000);
+        this.maxPoints = Math.max(1, config.optInt("maxPoints", 2000));
+        this.regionBytes = REGION_HEADER_BYTES + (long) recordsPerTag * RECORD_BYTES;
+        this.regionsPerChunk = (int) Math.max(1, CHUNK_BYTES / regionBytes);
+
+        Path directory = Paths.get(config.optString("directory", "history"));
+        if (endpoint != null) {
+            directory = directory.resolve(endpoint);
+        }
+        Files.createDirectories(directory);
+        this.file = directory.resolve("history.ts");
+
+        int regions;
+        int existing = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() >= FILE_HEADER_BYTES) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+                channel.read(header, 0);
+                if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == recordsPerTag) {
+                    existing = header.getInt(12);
+                } else {
+                    logger.warn("History file {} has another layout, starting with an empty history", file);
+                    channel.truncate(0);
+                }
+            }
+            regions = Math.max(existing, catalog.size());
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_BYTES);
+            header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, recordsPerTag).putInt(12, regions);
+
+            chunks = new MappedByteBuffer[(regions + regionsPerChunk - 1) / regionsPerChunk];
+            for (int c = 0; c < chunks.length; c++) {
+                int chunkRegions = Math.min(regionsPerChunk, regions - c * regionsPerChunk);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        FILE_HEADER_BYTES + c * regionsPerChunk * regionBytes, chunkRegions * regionBytes);
+            }
+        }
+
+        locks = new Object[regions];
+        for (int r = 0; r < regions; r++) {
+            locks[r] = new Object();
+        }
+        regionOf = assignRegions(existing, regions);
+        logger.info("History of {} tags at {}: {} records per tag, {} MB", catalog.size(), file, recordsPerTag,
+                (FILE_HEADER_BYTES + regions * regionBytes) >> 20);
+    }
+
+    // tags get the region that already holds their NodeId, new tags a region
+    // no catalog tag uses, which is cleared
+    private int[] assignRegions(int existing, int regions) {
+        Map<String, Integer> byNodeId = new HashMap<>(existing * 2);
+        for (int r = 0; r < existing; r++) {
+            String nodeId = readNodeId(r);
+            if (!nodeId.isEmpty()) {
+                byNodeId.putIfAbsent(nodeId, r);
+            }
+        }
+
+        int[] assigned = new int[catalog.size()];
+        boolean[] used = new boolean[regions];
+        List<TagDefinition> unassigned = new ArrayList<>();
+        for (TagDefinition tag : catalog.getTags()) {
+            Integer region = byNodeId.get(key(tag));
+            if (region != null && !used[region]) {
+                assigned[tag.getIndex()] = region;
+                used[region] = true;
+            } else {
+                unassigned.add(tag);
+            }
+        }
+        int free = 0;
+        for (TagDefinition tag : unassigned) {
+            while (used[free]) {
+                free++;
+            }
+            used[free] = true;
+            assigned[tag.getIndex()] = free;
+            clearRegion(free, key(tag));
+        }
+        if (existing > 0) {
+            logger.info("History of {} tags found in {}", catalog.size() - unassigned.size(), file);
+        }
+        return assigned;
+    }
+
+    private static String key(TagDefinition tag) {
+        return tag.getNodeId().toParseableString();
+    }
+
+    private ByteBuffer chunk(int region) {
+        return chunks[region / regionsPerChunk];
+    }
+
+    private int offset(int region) {
+        return (int) ((region % regionsPerChunk) * regionBytes);
+    }
+
+    private static int recordOffset(int base, int slot) {
+        return base + REGION_HEADER_BYTES + slot * RECORD_BYTES;
+    }
+
+    private String readNodeId(int region) {
+        ByteBuffer buffer = chunk(region);
+        int base = offset(region);
+        int length = Math.min(buffer.getShort(base + 16), NODE_ID_BYTES);
+        byte[] bytes = new byte[Math.max(0, length)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(base + 18 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // a NodeId longer than the header keeps its first bytes, a second tag
+    // with the same prefix gets a fresh region after every restart
+    private void clearRegion(int region, String nodeId) {
+        ByteBuffer buffer = chunk(region);
+        int base = offset(region);
+        byte[] bytes = nodeId.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, NODE_ID_BYTES);
+        buffer.putLong(base, 0).putInt(base + 8, 0).putInt(base + 12, 0).putShort(base + 16, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(base + 18 + i, bytes[i]);
+        }
+    }
+
+    // called on the subscription lanes. Strings and other non numeric values
+    // are not kept, a bad status is recorded as a gap.
+    public void record(TagDefinition tag, DataValue value) {
+        byte type;
+        long bits;
+        Object v = value.getValue().getValue();
+        if (!value.getStatusCode().isGood() || v == null) {
+            type = GAP;
+            bits = 0;
+        } else if (v instanceof Double || v instanceof Float) {
+            type = DOUBLE;
+            bits = Double.doubleToRawLongBits(((Number) v).doubleValue());
+        } else if (v instanceof Number) {
+            type = LONG;
+            bits = ((Number) v).longValue();
+        } else if (v instanceof Boolean) {
+            type = BOOLEAN;
+            bits = (Boolean) v ? 1 : 0;
+        } else {
+            skippedValues.increment();
+            return;
+        }
+        append(regionOf[tag.getIndex()], timeOf(value), type, bits);
+        recordedValues.increment();
+    }
+
+    // source time, server time or the time of arrival
+    private static long timeOf(DataValue value) {
+        DateTime time = value.getSourceTime();
+        if (time == null || time.getUtcTime() <= 0) {
+            time = value.getServerTime();
+        }
+        return time != null && time.getUtcTime() > 0 ? time.getJavaTime() : System.currentTimeMillis();
+    }
+
+    void append(int region, long timeMs, byte type, long bits) {
+        ByteBuffer buffer = chunk(region);
+        int base = offset(region);
+        synchronized (locks[region]) {
+            long baseMs = buffer.getLong(base);
+            int next = buffer.getInt(base + 8);
+            int count = buffer.getInt(base + 12);
+            if (count == 0) {
+                baseMs = timeMs;
+                buffer.putLong(base, baseMs);
+            } else {
+                // a source clock that went back must not break the time order
+                int newest = (next - 1 + recordsPerTag) % recordsPerTag;
+                timeMs = Math.max(timeMs, baseMs + buffer.getInt(recordOffset(base, newest)));
+            }
+            if (timeMs - baseMs > Integer.MAX_VALUE) {
+                count = rebase(buffer, base, next, count, timeMs);
+                baseMs = buffer.getLong(base);
+            }
+
+            int record = recordOffset(base, next);
+            buffer.putInt(record, (int) (timeMs - baseMs));
+            buffer.put(record + 4, type);
+            buffer.putLong(record + 5, bits);
+            buffer.putInt(base + 8, (next + 1) % recordsPerTag);
+            buffer.putInt(base + 12, Math.min(count + 1, recordsPerTag));
+        }
+    }
+
+    // deltas are ints, about 24 days. Once a tag's ring spans more, deltas are
+    // rewritten against a base half that range before timeMs and records older
+    // than the base are dropped. Returns the new count.
+    private int rebase(ByteBuffer buffer, int base, int next, int count, long timeMs) {
+        long oldBase = buffer.getLong(base);
+        long newBase = timeMs - Integer.MAX_VALUE / 2;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int record = recordOffset(base, (next - count + i + recordsPerTag) % recordsPerTag);
+            long time = oldBase + buffer.getInt(record);
+            if (time < newBase) {
+                continue; // older than every kept record, only the oldest are dropped
+            }
+            kept++;
+            buffer.putInt(record, (int) (time - newBase));
+        }
+        buffer.putLong(base, newBase);
+        buffer.putInt(base + 12, kept);
+        return kept;
+    }
+
+    // request: {"tag": "<name>", "from": ms, "to": ms, "lastMs": ms, "intervalMs": ms, "maxPoints": n}
+    // to defaults to now and from to to - lastMs or to - retentionMs. Without
+    // intervalMs the response has "points": [[time, value], ...], the newest
+    // maxPoints of the range ("truncated": true when there were more), null
+    // for a gap. With intervalMs it has "buckets": [[start, min, max, mean,
+    // last, count], ...] of the numeric values, booleans as 0 and 1, empty
+    // buckets left out. Throws IllegalArgumentException for a bad request.
+    public JSONObject query(JSONObject request) {
+        long started = System.nanoTime();
+        String name = request.optString("tag", "");
+        TagDefinition tag = catalog.getByName(name);
+        if (tag == null) {
+            throw new IllegalArgumentException("unknown tag '" + name + "'");
+        }
+        long now = System.currentTimeMillis();
+        long to = request.optLong("to", now);
+        long from = Math.max(request.optLong("from", to - request.optLong("lastMs", retentionMs)), now - retentionMs);
+        long intervalMs = request.optLong("intervalMs", 0);
+        int limit = Math.max(1, Math.min(request.optInt("maxPoints", maxPoints), maxPoints));
+        if (from > to || intervalMs < 0) {
+            throw new IllegalArgumentException("empty range " + from + " to " + to + " or negative intervalMs");
+        }
+
+        Range range = read(regionOf[tag.getIndex()], from, to, intervalMs > 0 ? Integer.MAX_VALUE : limit);
+        JSONObject response = new JSONObject()
+                .put("tag", tag.getName())
+                .put("nodeId", key(tag))
+                .put("from", from)
+                .put("to", to);
+        if (intervalMs > 0) {
+            response.put("intervalMs", intervalMs)
+                    .put("columns", new JSONArray(Arrays.asList("start", "min", "max", "mean", "last", "count")))
+                    .put("buckets", buckets(range, from, intervalMs, limit));
+        } else {
+            JSONArray points = new JSONArray();
+            for (int i = 0; i < range.size; i++) {
+                points.put(new JSONArray().put(range.times[i]).put(jsonValue(range.types[i], range.bits[i])));
+            }
+            response.put("points", points).put("truncated", range.truncated);
+        }
+        queries.increment();
+        queryTime.record(System.nanoTime() - started);
+        return response;
+    }
+
+    private static final class Range {
+        long[] times;
+        byte[] types;
+        long[] bits;
+        int size;
+        boolean truncated;
+    }
+
+    // the newest at most limit records of [from, to], copied under the region
+    // lock so JSON is built without holding it
+    private Range read(int region, long from, long to, int limit) {
+        ByteBuffer buffer = chunk(region);
+        int base = offset(region);
+        Range range = new Range();
+        synchronized (locks[region]) {
+            long baseMs = buffer.getLong(base);
+            int next = buffer.getInt(base + 8);
+            int count = buffer.getInt(base + 12);
+            int oldest = next - count + recordsPerTag;
+            int first = firstAtOrAfter(buffer, base, oldest, count, from - baseMs);
+            int end = firstAtOrAfter(buffer, base, oldest, count, to - baseMs + 1);
+            if (end - first > limit) {
+                range.truncated = true;
+                first = end - limit;
+            }
+            range.size = Math.max(0, end - first);
+            range.times = new long[range.size];
+            range.types = new byte[range.size];
+            range.bits = new long[range.size];
+            for (int i = 0; i < range.size; i++) {
+                int record = recordOffset(base, (oldest + first + i) % recordsPerTag);
+                range.times[i] = baseMs + buffer.getInt(record);
+                range.types[i] = buffer.get(record + 4);
+                range.bits[i] = buffer.getLong(record + 5);
+            }
+        }
+        return range;
+    }
+
+    // position, counted from the oldest record, of the first record with a
+    // delta of at least delta
+    private int firstAtOrAfter(ByteBuffer buffer, int base, int oldest, int count, long delta) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(recordOffset(base, (oldest + middle) % recordsPerTag)) < delta) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static JSONArray buckets(Range range, long from, long intervalMs, int limit) {
+        JSONArray buckets = new JSONArray();
+        long start = Long.MIN_VALUE;
+        double min = 0;
+        double max = 0;
+        double sum = 0;
+        double last = 0;
+        long count = 0;
+        for (int i = 0; i <= range.size; i++) {
+            long bucket = i < range.size ? from + (range.times[i] - from) / intervalMs * intervalMs : Long.MAX_VALUE;
+            if (bucket != start && count > 0) {
+                buckets.put(new JSONArray().put(start).put(number(min)).put(number(max)).put(number(sum / count))
+                        .put(number(last)).put(count));
+                count = 0;
+            }
+            if (i == range.size) {
+                break;
+            }
+            start = bucket;
+            if (range.types[i] == GAP) {
+                continue;
+            }
+            double value = range.types[i] == DOUBLE ? Double.longBitsToDouble(range.bits[i]) : range.bits[i];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            min = count == 0 ? value : Math.min(min, value);
+            max = count == 0 ? value : Math.max(max, value);
+            sum = count == 0 ? value : sum + value;
+            last = value;
+            count++;
+        }
+        // the newest buckets when there are more than limit
+        while (buckets.length() > limit) {
+            buckets.remove(0);
+        }
+        return buckets;
+    }
+
+    private static Object jsonValue(byte type, long bits) {
+        switch (type) {
+        case DOUBLE:
+            return number(Double.longBitsToDouble(bits));
+        case LONG:
+            return bits;
+        case BOOLEAN:
+            return bits != 0;
+        default:
+            return JSONObject.NULL;
+        }
+    }
+
+    // JSON has no NaN or infinity
+    private static Object number(double value) {
+        return Double.isFinite(value) ? (Object) value : JSONObject.NULL;
+    }
+
+    // response to the request's "responseTopic" or to the configured
+    // responseTopic, with the request's "requestId"
+    static void respond(JSONObject config, JSONObject request, JSONObject response) {
+        String topic = request.optString("responseTopic",
+                config.optString("responseTopic", "opcua/history/response"));
+        if (request.has("requestId")) {
+            response.put("requestId", request.get("requestId"));
+        }
+        AsyncIpcUtils.publishToIpcAsync(topic, response.toString().getBytes(StandardCharsets.UTF_8))
+                .whenComplete((r, ex) -> {
+                    if (ex != null) {
+                        logger.error("Unable to publish history response to {}: {}", topic, ex.getMessage());
+                    }
+                });
+    }
+
+    static JSONObject error(String message) {
+        return new JSONObject().put("error", message);
+    }
+
+    // changes are already in the page cache, force() only guards against a
+    // power loss
+    @Override
+    public void close() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SpoolLogTest {
+    // 8 header + 4 body header + 5 topic + 10 payload bytes
+    private static final int RECORD_BYTES = 27;
+
+    @TempDir
+    Path directory;
+
+    private static byte[] payload(int i) {
+        return String.format("payload%03d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void append(SpoolLog spool, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertTrue(spool.append(StoreAndForward.KIND_IOT_CORE, (byte) 1, "topic", payload(i)));
+        }
+    }
+
+    // replays and commits up to max records, returns their payloads
+    private static List<String> replay(SpoolLog spool, int max) {
+        List<String> replayed = new ArrayList<>();
+        SpoolLog.Record record;
+        while (replayed.size() < max && (record = spool.peek()) != null) {
+            replayed.add(new String(record.payload, StandardCharsets.UTF_8));
+            spool.commit(record);
+        }
+        return replayed;
+    }
+
+    private static List<String> payloads(int from, int to) {
+        List<String> payloads = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            payloads.add(new String(payload(i), StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    @Test
+    public void replaysAcrossSegmentsAndRestarts() throws IOException {
+        // 9 records per segment
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            append(spool, 0, 20);
+            assertEquals(3, segmentFiles().size());
+            assertEquals(payloads(0, 5), replay(spool, 5));
+        }
+
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            SpoolLog.Record record = spool.peek();
+            assertEquals(StoreAndForward.KIND_IOT_CORE, record.kind);
+            assertEquals(1, record.qos);
+            assertEquals("topic", record.topic);
+            // appended after the restart, replayed after the older records
+            append(spool, 20, 25);
+            assertEquals(payloads(5, 25), replay(spool, Integer.MAX_VALUE));
+            assertTrue(spool.isEmpty());
+            // replayed segments are deleted, the one written to stays
+            assertEquals(1, segmentFiles().size());
+        }
+    }
+
+    @Test
+    public void uncommittedRecordIsReplayedAgain() throws IOException {
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            append(spool, 0, 2);
+            spool.peek();
+        }
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            assertEquals(payloads(0, 2), replay(spool, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void corruptedRecordEndsTheSegment() throws IOException {
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            append(spool, 0, 4);
+        }
+        // flip a payload byte of the third record, its CRC no longer matches
+        Path segment = segmentFiles().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), 2 * RECORD_BYTES + RECORD_BYTES - 1);
+        }
+
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            assertEquals(payloads(0, 2), replay(spool, 2));
+            // new records overwrite the corrupted tail
+            append(spool, 10, 12);
+            assertEquals(payloads(10, 12), replay(spool, Integer.MAX_VALUE));
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void truncatedSegmentKeepsCompleteRecords() throws IOException {
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            append(spool, 0, 12);
+        }
+        // a segment cut off in the middle of its third record, as after a crash
+        // before the mapping was written back
+        Path segment = segmentFiles().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(2 * RECORD_BYTES + 12);
+        }
+
+        try (SpoolLog spool = new SpoolLog(directory, 256, 10)) {
+            List<String> expected = payloads(0, 2);
+            // the next segment is still replayed
+            expected.addAll(payloads(9, 12));
+            assertEquals(expected, replay(spool, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void fullSpoolDropsOldestSegment() throws IOException {
+        try (SpoolLog spool = new SpoolLog(directory, 256, 2)) {
+            append(spool, 0, 20);
+            // the first segment (9 records) made room for the third
+            assertEquals(9, spool.getDroppedCount());
+            assertEquals(payloads(9, 20), replay(spool, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void oversizedRecordIsDropped() throws IOException {
+        try (SpoolLog spool = new SpoolLog(directory, 256, 2)) {
+            assertFalse(spool.append(StoreAndForward.KIND_LOCAL_TOPIC, (byte) 0, "topic", new byte[300]));
+            assertEquals(1, spool.getDroppedCount());
+            assertNull(spool.peek());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClientV2;
+import software.amazon.awssdk.aws.greengrass.model.InvalidArgumentsError;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreResponse;
+import software.amazon.awssdk.aws.greengrass.model.QOS;
+
+public class StoreAndForwardTest {
+    @TempDir
+    Path directory;
+
+    private final LinkClient link = new LinkClient();
+    private StoreAndForward storeAndForward;
+
+    // publishes fail while the link is down and the refused payload always
+    // fails, delivered payloads are kept in order
+    static class LinkClient extends GreengrassCoreIPCClientV2 {
+        volatile boolean down;
+        volatile String refused;
+        final List<String> delivered = new ArrayList<>();
+
+        LinkClient() {
+            super(null, null, Runnable::run);
+        }
+
+        @Override
+        public CompletableFuture<PublishToIoTCoreResponse> publishToIoTCoreAsync(PublishToIoTCoreRequest request) {
+            CompletableFuture<PublishToIoTCoreResponse> future = new CompletableFuture<>();
+            String payload = new String(request.getPayload(), StandardCharsets.UTF_8);
+            if (down) {
+                future.completeExceptionally(new IllegalStateException("link down"));
+            } else if (payload.equals(refused)) {
+                future.completeExceptionally(new InvalidArgumentsError("payload refused"));
+            } else {
+                synchronized (delivered) {
+                    delivered.add(payload);
+                }
+                future.complete(new PublishToIoTCoreResponse());
+            }
+            return future;
+        }
+
+        List<String> getDelivered() {
+            synchronized (delivered) {
+                return new ArrayList<>(delivered);
+            }
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        IpcUtils.useClient(link);
+        storeAndForward = new StoreAndForward(new JSONObject()
+                .put("directory", directory.toString())
+                .put("segmentBytes", 1024)
+                .put("replayPerSecond", 1000)
+                .put("retryIntervalMs", 50));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        storeAndForward.close();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), "timed out");
+    }
+
+    @Test
+    public void replaysSpooledPublishesInOrder() throws Exception {
+        link.down = true;
+        List<String> sent = new ArrayList<>();
+        // spread over several segments
+        for (int i = 0; i < 100; i++) {
+            String payload = "{\"sample\":" + i + "}";
+            sent.add(payload);
+            storeAndForward.publishToIoTCore("opcua/line1/telemetry", payload.getBytes(StandardCharsets.UTF_8),
+                    QOS.AT_LEAST_ONCE).get();
+        }
+        await(() -> storeAndForward.getSpooledCount() == 100);
+        assertEquals(0, link.getDelivered().size());
+
+        link.down = false;
+        await(() -> storeAndForward.getReplayedCount() == 100);
+        assertEquals(sent, link.getDelivered());
+        assertEquals(0, storeAndForward.getDroppedCount());
+    }
+
+    @Test
+    public void refusedRecordDoesNotBlockReplay() throws Exception {
+        link.down = true;
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String payload = "{\"sample\":" + i + "}";
+            sent.add(payload);
+            storeAndForward.publishToIoTCore("opcua/line1/telemetry", payload.getBytes(StandardCharsets.UTF_8),
+                    QOS.AT_LEAST_ONCE).get();
+        }
+        await(() -> storeAndForward.getSpooledCount() == 10);
+
+        link.refused = sent.remove(3);
+        link.down = false;
+        await(() -> storeAndForward.getReplayedCount() == 9);
+        assertEquals(sent, link.getDelivered());
+        assertEquals(1, storeAndForward.getRejectedCount());
+    }
+
+    @Test
+    public void refusedPublishIsNotSpooled() throws Exception {
+        link.refused = "{}";
+        ExecutionException e = assertThrows(ExecutionException.class, () -> storeAndForward
+                .publishToIoTCore("opcua/line1/telemetry", "{}".getBytes(StandardCharsets.UTF_8),
+                        QOS.AT_LEAST_ONCE).get());
+        assertTrue(e.getCause() instanceof InvalidArgumentsError);
+        assertEquals(1, storeAndForward.getRejectedCount());
+        Thread.sleep(200);
+        assertEquals(0, storeAndForward.getSpooledCount());
+    }
+
+    @Test
+    public void livePublishesAreNotSpooled() throws Exception {
+        storeAndForward.publishToIoTCore("opcua/line1/telemetry", "{}".getBytes(StandardCharsets.UTF_8),
+                QOS.AT_MOST_ONCE).get();
+        assertEquals(1, link.getDelivered().size());
+        assertEquals(0, storeAndForward.getSpooledCount());
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * // Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * // SPDX-License-Identifier: MIT-0
+ */
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.DeadbandType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TimeSeriesStoreTest {
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path directory;
+
+    private final long now = System.currentTimeMillis();
+
+    private JSONObject config() {
+        return new JSONObject()
+                .put("directory", directory.toString())
+                .put("recordsPerTag", 8)
+                .put("retentionMs", 100 * DAY_MS);
+    }
+
+    private static TagCatalog catalog(String... names) {
+        List<TagDefinition> tags = new ArrayList<>();
+        for (String name : names) {
+            tags.add(new TagDefinition(tags.size(), name, new NodeId(1, name), 1000.0, 10, DeadbandType.None, 0.0,
+                    TagDefinition.DEFAULT_GROUP, Double.NaN, Double.NaN));
+        }
+        return new TagCatalog(tags);
+    }
+
+    private static DataValue value(Object value, long timeMs) {
+        return new DataValue(new Variant(value), StatusCode.GOOD, new DateTime(new Date(timeMs)));
+    }
+
+    private static void record(TimeSeriesStore store, TagCatalog catalog, String tag, Object value, long timeMs) {
+        store.record(catalog.getByName(tag), value(value, timeMs));
+    }
+
+    private JSONArray points(TimeSeriesStore store, String tag) {
+        return store.query(new JSONObject().put("tag", tag).put("from", now - 100 * DAY_MS).put("to", now))
+                .getJSONArray("points");
+    }
+
+    private static List<Long> times(JSONArray points) {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < points.length(); i++) {
+            times.add(points.getJSONArray(i).getLong(0));
+        }
+        return times;
+    }
+
+    @Test
+    public void queriesValuesAfterReopen() throws IOException {
+        TagCatalog catalog = catalog("Speed", "Count", "Running");
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            record(store, catalog, "Speed", 12.5, now - 3000);
+            record(store, catalog, "Speed", 13.0, now - 2000);
+            store.record(catalog.getByName("Speed"),
+                    new DataValue(Variant.NULL_VALUE, StatusCode.BAD, new DateTime(new Date(now - 1000))));
+            record(store, catalog, "Count", 42L, now - 2000);
+            record(store, catalog, "Running", true, now - 2000);
+            // strings are not kept
+            record(store, catalog, "Running", "on", now - 1000);
+        }
+
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            JSONArray speed = points(store, "Speed");
+            assertEquals(3, speed.length());
+            assertEquals(now - 3000, speed.getJSONArray(0).getLong(0));
+            assertEquals(12.5, speed.getJSONArray(0).getDouble(1));
+            assertEquals(13.0, speed.getJSONArray(1).getDouble(1));
+            assertTrue(speed.getJSONArray(2).isNull(1));
+            assertEquals(42L, points(store, "Count").getJSONArray(0).getLong(1));
+            JSONArray running = points(store, "Running");
+            assertEquals(1, running.length());
+            assertTrue(running.getJSONArray(0).getBoolean(1));
+
+            JSONArray buckets = store.query(new JSONObject().put("tag", "Speed").put("from", now - 4000)
+                    .put("to", now).put("intervalMs", 4000)).getJSONArray("buckets");
+            // start, min, max, mean, last, count
+            assertEquals(1, buckets.length());
+            assertEquals(12.5, buckets.getJSONArray(0).getDouble(1));
+            assertEquals(13.0, buckets.getJSONArray(0).getDouble(2));
+            assertEquals(12.75, buckets.getJSONArray(0).getDouble(3));
+            assertEquals(2, buckets.getJSONArray(0).getInt(5));
+
+            assertThrows(IllegalArgumentException.class, () -> store.query(new JSONObject().put("tag", "Unknown")));
+        }
+    }
+
+    @Test
+    public void ringKeepsTheNewestRecords() throws IOException {
+        TagCatalog catalog = catalog("Speed");
+        List<Long> expected = new ArrayList<>();
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            for (int i = 0; i < 20; i++) {
+                record(store, catalog, "Speed", (double) i, now - 30000 + i * 1000);
+            }
+        }
+        // wraps around again after the reopen
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            for (int i = 20; i < 23; i++) {
+                record(store, catalog, "Speed", (double) i, now - 30000 + i * 1000);
+            }
+            for (int i = 15; i < 23; i++) {
+                expected.add(now - 30000 + i * 1000);
+            }
+            JSONArray points = points(store, "Speed");
+            assertEquals(expected, times(points));
+            assertEquals(22.0, points.getJSONArray(7).getDouble(1));
+
+            JSONObject newest = store.query(new JSONObject().put("tag", "Speed").put("from", now - 100 * DAY_MS)
+                    .put("to", now).put("maxPoints", 3));
+            assertTrue(newest.getBoolean("truncated"));
+            assertEquals(expected.subList(5, 8), times(newest.getJSONArray("points")));
+        }
+    }
+
+    @Test
+    public void clockGoingBackKeepsTimeOrder() throws IOException {
+        TagCatalog catalog = catalog("Speed");
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            record(store, catalog, "Speed", 1.0, now - 2000);
+            record(store, catalog, "Speed", 2.0, now - 5000);
+            List<Long> times = times(points(store, "Speed"));
+            assertEquals(2, times.size());
+            assertEquals(now - 2000, (long) times.get(1));
+        }
+    }
+
+    @Test
+    public void rebaseDropsRecordsOutsideTheDeltaRange() throws IOException {
+        TagCatalog catalog = catalog("Speed");
+        long start = now - 40 * DAY_MS;
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            record(store, catalog, "Speed", 1.0, start);
+            record(store, catalog, "Speed", 2.0, start + DAY_MS);
+            record(store, catalog, "Speed", 3.0, start + 20 * DAY_MS);
+            // more than Integer.MAX_VALUE ms after the base, the base moves to
+            // about 12 days before this record
+            record(store, catalog, "Speed", 4.0, start + 30 * DAY_MS);
+        }
+
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), catalog, null)) {
+            record(store, catalog, "Speed", 5.0, start + 31 * DAY_MS);
+            JSONArray points = points(store, "Speed");
+            List<Long> expected = new ArrayList<>();
+            expected.add(start + 20 * DAY_MS);
+            expected.add(start + 30 * DAY_MS);
+            expected.add(start + 31 * DAY_MS);
+            assertEquals(expected, times(points));
+            assertEquals(3.0, points.getJSONArray(0).getDouble(1));
+            assertEquals(5.0, points.getJSONArray(2).getDouble(1));
+        }
+    }
+
+    @Test
+    public void tagsKeepTheirHistoryWhenTheCatalogChanges() throws IOException {
+        TagCatalog before = catalog("A", "B", "C");
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), before, null)) {
+            record(store, before, "A", 1.0, now - 3000);
+            record(store, before, "B", 2.0, now - 3000);
+            record(store, before, "C", 3.0, now - 3000);
+        }
+
+        // A is gone, B and C moved to other catalog indexes, D is new
+        TagCatalog after = catalog("D", "C", "B");
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), after, null)) {
+            assertEquals(2.0, points(store, "B").getJSONArray(0).getDouble(1));
+            assertEquals(3.0, points(store, "C").getJSONArray(0).getDouble(1));
+            // D takes over the region of A, cleared
+            assertEquals(0, points(store, "D").length());
+            record(store, after, "D", 4.0, now - 2000);
+        }
+
+        try (TimeSeriesStore store = new TimeSeriesStore(config(), before, null)) {
+            // A was not kept, its region now holds D
+            assertEquals(0, points(store, "A").length());
+            assertEquals(2.0, points(store, "B").getJSONArray(0).getDouble(1));
+            assertFalse(points(store, "C").isEmpty());
+        }
+    }
+}